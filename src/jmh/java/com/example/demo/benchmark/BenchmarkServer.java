@@ -0,0 +1,50 @@
+package com.example.demo.benchmark;
+
+import com.example.demo.DemoApplication;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * 在基准测试进程中启动整个应用：内嵌 H2 数据库（test 配置）、随机端口、临时目录中的 FileStore，
+ * 不依赖 MySQL 和网络，结果可以在不同提交之间比较
+ */
+class BenchmarkServer {
+    
+    private final Path root;
+    
+    private final ConfigurableApplicationContext context;
+    
+    BenchmarkServer() throws IOException {
+        root = Files.createTempDirectory("benchmark");
+        context = new SpringApplicationBuilder(DemoApplication.class)
+                .profiles("test")
+                .properties("server.port=0",
+                        "file.store.root=" + root,
+                        "logging.level.root=warn")
+                .run();
+    }
+    
+    <T> T getBean(Class<T> type) {
+        return context.getBean(type);
+    }
+    
+    String url(String path) {
+        int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+        return "http://localhost:" + port + path;
+    }
+    
+    Path tempDir() {
+        return root;
+    }
+    
+    void close() throws IOException {
+        context.close();
+        FileSystemUtils.deleteRecursively(root);
+    }
+}
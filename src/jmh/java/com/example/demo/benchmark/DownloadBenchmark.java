@@ -0,0 +1,71 @@
+package com.example.demo.benchmark;
+
+import com.example.demo.models.User;
+import com.example.demo.models.UserRepository;
+import com.example.demo.services.FileService;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 通过真实的 HTTP 连接下载文件，测量 Files.downloadFile 的吞吐。文件大小跨过 sendfile 的阈值，
+ * 小文件走 FileChannel.transferTo，大文件走 Tomcat 的 sendfile
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class DownloadBenchmark {
+    
+    @Param({"16384", "1048576", "67108864"})
+    int size;
+    
+    BenchmarkServer server;
+    
+    HttpClient client;
+    
+    HttpRequest request;
+    
+    @Setup
+    public void setup() throws IOException {
+        server = new BenchmarkServer();
+        User user = server.getBean(UserRepository.class)
+                .save(new User().setUsername("benchmark").setPasswordHash("x"));
+        
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        com.example.demo.models.File file;
+        try (InputStream in = new ByteArrayInputStream(content)) {
+            file = server.getBean(FileService.class)
+                    .upload(in, "benchmark.bin", "application/octet-stream", user.getId());
+        }
+        // 下载接口允许匿名访问，不需要令牌
+        client = HttpClient.newHttpClient();
+        request = HttpRequest.newBuilder(URI.create(server.url("/api/file/" + file.getId()))).build();
+    }
+    
+    @TearDown
+    public void tearDown() throws IOException {
+        server.close();
+    }
+    
+    @Benchmark
+    public int download() throws IOException, InterruptedException {
+        HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() != 200) {
+            throw new IllegalStateException("status " + response.statusCode());
+        }
+        return response.statusCode();
+    }
+}
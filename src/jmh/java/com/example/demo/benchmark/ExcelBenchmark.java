@@ -0,0 +1,97 @@
+package com.example.demo.benchmark;
+
+import cn.hutool.poi.excel.BigExcelWriter;
+import cn.hutool.poi.excel.ExcelUtil;
+import com.example.demo.models.UserRepository;
+import com.example.demo.services.ExportService;
+import com.example.demo.services.ImportResult;
+import com.example.demo.services.UserService;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 导入和导出 N 个用户：UserService.importUsers 读取 xlsx 写入 H2，ExportService.writeUsersXlsx 把整张表写成 xlsx
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExcelBenchmark {
+    
+    @Param({"10000"})
+    int rows;
+    
+    BenchmarkServer server;
+    
+    UserRepository userRepository;
+    
+    UserService userService;
+    
+    ExportService exportService;
+    
+    File workbook;
+    
+    @Setup
+    public void setup() throws IOException {
+        server = new BenchmarkServer();
+        userRepository = server.getBean(UserRepository.class);
+        userService = server.getBean(UserService.class);
+        exportService = server.getBean(ExportService.class);
+        
+        workbook = server.tempDir().resolve("users.xlsx").toFile();
+        List<Map<String, Object>> users = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            Map<String, Object> user = new LinkedHashMap<>();
+            user.put("username", "user" + i);
+            user.put("passwordHash", "$2a$10$7EqJtq98hPqEX7fNZaFWoOhi5BWX4Z2/Myd9Ci6g0B/tXzfpUVVYu");
+            user.put("nickname", "用户" + i);
+            user.put("email", "user" + i + "@example.com");
+            user.put("phone", 13800000000L + i);
+            user.put("address", "地址" + i);
+            users.add(user);
+        }
+        BigExcelWriter writer = ExcelUtil.getBigWriter(workbook);
+        writer.write(users, true);
+        writer.close();
+        
+        // 每个基准方法在单独的进程中运行，导出读的是这里导入的数据
+        userService.importUsers(workbook);
+    }
+    
+    @TearDown
+    public void tearDown() throws IOException {
+        server.close();
+    }
+    
+    @Benchmark
+    public ImportResult importUsers(EmptyTable emptyTable) {
+        return userService.importUsers(workbook);
+    }
+    
+    @Benchmark
+    public long export() throws IOException {
+        return exportService.writeUsersXlsx(OutputStream.nullOutputStream());
+    }
+    
+    /**
+     * 每次导入前清空用户表，保证每次写入的都是 N 个新用户
+     */
+    @State(Scope.Benchmark)
+    public static class EmptyTable {
+        
+        @Setup(Level.Invocation)
+        public void truncate(ExcelBenchmark benchmark) {
+            benchmark.userRepository.deleteAllInBatch();
+        }
+    }
+}
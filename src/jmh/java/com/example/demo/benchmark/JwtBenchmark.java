@@ -0,0 +1,81 @@
+package com.example.demo.benchmark;
+
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.JWTVerifier;
+import com.auth0.jwt.algorithms.Algorithm;
+import com.example.demo.models.User;
+import com.example.demo.models.UserRepository;
+import com.example.demo.services.TokenRevocationService;
+import com.example.demo.services.TokenService;
+import com.example.demo.utils.JwtAuthenticationFilter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.servlet.ServletException;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 每个 Users/Files 请求都要处理的令牌：只解码、解码并验签、以及经过 JwtAuthenticationFilter（命中缓存）的代价。
+ * 令牌由 TokenService.issue 签发，带有过滤器要求的 typ、exp 和 gen
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JwtBenchmark {
+    
+    String token;
+    
+    JWTVerifier verifier;
+    
+    JwtAuthenticationFilter filter;
+    
+    @Setup
+    public void setup() {
+        Algorithm algorithm = Algorithm.HMAC256("ZZZCNY");
+        TokenService tokenService = new TokenService();
+        ReflectionTestUtils.setField(tokenService, "secret", "ZZZCNY");
+        ReflectionTestUtils.setField(tokenService, "accessTtl", TimeUnit.HOURS.toMillis(1));
+        ReflectionTestUtils.setField(tokenService, "refreshTtl", TimeUnit.HOURS.toMillis(1));
+        tokenService.init();
+        token = (String) tokenService.issue(new User().setId(1).setUsername("benchmark")).get("token");
+        
+        // 没有吊销过令牌的用户，过滤器只查布隆过滤器
+        TokenRevocationService revocations = new TokenRevocationService();
+        ReflectionTestUtils.setField(revocations, "userRepository", Mockito.mock(UserRepository.class));
+        ReflectionTestUtils.setField(revocations, "bloomBits", 1 << 20);
+        revocations.load();
+        
+        verifier = JWT.require(algorithm).build();
+        filter = new JwtAuthenticationFilter(algorithm, 10000, revocations, new SimpleMeterRegistry());
+    }
+    
+    @Benchmark
+    public Object decode() {
+        return JWT.decode(token).getClaim("userForToken").asMap();
+    }
+    
+    @Benchmark
+    public Object verify() {
+        return verifier.verify(token).getClaim("userForToken").asMap();
+    }
+    
+    @Benchmark
+    public Object filter() throws ServletException, IOException {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api/file");
+        request.addHeader("authorization", "Bearer " + token);
+        filter.doFilter(request, new MockHttpServletResponse(), new MockFilterChain());
+        Object principal = SecurityContextHolder.getContext().getAuthentication().getPrincipal();
+        SecurityContextHolder.clearContext();
+        return principal;
+    }
+}
@@ -0,0 +1,33 @@
+package com.example.demo.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.security.crypto.bcrypt.BCrypt;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Login.login 中的密码校验：不同工作因子下一次 BCrypt.checkpw 的耗时
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PasswordBenchmark {
+    
+    @Param({"10", "12"})
+    int strength;
+    
+    String passwordHash;
+    
+    @Setup
+    public void setup() {
+        passwordHash = BCrypt.hashpw("123456", BCrypt.gensalt(strength));
+    }
+    
+    @Benchmark
+    public boolean checkpw() {
+        return BCrypt.checkpw("123456", passwordHash);
+    }
+}
@@ -0,0 +1,41 @@
+package com.example.demo.loadtest;
+
+/**
+ * 压测中的一种请求。label 用在 mix 参数和报告中
+ */
+enum Endpoint {
+    
+    LOGIN("login", 10),
+    
+    USERS("users", 20),
+    
+    SEARCH("search", 10),
+    
+    FILES("files", 25),
+    
+    DOWNLOAD("download", 20),
+    
+    UPLOAD("upload", 10),
+    
+    IMPORT("import", 3),
+    
+    EXPORT("export", 2);
+    
+    final String label;
+    
+    final int defaultWeight;
+    
+    Endpoint(String label, int defaultWeight) {
+        this.label = label;
+        this.defaultWeight = defaultWeight;
+    }
+    
+    static Endpoint of(String label) {
+        for (Endpoint endpoint : values()) {
+            if (endpoint.label.equals(label)) {
+                return endpoint;
+            }
+        }
+        throw new IllegalArgumentException("unknown endpoint " + label);
+    }
+}
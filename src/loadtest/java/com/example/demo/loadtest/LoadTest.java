@@ -0,0 +1,160 @@
+package com.example.demo.loadtest;
+
+import com.example.demo.models.User;
+import com.example.demo.services.FileService;
+import com.example.demo.services.UserService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.springframework.security.crypto.bcrypt.BCrypt;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpClient;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * 端到端压测：在本进程中启动应用（内嵌 H2、临时目录），预先创建用户和文件，然后由许多虚拟客户端
+ * 按给定的比例同时发送登录、用户列表、搜索、文件列表、下载、上传、导入和导出请求，
+ * 最后按请求类型输出次数、失败数、每秒请求数和 p50/p99 延迟，并把结果写成 JSON，便于在发布前比较容量。
+ * <p>
+ * 运行：mvn -Ploadtest test-compile exec:exec -Dloadtest.args="clients=100 duration=120 mix=login:5,files:50,download:45"
+ */
+public class LoadTest {
+    
+    static final String PASSWORD = "123456";
+    
+    private static volatile String passwordHash;
+    
+    public static void main(String[] args) throws Exception {
+        LoadTestConfig config = new LoadTestConfig(args);
+        passwordHash = BCrypt.hashpw(PASSWORD, BCrypt.gensalt(config.bcrypt));
+        
+        LoadTestServer server = new LoadTestServer(config.bcrypt);
+        boolean passed;
+        try {
+            System.out.printf("seeding %d users and %d files%n", config.users, config.files);
+            List<Integer> fileIds = seed(server, config);
+            passed = run(server, config, fileIds);
+        } finally {
+            server.close();
+        }
+        System.exit(passed ? 0 : 1);
+    }
+    
+    static String username(int index) {
+        return "load" + index;
+    }
+    
+    static String passwordHash() {
+        return passwordHash;
+    }
+    
+    /**
+     * 创建压测用户和供下载的文件。所有用户使用同一个密码，哈希只计算一次
+     *
+     * @return 文件 id
+     */
+    private static List<Integer> seed(LoadTestServer server, LoadTestConfig config) throws IOException {
+        List<User> users = new ArrayList<>(config.users);
+        for (int i = 0; i < config.users; i++) {
+            users.add(new User()
+                    .setUsername(username(i))
+                    .setPasswordHash(passwordHash)
+                    .setNickname("压测" + i)
+                    .setEmail(username(i) + "@example.com"));
+        }
+        server.getBean(UserService.class).createUsers(users);
+        
+        FileService fileService = server.getBean(FileService.class);
+        Random random = new Random(config.files);
+        List<Integer> fileIds = new ArrayList<>(config.files);
+        for (int i = 0; i < config.files; i++) {
+            byte[] content = new byte[config.fileSize];
+            random.nextBytes(content);
+            try (InputStream in = new ByteArrayInputStream(content)) {
+                fileIds.add(fileService.upload(in, "seed" + i + ".bin", "application/octet-stream",
+                        users.get(i % users.size()).getId()).getId());
+            }
+        }
+        return fileIds;
+    }
+    
+    /**
+     * 预热后测量给定的时间，输出并保存结果
+     *
+     * @return 每种请求的失败率都不超过 max-error-rate 时为 true
+     */
+    private static boolean run(LoadTestServer server, LoadTestConfig config,
+                               List<Integer> fileIds) throws IOException, InterruptedException {
+        Stats stats = new Stats(Duration.ofSeconds(config.duration));
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(config.timeout))
+                .build();
+        
+        List<VirtualClient> clients = new ArrayList<>(config.clients);
+        List<Thread> threads = new ArrayList<>(config.clients);
+        for (int i = 0; i < config.clients; i++) {
+            VirtualClient virtualClient = new VirtualClient(client, server::url, config, fileIds, stats, i);
+            Thread thread = new Thread(virtualClient, "client-" + i);
+            thread.setDaemon(true);
+            clients.add(virtualClient);
+            threads.add(thread);
+            thread.start();
+        }
+        
+        System.out.printf("%d clients, warming up for %ds%n", config.clients, config.warmup);
+        Thread.sleep(config.warmup * 1000L);
+        stats.start();
+        System.out.printf("measuring for %ds%n", config.duration);
+        Thread.sleep(config.duration * 1000L);
+        stats.stop();
+        
+        for (VirtualClient virtualClient : clients) {
+            virtualClient.stop();
+        }
+        for (Thread thread : threads) {
+            thread.join(config.timeout * 1000L);
+        }
+        return report(config, stats.summary());
+    }
+    
+    private static boolean report(LoadTestConfig config, Map<String, Map<String, Object>> summary) throws IOException {
+        boolean passed = true;
+        System.out.printf("%-10s %10s %8s %10s %10s %10s %10s%n",
+                "endpoint", "requests", "errors", "req/s", "p50 ms", "p99 ms", "max ms");
+        for (Map.Entry<String, Map<String, Object>> entry : summary.entrySet()) {
+            Map<String, Object> row = entry.getValue();
+            long requests = (Long) row.get("requests");
+            long errors = (Long) row.get("errors");
+            System.out.printf("%-10s %10d %8d %10.1f %10.2f %10.2f %10.2f%n", entry.getKey(), requests, errors,
+                    row.get("throughput"), row.get("p50"), row.get("p99"), row.get("max"));
+            if (errors > requests * config.maxErrorRate) {
+                passed = false;
+            }
+        }
+        
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("config", config.toMap());
+        result.put("endpoints", summary);
+        Path out = Paths.get(config.out);
+        if (out.getParent() != null) {
+            Files.createDirectories(out.getParent());
+        }
+        new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(out.toFile(), result);
+        System.out.println("result written to " + out.toAbsolutePath());
+        if (!passed) {
+            System.out.println("error rate above " + config.maxErrorRate);
+        }
+        return passed;
+    }
+}
@@ -0,0 +1,153 @@
+package com.example.demo.loadtest;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 压测参数，从命令行的 key=value 读取，没有给出的用默认值
+ */
+class LoadTestConfig {
+    
+    /**
+     * 并发的虚拟客户端数
+     */
+    final int clients;
+    
+    /**
+     * 预热时间，单位秒，期间的请求不计入结果
+     */
+    final int warmup;
+    
+    /**
+     * 测量时间，单位秒
+     */
+    final int duration;
+    
+    /**
+     * 每个客户端两次请求之间的等待时间，单位毫秒
+     */
+    final int think;
+    
+    /**
+     * 单个请求的超时，单位秒
+     */
+    final int timeout;
+    
+    /**
+     * 预先创建的用户数，客户端轮流使用这些账号
+     */
+    final int users;
+    
+    /**
+     * 预先上传的文件数，供下载使用
+     */
+    final int files;
+    
+    /**
+     * 预先上传和压测中上传的文件大小，单位字节
+     */
+    final int fileSize;
+    
+    /**
+     * 每次导入的行数
+     */
+    final int importRows;
+    
+    /**
+     * 服务端 BCrypt 的工作因子
+     */
+    final int bcrypt;
+    
+    /**
+     * 任何一种请求的失败率超过它时以非零状态退出
+     */
+    final double maxErrorRate;
+    
+    /**
+     * JSON 结果的输出路径
+     */
+    final String out;
+    
+    final Map<Endpoint, Integer> mix = new EnumMap<>(Endpoint.class);
+    
+    private final Endpoint[] picks;
+    
+    LoadTestConfig(String[] args) {
+        Map<String, String> values = new LinkedHashMap<>();
+        for (String arg : args) {
+            int index = arg.indexOf('=');
+            if (index <= 0) {
+                throw new IllegalArgumentException("expected key=value, got " + arg);
+            }
+            values.put(arg.substring(0, index), arg.substring(index + 1));
+        }
+        
+        clients = Integer.parseInt(values.getOrDefault("clients", "50"));
+        warmup = Integer.parseInt(values.getOrDefault("warmup", "10"));
+        duration = Integer.parseInt(values.getOrDefault("duration", "60"));
+        think = Integer.parseInt(values.getOrDefault("think", "0"));
+        timeout = Integer.parseInt(values.getOrDefault("timeout", "30"));
+        users = Integer.parseInt(values.getOrDefault("users", "1000"));
+        files = Integer.parseInt(values.getOrDefault("files", "200"));
+        fileSize = Integer.parseInt(values.getOrDefault("file-size", "65536"));
+        importRows = Integer.parseInt(values.getOrDefault("import-rows", "100"));
+        bcrypt = Integer.parseInt(values.getOrDefault("bcrypt", "10"));
+        maxErrorRate = Double.parseDouble(values.getOrDefault("max-error-rate", "0.01"));
+        out = values.getOrDefault("out", "target/loadtest-result.json");
+        
+        for (Endpoint endpoint : Endpoint.values()) {
+            mix.put(endpoint, endpoint.defaultWeight);
+        }
+        // 例如 mix=login:10,files:50,download:40，没有列出的请求类型权重为 0
+        if (values.containsKey("mix")) {
+            mix.replaceAll((endpoint, weight) -> 0);
+            for (String item : values.get("mix").split(",")) {
+                String[] pair = item.split(":");
+                mix.put(Endpoint.of(pair[0].trim()), Integer.parseInt(pair[1].trim()));
+            }
+        }
+        
+        picks = new Endpoint[mix.values().stream().mapToInt(Integer::intValue).sum()];
+        int next = 0;
+        for (Map.Entry<Endpoint, Integer> entry : mix.entrySet()) {
+            for (int i = 0; i < entry.getValue(); i++) {
+                picks[next++] = entry.getKey();
+            }
+        }
+        if (picks.length == 0) {
+            throw new IllegalArgumentException("mix has no endpoint with a positive weight");
+        }
+    }
+    
+    int totalWeight() {
+        return picks.length;
+    }
+    
+    /**
+     * 按权重选出请求类型
+     *
+     * @param random [0, totalWeight) 之间的随机数
+     * @return 请求类型
+     */
+    Endpoint pick(int random) {
+        return picks[random];
+    }
+    
+    Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("clients", clients);
+        map.put("warmup", warmup);
+        map.put("duration", duration);
+        map.put("think", think);
+        map.put("users", users);
+        map.put("files", files);
+        map.put("fileSize", fileSize);
+        map.put("importRows", importRows);
+        map.put("bcrypt", bcrypt);
+        Map<String, Integer> weights = new LinkedHashMap<>();
+        mix.forEach((endpoint, weight) -> weights.put(endpoint.label, weight));
+        map.put("mix", weights);
+        return map;
+    }
+}
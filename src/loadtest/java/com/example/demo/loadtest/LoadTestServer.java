@@ -0,0 +1,51 @@
+package com.example.demo.loadtest;
+
+import com.example.demo.DemoApplication;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * 在压测进程中启动整个应用：内嵌 H2 数据库（test 配置）、随机端口、临时目录中的 FileStore 和导出目录，
+ * 不依赖 MySQL，结果可以在不同提交之间比较
+ */
+class LoadTestServer {
+    
+    private final Path root;
+    
+    private final ConfigurableApplicationContext context;
+    
+    LoadTestServer(int bcryptStrength) throws IOException {
+        root = Files.createTempDirectory("loadtest");
+        // 在 main 线程中启动时 devtools 会用空参数重新执行 main，压测进程里关掉它
+        System.setProperty("spring.devtools.restart.enabled", "false");
+        context = new SpringApplicationBuilder(DemoApplication.class)
+                .profiles("test")
+                .properties("server.port=0",
+                        "file.store.root=" + root.resolve("files"),
+                        "export.jobs.dir=" + root.resolve("exports"),
+                        "password.bcrypt.strength=" + bcryptStrength,
+                        "spring.jpa.show-sql=false",
+                        "logging.level.root=warn")
+                .run();
+    }
+    
+    <T> T getBean(Class<T> type) {
+        return context.getBean(type);
+    }
+    
+    String url(String path) {
+        int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+        return "http://localhost:" + port + path;
+    }
+    
+    void close() throws IOException {
+        context.close();
+        FileSystemUtils.deleteRecursively(root);
+    }
+}
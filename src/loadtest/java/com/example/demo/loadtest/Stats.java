@@ -0,0 +1,98 @@
+package com.example.demo.loadtest;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按请求类型记录延迟和失败次数。只在预热结束后记录，百分位在整个测量期间内累计，不随时间衰减
+ */
+class Stats {
+    
+    private final MeterRegistry registry = new SimpleMeterRegistry();
+    
+    private final Map<Endpoint, Timer> timers = new EnumMap<>(Endpoint.class);
+    
+    private final Map<Endpoint, Counter> errors = new EnumMap<>(Endpoint.class);
+    
+    private volatile boolean recording;
+    
+    private long startedAt;
+    
+    private long stoppedAt;
+    
+    Stats(Duration duration) {
+        for (Endpoint endpoint : Endpoint.values()) {
+            timers.put(endpoint, Timer.builder("loadtest.request")
+                    .tag("endpoint", endpoint.label)
+                    .publishPercentiles(0.5, 0.99)
+                    .percentilePrecision(2)
+                    .distributionStatisticExpiry(duration.plusHours(1))
+                    .distributionStatisticBufferLength(1)
+                    .register(registry));
+            errors.put(endpoint, registry.counter("loadtest.errors", "endpoint", endpoint.label));
+        }
+    }
+    
+    void start() {
+        startedAt = System.nanoTime();
+        recording = true;
+    }
+    
+    void stop() {
+        recording = false;
+        stoppedAt = System.nanoTime();
+    }
+    
+    /**
+     * 记录一次请求
+     *
+     * @param endpoint 请求类型
+     * @param nanos    从发出请求到读完响应的时间
+     * @param ok       状态码是否符合预期
+     */
+    void record(Endpoint endpoint, long nanos, boolean ok) {
+        if (!recording) {
+            return;
+        }
+        timers.get(endpoint).record(nanos, TimeUnit.NANOSECONDS);
+        if (!ok) {
+            errors.get(endpoint).increment();
+        }
+    }
+    
+    /**
+     * 汇总每种请求的次数、失败次数、每秒请求数和 p50/p99/最大延迟（毫秒）
+     *
+     * @return 请求类型到汇总结果，没有请求的类型不出现
+     */
+    Map<String, Map<String, Object>> summary() {
+        double seconds = (stoppedAt - startedAt) / 1e9;
+        Map<String, Map<String, Object>> summary = new LinkedHashMap<>();
+        for (Endpoint endpoint : Endpoint.values()) {
+            HistogramSnapshot snapshot = timers.get(endpoint).takeSnapshot();
+            if (snapshot.count() == 0) {
+                continue;
+            }
+            Map<String, Object> row = new LinkedHashMap<>();
+            row.put("requests", snapshot.count());
+            row.put("errors", (long) errors.get(endpoint).count());
+            row.put("throughput", snapshot.count() / seconds);
+            for (ValueAtPercentile percentile : snapshot.percentileValues()) {
+                row.put(percentile.percentile() == 0.5 ? "p50" : "p99", percentile.value(TimeUnit.MILLISECONDS));
+            }
+            row.put("max", snapshot.max(TimeUnit.MILLISECONDS));
+            summary.put(endpoint.label, row);
+        }
+        return summary;
+    }
+}
@@ -0,0 +1,223 @@
+package com.example.demo.loadtest;
+
+import cn.hutool.poi.excel.ExcelUtil;
+import cn.hutool.poi.excel.ExcelWriter;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * 一个虚拟客户端：用自己的账号登录，然后按权重随机选择请求，一个接一个地发送，直到被停止
+ */
+class VirtualClient implements Runnable {
+    
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+    
+    private final HttpClient client;
+    
+    private final Function<String, String> url;
+    
+    private final LoadTestConfig config;
+    
+    private final List<Integer> fileIds;
+    
+    private final Stats stats;
+    
+    private final String username;
+    
+    private volatile boolean running = true;
+    
+    private String token;
+    
+    private String refreshToken;
+    
+    /**
+     * 访问令牌的过期时间，System.nanoTime 的值
+     */
+    private long expiresAt;
+    
+    VirtualClient(HttpClient client, Function<String, String> url, LoadTestConfig config,
+                  List<Integer> fileIds, Stats stats, int index) {
+        this.client = client;
+        this.url = url;
+        this.config = config;
+        this.fileIds = fileIds;
+        this.stats = stats;
+        this.username = LoadTest.username(index % config.users);
+    }
+    
+    void stop() {
+        running = false;
+    }
+    
+    @Override
+    public void run() {
+        try {
+            login();
+            while (running) {
+                Endpoint endpoint = config.pick(ThreadLocalRandom.current().nextInt(config.totalWeight()));
+                renew();
+                long start = System.nanoTime();
+                boolean ok;
+                try {
+                    ok = send(endpoint);
+                } catch (IOException e) {
+                    ok = false;
+                }
+                stats.record(endpoint, System.nanoTime() - start, ok);
+                if (config.think > 0) {
+                    Thread.sleep(config.think);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * 发送一个请求并读完响应
+     *
+     * @param endpoint 请求类型
+     * @return 状态码符合预期时为 true
+     */
+    private boolean send(Endpoint endpoint) throws IOException, InterruptedException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        switch (endpoint) {
+            case LOGIN:
+                return login();
+            case USERS:
+                return get("/api/user?size=100&cursor=" + random.nextInt(config.users)) == 200;
+            case SEARCH:
+                return get("/api/user/search?q=" + LoadTest.username(random.nextInt(config.users))) == 200;
+            case FILES:
+                return get("/api/file?size=100") == 200;
+            case DOWNLOAD:
+                return get("/api/file/" + fileIds.get(random.nextInt(fileIds.size()))) == 200;
+            case UPLOAD:
+                byte[] content = new byte[config.fileSize];
+                random.nextBytes(content);
+                return post("/api/file", "file", "upload.bin", "application/octet-stream", content) == 201;
+            case IMPORT:
+                return post("/api/user/import", "file", "users.xlsx",
+                        "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet", workbook()) == 201;
+            case EXPORT:
+                return get("/api/user/export") == 200;
+            default:
+                throw new IllegalStateException("unknown endpoint " + endpoint);
+        }
+    }
+    
+    /**
+     * 登录并保存令牌
+     *
+     * @return 登录成功时为 true
+     */
+    private boolean login() throws IOException, InterruptedException {
+        Map<String, String> body = new LinkedHashMap<>();
+        body.put("username", username);
+        body.put("password", LoadTest.PASSWORD);
+        return authenticate("/api/login", body);
+    }
+    
+    /**
+     * 访问令牌快要过期时用刷新令牌换一对新的，刷新失败时重新登录。不计入结果
+     */
+    private void renew() throws IOException, InterruptedException {
+        if (System.nanoTime() < expiresAt) {
+            return;
+        }
+        if (refreshToken == null || !authenticate("/api/login/refresh", Map.of("refreshToken", refreshToken))) {
+            login();
+        }
+    }
+    
+    private boolean authenticate(String path, Map<String, String> body) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url.apply(path)))
+                .timeout(Duration.ofSeconds(config.timeout))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(MAPPER.writeValueAsString(body)))
+                .build();
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            return false;
+        }
+        Map<?, ?> tokens = MAPPER.readValue(response.body(), Map.class);
+        token = (String) tokens.get("token");
+        refreshToken = (String) tokens.get("refreshToken");
+        // 提前 30 秒刷新，避免请求在路上过期
+        long seconds = ((Number) tokens.get("expiresIn")).longValue();
+        expiresAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(Math.max(0, seconds - 30));
+        return true;
+    }
+    
+    private int get(String path) throws IOException, InterruptedException {
+        HttpRequest request = authorized(path).GET().build();
+        return client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+    
+    private int post(String path, String name, String filename, String contentType,
+                     byte[] content) throws IOException, InterruptedException {
+        String boundary = UUID.randomUUID().toString();
+        List<byte[]> parts = new ArrayList<>();
+        parts.add(("--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"" + name + "\"; filename=\"" + filename + "\"\r\n"
+                + "Content-Type: " + contentType + "\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        parts.add(content);
+        parts.add(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+        HttpRequest request = authorized(path)
+                .header("Content-Type", "multipart/form-data; boundary=" + boundary)
+                .POST(HttpRequest.BodyPublishers.ofByteArrays(parts))
+                .build();
+        return client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+    
+    private HttpRequest.Builder authorized(String path) {
+        return HttpRequest.newBuilder(URI.create(url.apply(path)))
+                .timeout(Duration.ofSeconds(config.timeout))
+                .header("Authorization", "Bearer " + token);
+    }
+    
+    /**
+     * 生成一个包含新用户的 xlsx，用户名不与已有的重复
+     *
+     * @return xlsx 的内容
+     */
+    private byte[] workbook() {
+        long batch = SEQUENCE.incrementAndGet();
+        List<Map<String, Object>> rows = new ArrayList<>(config.importRows);
+        for (int i = 0; i < config.importRows; i++) {
+            Map<String, Object> row = new LinkedHashMap<>();
+            row.put("username", "import" + batch + "_" + i);
+            row.put("passwordHash", LoadTest.passwordHash());
+            row.put("nickname", "导入" + i);
+            row.put("email", "import" + batch + "_" + i + "@example.com");
+            rows.add(row);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ExcelWriter writer = ExcelUtil.getWriter(true);
+        writer.write(rows, true);
+        writer.flush(out, true);
+        writer.close();
+        return out.toByteArray();
+    }
+}
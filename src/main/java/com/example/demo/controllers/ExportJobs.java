@@ -0,0 +1,81 @@
+package com.example.demo.controllers;
+
+import com.example.demo.services.ExportJob;
+import com.example.demo.services.ExportJobService;
+import com.example.demo.utils.FileSender;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.WebAsyncTask;
+
+import javax.annotation.Resource;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * 后台导出用户：提交任务，查询进度，完成后下载结果。导出期间不占用请求线程和连接
+ */
+@RestController
+@RequestMapping("/api/user/export/jobs")
+public class ExportJobs {
+    
+    @Resource
+    ExportJobService exportJobService;
+    
+    @Resource
+    FileSender fileSender;
+    
+    /**
+     * 提交导出任务。用户数据没有变化时返回上一次的任务，它可能已经完成
+     *
+     * @return 任务的状态，Location 头指向查询地址
+     */
+    @PostMapping()
+    public ResponseEntity<Object> createJob() {
+        ExportJob job = exportJobService.submit();
+        return ResponseEntity.status(202)
+                .header("Location", "/api/user/export/jobs/" + job.getId())
+                .body(job);
+    }
+    
+    /**
+     * 查询任务的状态和已经写出的行数
+     *
+     * @param id 任务 id
+     * @return 任务的状态
+     */
+    @GetMapping("/{id}")
+    public ResponseEntity<Object> getJob(@PathVariable("id") String id) {
+        ExportJob job = exportJobService.get(id);
+        if (job == null) {
+            return ResponseEntity.status(404).build();
+        }
+        return ResponseEntity.status(200).body(job);
+    }
+    
+    /**
+     * 下载完成的结果，支持 Range 和 If-None-Match。任务还没有完成时返回 409
+     *
+     * @param id       任务 id
+     * @param request  请求对象
+     * @param response 响应对象
+     * @return 在后台发送时返回异步任务，否则返回 null
+     */
+    @GetMapping("/{id}/file")
+    public WebAsyncTask<Void> downloadJob(@PathVariable("id") String id,
+                                          HttpServletRequest request,
+                                          HttpServletResponse response) throws IOException {
+        ExportJob job = exportJobService.get(id);
+        if (job == null) {
+            response.sendError(404);
+            return null;
+        }
+        if (job.getState() != ExportJob.State.DONE) {
+            response.sendError(409, "export is " + job.getState());
+            return null;
+        }
+        return fileSender.send(request, response, job.getPath().toFile(), "\"" + job.getId() + "\"", "users.xlsx",
+                bytes -> {
+                });
+    }
+}
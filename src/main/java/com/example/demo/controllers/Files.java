@@ -1,27 +1,50 @@
 package com.example.demo.controllers;
 
-import com.auth0.jwt.JWT;
+import com.example.demo.models.FileBlob;
+import com.example.demo.models.FileBlobRepository;
 import com.example.demo.models.FileRepository;
-import com.example.demo.models.User;
-import com.example.demo.models.UserRepository;
-import org.springframework.core.io.InputStreamResource;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.MediaType;
+import com.example.demo.models.FileSummary;
+import com.example.demo.services.CounterService;
+import com.example.demo.services.ExportFormat;
+import com.example.demo.services.ExportService;
+import com.example.demo.services.FileService;
+import com.example.demo.services.FileStore;
+import com.example.demo.services.FileTypeStatService;
+import com.example.demo.services.UsageService;
+import com.example.demo.utils.AuthUser;
+import com.example.demo.utils.FileSender;
+import com.example.demo.utils.MyMetricsConfig;
+import com.example.demo.utils.Pagination;
+import com.example.demo.utils.TransferPool;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.WebAsyncTask;
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.multipart.MultipartHttpServletRequest;
 
 import javax.annotation.Resource;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-
-import static com.example.demo.utils.MiddleWare.getTokenFrom;
+import java.util.Set;
+import java.util.function.LongConsumer;
 
 /**
  * 它是一个处理文件上传和下载的控制器
@@ -31,61 +54,123 @@ import static com.example.demo.utils.MiddleWare.getTokenFrom;
 public class Files {
     
     @Resource
-    UserRepository userRepository;
+    FileRepository fileRepository;
     
     @Resource
-    FileRepository fileRepository;
+    FileBlobRepository fileBlobRepository;
+    
+    @Resource
+    FileSender fileSender;
+    
+    @Resource
+    FileService fileService;
+    
+    @Resource
+    ExportService exportService;
+    
+    @Resource
+    FileStore fileStore;
+    
+    @Resource
+    CounterService counterService;
+    
+    @Resource
+    FileTypeStatService fileTypeStatService;
+    
+    @Resource
+    TransferPool transferPool;
+    
+    @Resource
+    UsageService usageService;
+    
+    @Resource
+    MeterRegistry meterRegistry;
+    
+    @Value("${file.batch.max-size:10000}")
+    int batchMaxSize;
+    
+    /**
+     * 单个请求上传的请求体上限。multipart 请求体在请求线程上接收和解析，只用于小文件，
+     * 更大的文件用 /api/file/uploads 分块上传
+     */
+    @Value("${file.upload.multipart-max-size:8388608}")
+    long multipartMaxSize;
     
     /**
-     * 它从授权标头中获取令牌，对其进行解码，并从解码后的令牌中获取用户 ID。如果用户 id
-     * 为空，则返回错误。否则，它从数据库中获取用户，从数据库中获取用户拥有或打开下载的所有文件，并返回它们
+     * 返回一页当前用户拥有或打开下载的文件。按 id 做键集分页，只查询列表需要的列和所有者的用户名，一条语句完成
      *
-     * @param authorization 包含 JWT 令牌的授权标头。
+     * @param principal 当前登录的用户
+     * @param cursor    上一页响应头 X-Next-Cursor 的值，第一页不传
+     * @param size      页大小，最大 1000
+     * @param sort      按 id 排序的方向，asc 或 desc
+     * @param filetype  文件类型，不传时不过滤
      * @return 打开以供下载或由用户拥有的文件列表。
      */
     @GetMapping()
-    public ResponseEntity<Object> getFiles(@RequestHeader("authorization") String authorization) {
-        String token = getTokenFrom(authorization);
-        Map<String, ?> decodedToken = JWT.decode(token).getClaims().get(
-                "userForToken").asMap();
-        if (decodedToken.get("id") == null) {
+    public ResponseEntity<Object> getFiles(@AuthenticationPrincipal AuthUser principal,
+                                           @RequestParam(required = false) Integer cursor,
+                                           @RequestParam(defaultValue = "100") int size,
+                                           @RequestParam(defaultValue = "asc") String sort,
+                                           @RequestParam(required = false) String filetype) {
+        int userId = principal.getId();
+        PageRequest pageable = Pagination.limit(size);
+        boolean descending = Pagination.descending(sort);
+        int start = Pagination.cursor(cursor, descending);
+        List<FileSummary> files = descending ?
+                fileRepository.findPageBefore(userId, start, filetype, pageable.getPageSize()) :
+                fileRepository.findPageAfter(userId, start, filetype, pageable.getPageSize());
+        return Pagination.page(files, pageable, FileSummary::getId);
+    }
+    
+    /**
+     * 导出当前用户拥有或打开下载的所有文件，列和文件列表相同。格式取自 format 参数，没有时按 Accept 头协商，
+     * 默认 xlsx。数据按页从数据库读出后直接写到响应流
+     *
+     * @param principal 当前登录的用户
+     * @param format    导出格式，xlsx、csv 或 ndjson
+     * @param accept    Accept 请求头
+     * @param response  HttpServlet响应
+     * @return format 不是已知格式时返回 400，否则数据已经写到响应中，返回 null
+     */
+    @GetMapping("/export")
+    public ResponseEntity<Object> exportFiles(@AuthenticationPrincipal AuthUser principal,
+                                              @RequestParam(required = false) String format,
+                                              @RequestHeader(value = "Accept", required = false) String accept,
+                                              HttpServletResponse response) throws IOException {
+        ExportFormat exportFormat = ExportFormat.resolve(format, accept);
+        if (exportFormat == null) {
             Map<String, String> map = new HashMap<>();
-            map.put("error", "token missing or invalid");
-            return ResponseEntity.status(401).body(map);
+            map.put("error", "不支持的导出格式");
+            return ResponseEntity.status(400).body(map);
         }
-        
-        User user = userRepository.getById((Integer) decodedToken.get("id"));
-        List<com.example.demo.models.File> files =
-                fileRepository.findAllByUserOrOpenDownload(user, true);
-        return ResponseEntity.status(200).body(files);
+        response.setContentType(exportFormat.getContentType());
+        String filename = URLEncoder.encode("文件信息", StandardCharsets.UTF_8);
+        response.setHeader("Content-Disposition", "attachment;filename=" + filename + "." + exportFormat.getExtension());
+        ServletOutputStream out = response.getOutputStream();
+        exportService.writeFiles(out, exportFormat, principal.getId());
+        out.close();
+        return null;
     }
     
     /**
-     * 如果用户被授权，则使用给定的 id 更新文件
+     * 如果用户被授权，则使用给定的 id 更新文件。只能修改文件名和是否公开下载，请求中的大小和类型会被忽略
      *
-     * @param id            您要更新的文件的 id
-     * @param file          正在更新的文件对象。
-     * @param authorization 包含 JWT 令牌的授权标头。
+     * @param id        您要更新的文件的 id
+     * @param file      正在更新的文件对象。
+     * @param principal 当前登录的用户
      * @return 正在返回一个 ResponseEntity 对象。
      */
     @PutMapping("/{id}")
     public ResponseEntity<Object> updateFile(@PathVariable("id") int id,
                                              @RequestBody com.example.demo.models.File file,
-                                             @RequestHeader("authorization") String authorization) {
-        String token = getTokenFrom(authorization);
-        Map<String, ?> decodedToken = JWT.decode(token).getClaims().get(
-                "userForToken").asMap();
-        if (decodedToken.get("id") == null) {
-            Map<String, String> map = new HashMap<>();
-            map.put("error", "token missing or invalid");
-            return ResponseEntity.status(401).body(map);
+                                             @AuthenticationPrincipal AuthUser principal) {
+        com.example.demo.models.File file1 = fileRepository.findById(id).orElse(null);
+        if (file1 == null) {
+            return ResponseEntity.status(404).build();
         }
         
-        com.example.demo.models.File file1 = fileRepository.getById(id);
-        
-        if (file1.getUser().getId().equals(decodedToken.get("id"))) {
-            file.setUser(file1.getUser());
-            fileRepository.saveAndFlush(file);
+        if (file1.getUser().getId().equals(principal.getId())) {
+            fileService.update(file1, file);
             return ResponseEntity.status(200).body(file);
         }
         
@@ -95,26 +180,20 @@ public class Files {
     /**
      * 如果用户被授权删除文件，删除它
      *
-     * @param id            要删除的文件的id
-     * @param authorization 包含 JWT 令牌的授权标头。
+     * @param id        要删除的文件的id
+     * @param principal 当前登录的用户
      * @return 正在返回一个 ResponseEntity 对象。
      */
     @DeleteMapping("/{id}")
     public ResponseEntity<Object> deleteUser(@PathVariable("id") int id,
-                                             @RequestHeader("authorization") String authorization) {
-        String token = getTokenFrom(authorization);
-        Map<String, ?> decodedToken = JWT.decode(token).getClaims().get(
-                "userForToken").asMap();
-        if (decodedToken.get("id") == null) {
-            Map<String, String> map = new HashMap<>();
-            map.put("error", "token missing or invalid");
-            return ResponseEntity.status(401).body(map);
+                                             @AuthenticationPrincipal AuthUser principal) {
+        com.example.demo.models.File file = fileRepository.findById(id).orElse(null);
+        if (file == null) {
+            return ResponseEntity.status(404).build();
         }
         
-        com.example.demo.models.File file = fileRepository.getById(id);
-        
-        if (file.getUser() == decodedToken.get("id")) {
-            fileRepository.deleteById(id);
+        if (file.getUser().getId().equals(principal.getId())) {
+            fileService.delete(file);
             return ResponseEntity.status(204).build();
         }
         
@@ -122,131 +201,155 @@ public class Files {
     }
     
     /**
-     * 它接受一个文件、一个请求和一个授权标头，并返回一个带有文件的响应实体
+     * 在一个事务中删除一组文件。只要有一个文件不存在或不属于当前用户，就一个也不删除。
+     * 请求中只删除数据库记录，磁盘上的内容由 BlobCollector 在后台回收
      *
-     * @param file          要上传的文件。
-     * @param request       请求对象
-     * @param authorization 在请求标头中发送的令牌
-     * @return 正在返回文件。
+     * @param ids       要删除的文件的 id
+     * @param principal 当前登录的用户
+     * @return 正在返回一个 ResponseEntity 对象。
      */
-    @PostMapping()
-    public ResponseEntity<Object> uploadFile(MultipartFile file,
-                                             HttpServletRequest request,
-                                             @RequestHeader("authorization") String authorization) {
-        String token = getTokenFrom(authorization);
-        Map<String, ?> decodedToken = JWT.decode(token).getClaims().get(
-                "userForToken").asMap();
-        if (decodedToken.get("id") == null) {
+    @PostMapping("/delete")
+    public ResponseEntity<Object> deleteFiles(@RequestBody List<Integer> ids,
+                                              @AuthenticationPrincipal AuthUser principal) {
+        Set<Integer> wanted = new LinkedHashSet<>(ids);
+        if (wanted.size() > batchMaxSize) {
             Map<String, String> map = new HashMap<>();
-            map.put("error", "token missing or invalid");
-            return ResponseEntity.status(401).body(map);
+            map.put("error", "at most " + batchMaxSize + " files per request");
+            return ResponseEntity.status(400).body(map);
         }
         
-        File filePath = new File(this.getClass().getResource("/").getPath(), "/file");
+        List<com.example.demo.models.File> files = fileRepository.findAllById(wanted);
+        List<Integer> forbidden = new ArrayList<>();
+        for (com.example.demo.models.File file : files) {
+            wanted.remove(file.getId());
+            if (!file.getUser().getId().equals(principal.getId())) {
+                forbidden.add(file.getId());
+            }
+        }
+        if (!wanted.isEmpty() || !forbidden.isEmpty()) {
+            Map<String, Object> map = new HashMap<>();
+            map.put("error", wanted.isEmpty() ? "forbidden" : "file not found");
+            map.put("ids", wanted.isEmpty() ? forbidden : wanted);
+            return ResponseEntity.status(wanted.isEmpty() ? 403 : 404).body(map);
+        }
         
-        if (!filePath.exists()) {
-            filePath.mkdirs();
+        fileService.deleteAll(files);
+        return ResponseEntity.status(204).build();
+    }
+    
+    /**
+     * 它接受一个文件，把文件保存为当前用户的文件，并返回一个带有文件的响应实体。
+     * 内容按 SHA-256 去重，相同的内容在磁盘上只存一份。计算哈希和写入存储在 TransferPool 中进行，不占用请求线程。
+     * 请求体在请求线程上接收，Content-Length 超过 multipartMaxSize 时在读取之前返回 413，大文件应当分块上传。
+     * 会超过配额时返回 413：QuotaInterceptor 先按 Content-Length 检查，这里再按文件大小检查，提交时在事务中最终确认
+     *
+     * @param request   multipart 请求，延迟解析，检查过大小后才读取其中的文件
+     * @param principal 当前登录的用户
+     * @return 正在返回文件。
+     */
+    @PostMapping()
+    public WebAsyncTask<ResponseEntity<Object>> uploadFile(MultipartHttpServletRequest request,
+                                                           @AuthenticationPrincipal AuthUser principal) {
+        if (request.getContentLengthLong() > multipartMaxSize) {
+            throw new MaxUploadSizeExceededException(multipartMaxSize);
         }
-        System.out.println(filePath);
+        MultipartFile file = request.getFile("file");
+        assert file != null;
         String filename = file.getOriginalFilename();
         assert filename != null;
-        User user = userRepository.getById((Integer) decodedToken.get("id"));
-        com.example.demo.models.File file1 = new com.example.demo.models.File()
-                .setFilename(filename)
-                .setFiletype(file.getContentType())
-                .setFilesize(file.getSize())
-                .setUser(user);
-        fileRepository.saveAndFlush(file1);
-        filename = file1.getId() + "_" + filename;
-        File dest = new File(filePath, filename);
-        
-        try {
-            file.transferTo(dest);
-        } catch (IOException e) {
-            e.printStackTrace();
-            fileRepository.deleteById(file1.getId());
-            return ResponseEntity.status(500).build();
-        }
+        Integer userId = principal.getId();
+        usageService.check(userId, file.getSize());
         
-        return ResponseEntity.status(201).body(file1);
+        return transferPool.submit(file.getSize(), () -> {
+            try (InputStream in = file.getInputStream()) {
+                com.example.demo.models.File file1 =
+                        fileService.upload(in, filename, file.getContentType(), userId);
+                return ResponseEntity.status(201).body(file1);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return ResponseEntity.status(500).build();
+            }
+        });
     }
     
     /**
-     * 它获取文件id，在数据库中找到文件，然后将文件返回给用户
+     * 它获取文件id，在数据库中找到文件，然后将文件返回给用户。支持 Range 断点续传和 If-None-Match 条件请求。
+     * 大文件在后台发送，请求线程立即返回；压缩保存的文件按 Accept-Encoding 原样或解压发送。
+     * 按文件类型记录 file.download 计时器和 file.download.bytes，后者是实际发送的字节数
      *
-     * @param id 你要下载的文件的id
-     * @return 一份文件
+     * @param id       你要下载的文件的id
+     * @param request  请求对象
+     * @param response 响应对象
+     * @return 在后台发送时返回异步任务，否则返回 null
      */
     @GetMapping("/{id}")
-    public ResponseEntity<Object> downloadFile(@PathVariable("id") int id
-    ) throws FileNotFoundException {
-        File filePath = new File(this.getClass().getResource("/").getPath(), "/file");
-        
-        com.example.demo.models.File file = fileRepository.getById(id);
-        
-        String filename = file.getId() + "_" + file.getFilename();
-        
-        File file1 = new File(filePath, filename);
-        filename = file.getFilename();
-        InputStreamResource resource = new InputStreamResource(new FileInputStream(file1));
-        
-        HttpHeaders headers = new HttpHeaders();
-        headers.add("Cache-Control", "no-cache, no-store, must-revalidate");
-        headers.add("Content-Disposition", String.format("attachment; filename=\"%s\"", filename));
-        headers.add("Pragma", "no-cache");
-        headers.add("Expires", "0");
-        headers.add("Access-Control-Expose-Headers", "Content-Disposition");
-        headers.add("content-type", "application/vnd.ms-excel;charset=UTF-8");
+    public WebAsyncTask<Void> downloadFile(@PathVariable("id") int id,
+                                           HttpServletRequest request,
+                                           HttpServletResponse response) throws IOException {
+        com.example.demo.models.File file = fileRepository.findById(id).orElse(null);
+        if (file == null) {
+            response.sendError(404);
+            return null;
+        }
         
-        return ResponseEntity
-                .ok()
-                .headers(headers)
-                .contentLength(file1.length())
-                .contentType(MediaType.parseMediaType("application/octet-stream"))
-                .body(resource);
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String type = MyMetricsConfig.fileType(file.getFiletype());
+        Path blob = fileStore.locate(file);
+        File file1 = blob.toFile();
+        LongConsumer sent = bytes -> {
+            meterRegistry.counter("file.download.bytes", "type", type).increment(bytes);
+            sample.stop(meterRegistry.timer("file.download", "type", type));
+        };
+        if (fileStore.compressed(blob)) {
+            // 原始长度以写入时登记的内容为准，File 的 filesize 可能为空
+            FileBlob stored = fileBlobRepository.findById(file.getHash()).orElse(null);
+            if (stored == null) {
+                response.sendError(404);
+                return null;
+            }
+            String etag = "\"" + file.getId() + "-" + stored.getSize() + "\"";
+            return fileSender.sendCompressed(request, response, file1, stored.getSize(), etag,
+                    file.getFilename(), sent);
+        }
+        String etag = "\"" + file.getId() + "-" + file1.length() + "\"";
+        return fileSender.send(request, response, file1, etag, file.getFilename(), sent);
     }
     
     /**
-     * 它从请求中获取授权标头，提取令牌，对其进行解码，然后检查令牌是否有效。如果是，则返回数据库中的文件数
+     * 返回文件数，令牌由 JwtAuthenticationFilter 验证。计数由 CounterService 在内存中维护，不查询数据库
      *
-     * @param authorization 授权标头是标准的 HTTP 标头。它用于将用户凭据（用户名和密码）发送到服务器。
+     * @param principal 当前登录的用户
      * @return 数据库中的文件数。
      */
     @GetMapping("/count")
-    public ResponseEntity<Object> getCount(@RequestHeader("authorization") String authorization) {
-        String token = getTokenFrom(authorization);
-        Map<String, ?> decodedToken = JWT.decode(token).getClaims().get(
-                "userForToken").asMap();
-        if (decodedToken.get("id") == null) {
-            Map<String, String> map = new HashMap<>();
-            map.put("error", "token missing or invalid");
-            return ResponseEntity.status(401).body(map);
-        }
-        
-        long count = fileRepository.count();
+    public ResponseEntity<Object> getCount(@AuthenticationPrincipal AuthUser principal) {
+        long count = counterService.files();
         return ResponseEntity.status(200).body(count);
     }
     
     /**
-     * 该函数用于获取用户上传的文件的文件类型
+     * 该函数用于获取用户上传的文件的文件类型，以及每种类型的文件数、总字节数和最大文件。
+     * 统计是增量维护的，代价与类型数有关，与文件数无关
      *
-     * @param authorization 从前端发送的令牌。
-     * @return 文件类型列表
+     * @param principal 当前登录的用户
+     * @return 文件类型列表和统计
      */
     @GetMapping("/type")
-    public ResponseEntity<Object> getType(@RequestHeader("authorization") String authorization) {
-        String token = getTokenFrom(authorization);
-        Map<String, ?> decodedToken = JWT.decode(token).getClaims().get(
-                "userForToken").asMap();
-        if (decodedToken.get("id") == null) {
-            Map<String, String> map = new HashMap<>();
-            map.put("error", "token missing or invalid");
-            return ResponseEntity.status(401).body(map);
-        }
-        
-        Map<String, List<String>> map = new HashMap<>();
-        List<String> list = fileRepository.getFiletype();
-        map.put("filetype", list);
+    public ResponseEntity<Object> getType(@AuthenticationPrincipal AuthUser principal) {
+        Map<String, Object> map = new HashMap<>();
+        map.put("filetype", fileTypeStatService.names());
+        map.put("stats", fileTypeStatService.list());
         return ResponseEntity.status(200).body(map);
     }
+    
+    /**
+     * 从文件表重新汇总文件类型统计，用于修正偏差
+     *
+     * @param principal 当前登录的用户
+     * @return 重建后的统计
+     */
+    @PostMapping("/type/rebuild")
+    public ResponseEntity<Object> rebuildType(@AuthenticationPrincipal AuthUser principal) {
+        return ResponseEntity.status(200).body(fileTypeStatService.rebuild());
+    }
 }
@@ -1,13 +1,12 @@
 package com.example.demo.controllers;
 
-import com.auth0.jwt.JWT;
-import com.auth0.jwt.algorithms.Algorithm;
 import com.example.demo.models.User;
 import com.example.demo.models.UserRepository;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.env.Environment;
+import com.example.demo.services.CounterService;
+import com.example.demo.services.PasswordService;
+import com.example.demo.services.TokenService;
+import org.springframework.core.task.TaskExecutor;
 import org.springframework.http.ResponseEntity;
-import org.springframework.security.crypto.bcrypt.BCrypt;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -16,9 +15,11 @@ import org.springframework.web.bind.annotation.RestController;
 import javax.annotation.Resource;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
- * 它接受用户名和密码，检查密码是否正确，如果正确，则返回 JWT 令牌
+ * 它接受用户名和密码，检查密码是否正确，如果正确，则返回 JWT 访问令牌和刷新令牌
  */
 @RestController
 @RequestMapping("/api/login")
@@ -27,39 +28,94 @@ public class Login {
     @Resource
     UserRepository userRepository;
     
-    @Autowired
-    Environment env;
+    @Resource
+    PasswordService passwordService;
+    
+    @Resource
+    CounterService counterService;
+    
+    @Resource
+    TokenService tokenService;
+    
+    @Resource
+    TaskExecutor applicationTaskExecutor;
     
     /**
-     * 如果用户名和密码正确，则创建一个令牌并将其返回给用户
+     * 如果用户名和密码正确，则创建一对令牌并将其返回给用户。密码在 PasswordService 的线程池中校验，
+     * 请求线程不等待；哈希的工作因子与配置不同时，登录成功后顺便按新的工作因子重新计算
      *
      * @param body 请求的正文。
-     * @return 带有令牌、用户名和昵称的地图。
+     * @return 带有访问令牌、刷新令牌、访问令牌有效秒数、用户名和昵称的地图。
      */
     @PostMapping()
-    public ResponseEntity<Object> login(@RequestBody Map<String, ?> body) {
+    public CompletableFuture<ResponseEntity<Object>> login(@RequestBody Map<String, ?> body) {
         User user = userRepository.findByUsername((String) body.get("username"));
-        boolean passwordCorrect = user != null && BCrypt.checkpw((String) body.get(
-                "password"), user.getPasswordHash());
+        String password = (String) body.get("password");
+        if (user == null || password == null) {
+            return CompletableFuture.completedFuture(unauthorized());
+        }
         
-        if (user == null || !passwordCorrect) {
+        return passwordService.matches(password, user.getPasswordHash()).thenApply(passwordCorrect -> {
+            if (!passwordCorrect) {
+                return unauthorized();
+            }
+            if (passwordService.needsRehash(user.getPasswordHash())) {
+                rehash(user.getId(), password, user.getPasswordHash());
+            }
+            
+            Map<String, Object> map = tokenService.issue(user);
+            map.put("username", user.getUsername());
+            map.put("nickname", user.getNickname());
+            
+            return ResponseEntity.status(200).body(map);
+        });
+    }
+    
+    /**
+     * 用刷新令牌换一对新的令牌。刷新令牌中的令牌代数必须和数据库中的一致，修改密码或删除用户后不能再刷新
+     *
+     * @param body 请求的正文，包含 refreshToken
+     * @return 和登录相同的地图，刷新令牌无效时返回 401
+     */
+    @PostMapping("/refresh")
+    public ResponseEntity<Object> refresh(@RequestBody Map<String, ?> body) {
+        Object refreshToken = body.get("refreshToken");
+        User user = refreshToken instanceof String ? tokenService.refresh((String) refreshToken) : null;
+        if (user == null) {
             Map<String, String> map = new HashMap<>();
-            map.put("error", "invalid username or password");
+            map.put("error", "refresh token missing or invalid");
             return ResponseEntity.status(401).body(map);
         }
         
-        Map<String, Object> map = new HashMap<>();
-        map.put("username", user.getUsername());
-        map.put("id", user.getId());
-        
-        String token =
-                JWT.create().withClaim("userForToken", map).sign(Algorithm.HMAC256(env.getProperty("SECRET")));
-        
-        map.clear();
-        map.put("token", token);
+        Map<String, Object> map = tokenService.issue(user);
         map.put("username", user.getUsername());
         map.put("nickname", user.getNickname());
-        
         return ResponseEntity.status(200).body(map);
     }
+    
+    /**
+     * 按当前的工作因子重新计算哈希，在应用的任务线程池中保存，不占用计算哈希的线程。线程池已满时放弃，下次登录再试。
+     * 只在哈希仍是 oldHash 时保存，计算期间修改了密码就放弃
+     *
+     * @param id       用户 id
+     * @param password 明文密码
+     * @param oldHash  登录时校验过的哈希
+     */
+    private void rehash(Integer id, String password, String oldHash) {
+        try {
+            passwordService.hash(password).thenAcceptAsync(hash -> {
+                if (userRepository.updatePasswordHash(id, oldHash, hash) > 0) {
+                    counterService.touchUsers();
+                }
+            }, applicationTaskExecutor);
+        } catch (RejectedExecutionException e) {
+            // 不影响本次登录
+        }
+    }
+    
+    private ResponseEntity<Object> unauthorized() {
+        Map<String, String> map = new HashMap<>();
+        map.put("error", "invalid username or password");
+        return ResponseEntity.status(401).body(map);
+    }
 }
@@ -0,0 +1,159 @@
+package com.example.demo.controllers;
+
+import com.example.demo.models.File;
+import com.example.demo.services.ChunkedUploadService;
+import com.example.demo.services.UploadSession;
+import com.example.demo.utils.AuthUser;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
+import org.springframework.web.bind.annotation.*;
+
+import javax.annotation.Resource;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 可续传的分块上传：创建会话，按偏移 PUT 每一块，查询已收到的块，最后提交
+ */
+@RestController
+@RequestMapping("/api/file/uploads")
+public class Uploads {
+    
+    @Resource
+    ChunkedUploadService chunkedUploadService;
+    
+    /**
+     * 创建上传会话
+     *
+     * @param body      请求正文，包含 filename、filetype 和 size
+     * @param principal 当前登录的用户
+     * @return 会话 id、分块大小和分块数
+     */
+    @PostMapping()
+    public ResponseEntity<Object> createUpload(@RequestBody Map<String, ?> body,
+                                               @AuthenticationPrincipal AuthUser principal) throws IOException {
+        if (body.get("filename") == null || !(body.get("size") instanceof Number)) {
+            return error(400, "filename and size are required");
+        }
+        
+        UploadSession session;
+        try {
+            session = chunkedUploadService.create(principal.getId(), (String) body.get("filename"),
+                    (String) body.get("filetype"), ((Number) body.get("size")).longValue());
+        } catch (IllegalArgumentException e) {
+            return error(400, e.getMessage());
+        } catch (IllegalStateException e) {
+            return error(409, e.getMessage());
+        }
+        return ResponseEntity.status(201).body(status(session));
+    }
+    
+    /**
+     * 查询已经收到的分块
+     *
+     * @param id        会话 id
+     * @param principal 当前登录的用户
+     * @return 已收到和缺少的分块序号
+     */
+    @GetMapping("/{id}")
+    public ResponseEntity<Object> getUpload(@PathVariable("id") String id,
+                                            @AuthenticationPrincipal AuthUser principal) {
+        UploadSession session = chunkedUploadService.get(id, principal.getId());
+        if (session == null) {
+            return ResponseEntity.status(404).build();
+        }
+        return ResponseEntity.status(200).body(status(session));
+    }
+    
+    /**
+     * 上传一块。请求体就是这一块的原始字节，直接写进文件中 offset 处
+     *
+     * @param id        会话 id
+     * @param offset    这一块在文件中的偏移，必须是分块大小的整数倍
+     * @param request   请求对象，从中读取请求体
+     * @param principal 当前登录的用户
+     * @return 已收到和缺少的分块序号
+     */
+    @PutMapping("/{id}")
+    public ResponseEntity<Object> putChunk(@PathVariable("id") String id,
+                                           @RequestParam("offset") long offset,
+                                           HttpServletRequest request,
+                                           @AuthenticationPrincipal AuthUser principal) throws IOException {
+        UploadSession session = chunkedUploadService.get(id, principal.getId());
+        if (session == null) {
+            return ResponseEntity.status(404).build();
+        }
+        
+        try {
+            if (!chunkedUploadService.writeChunk(session, offset, request.getInputStream())) {
+                return error(400, "chunk length does not match");
+            }
+        } catch (IllegalArgumentException e) {
+            return error(400, e.getMessage());
+        } catch (IllegalStateException e) {
+            return error(409, e.getMessage());
+        }
+        return ResponseEntity.status(200).body(status(session));
+    }
+    
+    /**
+     * 所有分块到齐后提交，创建文件记录
+     *
+     * @param id        会话 id
+     * @param principal 当前登录的用户
+     * @return 新建的文件；还有分块没有收到时返回 409 和缺少的分块
+     */
+    @PostMapping("/{id}/commit")
+    public ResponseEntity<Object> commitUpload(@PathVariable("id") String id,
+                                               @AuthenticationPrincipal AuthUser principal) throws IOException {
+        UploadSession session = chunkedUploadService.get(id, principal.getId());
+        if (session == null) {
+            return ResponseEntity.status(404).build();
+        }
+        
+        File file = chunkedUploadService.commit(session);
+        if (file == null) {
+            return ResponseEntity.status(409).body(status(session));
+        }
+        return ResponseEntity.status(201).body(file);
+    }
+    
+    /**
+     * 放弃上传
+     *
+     * @param id        会话 id
+     * @param principal 当前登录的用户
+     * @return 状态码为 204 的响应实体，正在提交时返回 409
+     */
+    @DeleteMapping("/{id}")
+    public ResponseEntity<Object> abortUpload(@PathVariable("id") String id,
+                                              @AuthenticationPrincipal AuthUser principal) throws IOException {
+        UploadSession session = chunkedUploadService.get(id, principal.getId());
+        if (session == null) {
+            return ResponseEntity.status(404).build();
+        }
+        if (!chunkedUploadService.abort(session)) {
+            return error(409, "upload is being committed");
+        }
+        return ResponseEntity.status(204).build();
+    }
+    
+    private Map<String, Object> status(UploadSession session) {
+        Map<String, Object> map = new HashMap<>();
+        map.put("id", session.getId());
+        map.put("size", session.getSize());
+        map.put("chunkSize", session.getChunkSize());
+        map.put("chunks", session.chunks());
+        map.put("received", session.receivedChunks());
+        map.put("missing", session.missingChunks());
+        return map;
+    }
+    
+    private ResponseEntity<Object> error(int status, String message) {
+        Map<String, String> map = new HashMap<>();
+        map.put("error", message);
+        return ResponseEntity.status(status).body(map);
+    }
+}
@@ -1,20 +1,37 @@
 package com.example.demo.controllers;
 
-import cn.hutool.poi.excel.ExcelReader;
 import cn.hutool.poi.excel.ExcelUtil;
 import cn.hutool.poi.excel.ExcelWriter;
-import com.auth0.jwt.JWT;
 import com.example.demo.models.User;
 import com.example.demo.models.UserRepository;
+import com.example.demo.models.UserSummary;
+import com.example.demo.models.UserUsage;
+import com.example.demo.services.CounterService;
+import com.example.demo.services.ExportFormat;
+import com.example.demo.services.ExportService;
+import com.example.demo.services.ImportResult;
+import com.example.demo.services.PasswordService;
+import com.example.demo.services.TokenRevocationService;
+import com.example.demo.services.TokenService;
+import com.example.demo.services.UsageService;
+import com.example.demo.services.UserSearchIndex;
+import com.example.demo.services.UserService;
+import com.example.demo.utils.AuthUser;
+import com.example.demo.utils.Pagination;
+import org.hibernate.exception.ConstraintViolationException;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
-import org.springframework.security.crypto.bcrypt.BCrypt;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
 import javax.annotation.Resource;
+import javax.persistence.PersistenceException;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -24,11 +41,13 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-
-import static com.example.demo.utils.MiddleWare.getTokenFrom;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * 这是一个用于用户管理的 RESTful API
@@ -40,136 +59,239 @@ public class Users {
     @Resource
     UserRepository userRepository;
     
+    @Resource
+    UserService userService;
+    
+    @Resource
+    ExportService exportService;
+    
+    @Resource
+    CounterService counterService;
+    
+    @Resource
+    PasswordService passwordService;
+    
+    @Resource
+    UserSearchIndex userSearchIndex;
+    
+    @Resource
+    TaskExecutor applicationTaskExecutor;
+    
+    @Resource
+    UsageService usageService;
+    
+    @Resource
+    TokenService tokenService;
+    
+    @Resource
+    TokenRevocationService tokenRevocationService;
+    
     /**
-     * 它返回数据库中所有用户的列表
+     * 每次批量创建的最大用户数。要保证 password.batch-threads 个线程能在 spring.mvc.async.request-timeout 内算完，
+     * 否则客户端收到 503 而后台仍会提交，重试时得到 409
+     */
+    @Value("${user.batch.max-size:1000}")
+    int batchMaxSize;
+    
+    /**
+     * 它返回一页用户。按 id 做键集分页，第 N 页和第一页的代价相同；只查询列表需要的列，不加载实体
      *
+     * @param cursor   上一页响应头 X-Next-Cursor 的值，第一页不传
+     * @param size     页大小，最大 1000
+     * @param sort     按 id 排序的方向，asc 或 desc
+     * @param username 用户名前缀，不传时不过滤
      * @return 用户列表
      */
     @GetMapping()
-    public ResponseEntity<Object> getUsers() {
-        List<User> users = userRepository.findAll();
-        return ResponseEntity.status(200).body(users);
+    public ResponseEntity<Object> getUsers(@RequestParam(required = false) Integer cursor,
+                                           @RequestParam(defaultValue = "100") int size,
+                                           @RequestParam(defaultValue = "asc") String sort,
+                                           @RequestParam(required = false) String username) {
+        PageRequest pageable = Pagination.limit(size);
+        boolean descending = Pagination.descending(sort);
+        int start = Pagination.cursor(cursor, descending);
+        List<UserSummary> users = descending ?
+                userRepository.findPageBefore(start, username, pageable) :
+                userRepository.findPageAfter(start, username, pageable);
+        return Pagination.page(users, pageable, UserSummary::getId);
+    }
+    
+    /**
+     * 在用户名、昵称、邮箱、电话和地址中搜索，由 UserSearchIndex 在内存中完成，不查询数据库。
+     * 三个字符及以上的查询匹配字段中的任意位置，更短的查询按词前缀匹配
+     *
+     * @param q    查询串，不区分大小写
+     * @param size 最多返回的用户数，最大 100
+     * @return 匹配的用户，按 id 升序
+     */
+    @GetMapping("/search")
+    public ResponseEntity<Object> searchUsers(@RequestParam String q,
+                                              @RequestParam(defaultValue = "20") int size) {
+        return ResponseEntity.status(200).body(userSearchIndex.search(q, Math.min(size, 100)));
     }
     
     /**
-     * 该函数在数据库中创建一个新用户
+     * 该函数在数据库中创建一个新用户，密码在 PasswordService 的线程池中计算哈希，写入数据库在应用的任务线程池中进行
      *
-     * @param body          请求正文，它是一个 JSON 对象。
-     * @param authorization 用户发送到服务器的令牌。
+     * @param body      请求正文，它是一个 JSON 对象。
+     * @param principal 当前登录的用户
      * @return 正在返回用户对象。
      */
     @PostMapping()
-    public ResponseEntity<Object> createUser(@RequestBody Map<String, ?> body,
-                                             @RequestHeader("authorization") String authorization) {
-        String token = getTokenFrom(authorization);
-        Map<String, ?> decodedToken = JWT.decode(token).getClaims().get(
-                "userForToken").asMap();
-        if (decodedToken.get("id") == null) {
+    public CompletableFuture<ResponseEntity<Object>> createUser(@RequestBody Map<String, ?> body,
+                                                                @AuthenticationPrincipal AuthUser principal) {
+        String password = body.get("password") == null ? "123456" : (String) body.get("password");
+        
+        return passwordService.hash(password).thenApplyAsync(passwordHash -> {
+            User user = new User()
+                    .setUsername((String) body.get("username"))
+                    .setPasswordHash(passwordHash)
+                    .setNickname((String) body.get("nickname"))
+                    .setEmail((String) body.get("email"))
+                    .setPhone((String) body.get("phone"))
+                    .setAddress((String) body.get("address"));
+            
+            userRepository.saveAndFlush(user);
+            counterService.addUsers(1);
+            userSearchIndex.put(user);
+            return ResponseEntity.status(201).body(user);
+        }, applicationTaskExecutor);
+    }
+    
+    /**
+     * 在一个事务中创建一组用户，字段与创建单个用户相同。密码在 PasswordService 的线程池中计算哈希，只占用其中一部分线程，
+     * 写入数据库在应用的任务线程池中进行，不占用计算哈希的线程；任何一个用户名已存在时整批回滚
+     *
+     * @param body      用户列表，每个元素与创建单个用户时的请求正文相同
+     * @param principal 当前登录的用户
+     * @return 创建的用户列表
+     */
+    @PostMapping("/batch")
+    public CompletableFuture<ResponseEntity<Object>> createUsers(@RequestBody List<Map<String, ?>> body,
+                                                                 @AuthenticationPrincipal AuthUser principal) {
+        String error = body.size() > batchMaxSize ? "at most " + batchMaxSize + " users per request" : null;
+        Set<String> usernames = new HashSet<>();
+        for (int i = 0; error == null && i < body.size(); i++) {
+            Object username = body.get(i).get("username");
+            if (!(username instanceof String)) {
+                error = "username is required";
+            } else if (!usernames.add((String) username)) {
+                error = "duplicate username " + username;
+            }
+        }
+        if (error != null) {
             Map<String, String> map = new HashMap<>();
-            map.put("error", "token missing or invalid");
-            return ResponseEntity.status(401).body(map);
+            map.put("error", error);
+            return CompletableFuture.completedFuture(ResponseEntity.status(400).body(map));
         }
         
-        String salt = BCrypt.gensalt();
-        String passwordHash =
-                BCrypt.hashpw(body.get("password") == null ? "123456" : (String) body.get("password"),
-                        salt);
-        
-        User user = new User()
-                .setUsername((String) body.get("username"))
-                .setPasswordHash(passwordHash)
-                .setNickname((String) body.get("nickname"))
-                .setEmail((String) body.get("email"))
-                .setPhone((String) body.get("phone"))
-                .setAddress((String) body.get("address"));
+        List<String> passwords = new ArrayList<>(body.size());
+        for (Map<String, ?> item : body) {
+            passwords.add(item.get("password") == null ? "123456" : (String) item.get("password"));
+        }
         
-        userRepository.saveAndFlush(user);
-        return ResponseEntity.status(201).body(user);
+        return passwordService.hashAll(passwords).thenApplyAsync(passwordHashes -> {
+            List<User> users = new ArrayList<>(body.size());
+            for (int i = 0; i < body.size(); i++) {
+                Map<String, ?> item = body.get(i);
+                users.add(new User()
+                        .setUsername((String) item.get("username"))
+                        .setPasswordHash(passwordHashes.get(i))
+                        .setNickname((String) item.get("nickname"))
+                        .setEmail((String) item.get("email"))
+                        .setPhone((String) item.get("phone"))
+                        .setAddress((String) item.get("address")));
+            }
+            
+            try {
+                return ResponseEntity.status(201).body(userService.createUsers(users));
+            } catch (PersistenceException e) {
+                // UserService 直接刷新 EntityManager，唯一约束冲突不会被转换成 Spring 的异常
+                if (!(e.getCause() instanceof ConstraintViolationException)) {
+                    throw e;
+                }
+                Map<String, String> map = new HashMap<>();
+                map.put("error", "username already exists");
+                return ResponseEntity.status(409).body(map);
+            }
+        }, applicationTaskExecutor);
     }
     
     /**
      * 如果用户通过身份验证，则更新用户信息
      *
-     * @param id            要更新的用户id
-     * @param user          在请求正文中传递的用户对象。
-     * @param authorization 授权标头是标准的 HTTP 标头。它用于传递身份验证信息。
+     * @param id        要更新的用户id
+     * @param user      在请求正文中传递的用户对象。
+     * @param principal 当前登录的用户
      * @return 状态码为 200 和用户对象的响应实体。
      */
     @PutMapping("/{id}")
     public ResponseEntity<Object> updateUser(@PathVariable("id") int id,
                                              @RequestBody User user,
-                                             @RequestHeader("authorization") String authorization) {
-        String token = getTokenFrom(authorization);
-        Map<String, ?> decodedToken = JWT.decode(token).getClaims().get(
-                "userForToken").asMap();
-        if (decodedToken.get("id") == null) {
-            Map<String, String> map = new HashMap<>();
-            map.put("error", "token missing or invalid");
-            return ResponseEntity.status(401).body(map);
+                                             @AuthenticationPrincipal AuthUser principal) {
+        User user1 = userRepository.findById(id).orElse(null);
+        if (user1 == null) {
+            return ResponseEntity.status(404).build();
         }
-        
-        User user1 = userRepository.getById(id);
         user.setPasswordHash(user1.getPasswordHash());
+        user.setTokenGeneration(user1.getTokenGeneration());
         
         userRepository.saveAndFlush(user);
+        counterService.touchUsers();
+        userSearchIndex.put(user);
         return ResponseEntity.status(200).body(user);
         
     }
     
     /**
-     * 如果用户被授权，则删除具有给定 id 的用户
+     * 如果用户被授权，则删除具有给定 id 的用户，并吊销该用户的所有令牌。吊销记录只在内存中，
+     * 进程重启后已签发的访问令牌要等到过期才失效，见 TokenRevocationService
      *
-     * @param id            要删除的用户id
-     * @param authorization 授权标头是标准的 HTTP 标头。它用于将用户凭据（用户名和密码）发送到服务器。
+     * @param id        要删除的用户id
+     * @param principal 当前登录的用户
      * @return 正在返回一个 ResponseEntity 对象。
      */
     @DeleteMapping("/{id}")
     public ResponseEntity<Object> deleteUser(@PathVariable("id") int id,
-                                             @RequestHeader("authorization") String authorization) {
-        String token = getTokenFrom(authorization);
-        Map<String, ?> decodedToken = JWT.decode(token).getClaims().get(
-                "userForToken").asMap();
-        if (decodedToken.get("id") == null) {
-            Map<String, String> map = new HashMap<>();
-            map.put("error", "token missing or invalid");
-            return ResponseEntity.status(401).body(map);
-        }
-        
+                                             @AuthenticationPrincipal AuthUser principal) {
         userRepository.deleteById(id);
+        counterService.addUsers(-1);
+        userSearchIndex.remove(id);
+        tokenRevocationService.revoke(id, Integer.MAX_VALUE);
         return ResponseEntity.status(204).build();
     }
     
     /**
-     * 获取文件，保存到服务器，读取文件，保存数据到数据库，删除文件
+     * 把上传的 Excel 以 SAX 事件方式逐行读取，分批写入数据库，返回导入行数和每秒行数。
+     * 新用户没有密码哈希时返回 400，不导入任何一行
      *
-     * @param file    要上传的文件。
-     * @param request 请求对象用于获取文件的路径。
+     * @param file 要上传的文件。
      * @return 正在返回一个 ResponseEntity 对象。
      */
     @PostMapping("/import")
-    public ResponseEntity<Object> importUsers(MultipartFile file, HttpServletRequest request) {
-        String path = request.getServletContext().getRealPath("/");
-        File filePath = new File(path + "/upload");
-        
-        if (!filePath.exists()) {
-            filePath.mkdirs();
-        }
-        
+    public ResponseEntity<Object> importUsers(MultipartFile file) {
         String filename = file.getOriginalFilename();
-        assert filename != null;
-        File dest = new File(filePath, filename);
+        String suffix = filename != null && filename.contains(".") ?
+                filename.substring(filename.lastIndexOf('.')) : ".xlsx";
         
+        File dest = null;
         try {
+            dest = File.createTempFile("import", suffix);
             file.transferTo(dest);
-            ExcelReader reader = ExcelUtil.getReader(dest);
-            List<User> users = reader.readAll(User.class);
-            userRepository.saveAll(users);
-            dest.delete();
+            ImportResult result = userService.importUsers(dest);
+            return ResponseEntity.status(201).body(result);
+        } catch (IllegalArgumentException e) {
+            Map<String, String> map = new HashMap<>();
+            map.put("error", e.getMessage());
+            return ResponseEntity.status(400).body(map);
         } catch (IOException e) {
             e.printStackTrace();
             return ResponseEntity.status(500).build();
+        } finally {
+            if (dest != null) {
+                dest.delete();
+            }
         }
-        return ResponseEntity.status(201).build();
     }
     
     /**
@@ -192,6 +314,11 @@ public class Users {
         File dest = new File(filePath, filename);
         List<User> users = userRepository.findAll();
         ExcelWriter writer = ExcelUtil.getWriter(dest);
+        // 只写这些列，密码哈希、令牌代数和文件不导出
+        for (String column : new String[]{"id", "username", "nickname", "email", "phone", "address"}) {
+            writer.addHeaderAlias(column, column);
+        }
+        writer.setOnlyAlias(true);
         writer.write(users, true);
         writer.close();
         File file = new File(filePath, filename);
@@ -211,98 +338,109 @@ public class Users {
     }
     
     /**
-     * 它将用户信息导出到 Excel 文件。
+     * 它将用户信息导出为 xlsx、csv 或 ndjson。格式取自 format 参数，没有时按 Accept 头协商，默认 xlsx。
+     * 数据按页从数据库读出后直接写到响应流，不在内存中构建整个文件
      *
+     * @param format   导出格式，xlsx、csv 或 ndjson
+     * @param accept   Accept 请求头
      * @param response HttpServlet响应
+     * @return format 不是已知格式时返回 400，否则数据已经写到响应中，返回 null
      */
     @GetMapping("/export")
-    public void exportUsers(HttpServletResponse response) throws IOException {
-        List<User> users = userRepository.findAll();
-        ExcelWriter writer = ExcelUtil.getWriter(true);
-        writer.write(users, true);
-        response.setContentType("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet;charset=utf-8");
+    public ResponseEntity<Object> exportUsers(@RequestParam(required = false) String format,
+                                              @RequestHeader(value = "Accept", required = false) String accept,
+                                              HttpServletResponse response) throws IOException {
+        ExportFormat exportFormat = ExportFormat.resolve(format, accept);
+        if (exportFormat == null) {
+            Map<String, String> map = new HashMap<>();
+            map.put("error", "不支持的导出格式");
+            return ResponseEntity.status(400).body(map);
+        }
+        response.setContentType(exportFormat.getContentType());
         String filename = URLEncoder.encode("用户信息", StandardCharsets.UTF_8);
-        response.setHeader("Content-Disposition", "attachment;filename=" + filename + ".xlsx");
+        response.setHeader("Content-Disposition", "attachment;filename=" + filename + "." + exportFormat.getExtension());
         ServletOutputStream out = response.getOutputStream();
-        writer.flush(out, true);
+        exportService.writeUsers(out, exportFormat, rows -> {
+        });
         out.close();
-        writer.close();
+        return null;
     }
     
     /**
-     * 如果令牌有效，则返回数据库中的用户数
+     * 如果令牌有效，则返回用户数。计数由 CounterService 在内存中维护，不查询数据库
      *
-     * @param authorization 授权标头用于对用户进行身份验证。
+     * @param principal 当前登录的用户
      * @return 数据库中的用户数。
      */
     @GetMapping("/count")
-    public ResponseEntity<Object> getCount(@RequestHeader("authorization") String authorization) {
-        String token = getTokenFrom(authorization);
-        Map<String, ?> decodedToken = JWT.decode(token).getClaims().get(
-                "userForToken").asMap();
-        if (decodedToken.get("id") == null) {
-            Map<String, String> map = new HashMap<>();
-            map.put("error", "token missing or invalid");
-            return ResponseEntity.status(401).body(map);
-        }
-        
-        long count = userRepository.count();
+    public ResponseEntity<Object> getCount(@AuthenticationPrincipal AuthUser principal) {
+        long count = counterService.users();
         return ResponseEntity.status(200).body(count);
     }
     
     /**
-     * 如果用户密码与新密码相同，则返回错误信息。否则，更新用户密码
+     * 如果用户密码与新密码相同，则返回错误信息。否则，更新用户密码。校验和计算哈希都在 PasswordService 的线程池中进行，
+     * 保存在应用的任务线程池中进行。
+     * 修改成功后令牌代数加一，之前签发的令牌全部失效，响应中带有一对新的令牌
      *
-     * @param authorization 用户登录后获得的token
-     * @param body          请求正文，它是一个包含新密码的 JSON 对象
-     * @return 正在返回一个 ResponseEntity 对象。
+     * @param principal 当前登录的用户
+     * @param body      请求正文，它是一个包含新密码的 JSON 对象
+     * @return 正在返回一个 ResponseEntity 对象，修改成功时包含新的令牌。
      */
     @PutMapping("/password")
-    public ResponseEntity<Object> updatePassword(@RequestHeader("authorization") String authorization,
-                                                 @RequestBody Map<String, ?> body) {
-        String token = getTokenFrom(authorization);
-        Map<String, ?> decodedToken = JWT.decode(token).getClaims().get(
-                "userForToken").asMap();
-        if (decodedToken.get("id") == null) {
-            Map<String, String> map = new HashMap<>();
-            map.put("error", "token missing or invalid");
-            return ResponseEntity.status(401).body(map);
-        }
+    public CompletableFuture<ResponseEntity<Object>> updatePassword(@AuthenticationPrincipal AuthUser principal,
+                                                                    @RequestBody Map<String, ?> body) {
+        // 回调在线程池中执行，没有打开的持久化上下文，所以这里直接加载实体而不是取代理
+        User user = userRepository.findById(principal.getId()).orElseThrow();
+        String password = (String) body.get("password");
         
-        User user = userRepository.getById((Integer) decodedToken.get("id"));
-        boolean passwordCorrect = BCrypt.checkpw((String) body.get("password"),
-                user.getPasswordHash());
-        if (passwordCorrect) {
-            Map<String, String> map = new HashMap<>();
-            map.put("error", "新密码和旧密码相同");
-            return ResponseEntity.status(200).body(map);
-        } else {
-            String salt = BCrypt.gensalt();
-            String passwordHash = BCrypt.hashpw((String) body.get("password"), salt);
-            user.setPasswordHash(passwordHash);
-            userRepository.save(user);
-            return ResponseEntity.status(200).build();
-        }
+        return passwordService.matches(password, user.getPasswordHash()).thenCompose(passwordCorrect -> {
+            if (passwordCorrect) {
+                Map<String, String> map = new HashMap<>();
+                map.put("error", "新密码和旧密码相同");
+                return CompletableFuture.completedFuture(ResponseEntity.status(200).body(map));
+            }
+            return passwordService.hash(password).thenApplyAsync(passwordHash -> {
+                // 在数据库里给代数加一，再在同一个事务中读出加过之后的值签发令牌
+                User updated = userService.changePassword(user.getId(), passwordHash);
+                if (updated == null) {
+                    return ResponseEntity.status(404).build();
+                }
+                counterService.touchUsers();
+                tokenRevocationService.revoke(updated.getId(), updated.getTokenGeneration());
+                return ResponseEntity.status(200).body(tokenService.issue(updated));
+            }, applicationTaskExecutor);
+        });
     }
     
     /**
      * 如果令牌有效，则返回用户对象
      *
-     * @param authorization 在请求标头中发送的令牌
+     * @param principal 当前登录的用户
      * @return 一个用户对象
      */
     @GetMapping("/one")
-    public ResponseEntity<Object> getUser(@RequestHeader("authorization") String authorization) {
-        String token = getTokenFrom(authorization);
-        Map<String, ?> decodedToken = JWT.decode(token).getClaims().get(
-                "userForToken").asMap();
-        if (decodedToken.get("id") == null) {
-            Map<String, String> map = new HashMap<>();
-            map.put("error", "token missing or invalid");
-            return ResponseEntity.status(401).body(map);
+    public ResponseEntity<Object> getUser(@AuthenticationPrincipal AuthUser principal) {
+        User user = userRepository.findById(principal.getId()).orElse(null);
+        if (user == null) {
+            return ResponseEntity.status(404).build();
         }
-        
-        User user = userRepository.getById((Integer) decodedToken.get("id"));
         return ResponseEntity.status(200).body(user);
     }
+    
+    /**
+     * 返回当前用户占用的存储和配额，从占用表中读取一行，不对文件求和
+     *
+     * @param principal 当前登录的用户
+     * @return 文件数、总字节数和配额，配额不大于 0 表示不限制
+     */
+    @GetMapping("/one/usage")
+    public ResponseEntity<Object> getUsage(@AuthenticationPrincipal AuthUser principal) {
+        UserUsage usage = usageService.get(principal.getId());
+        Map<String, Object> map = new HashMap<>();
+        map.put("fileCount", usage.getFileCount());
+        map.put("totalBytes", usage.getTotalBytes());
+        map.put("quota", usageService.getQuota());
+        return ResponseEntity.status(200).body(map);
+    }
 }
@@ -4,20 +4,36 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.experimental.Accessors;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
 
 import javax.persistence.*;
 
 /**
- * 文件是属于用户的文件
+ * 文件是属于用户的文件。实体放在 Hibernate 二级缓存中。(user_id, id) 和 (open_download, id)
+ * 两个索引供文件列表的键集分页使用，(filetype, filesize) 供删除文件后重新求类型内最大的文件
  */
 @Getter
 @Setter
 @Accessors(chain = true)
 @Entity
+@Table(indexes = {
+        @Index(name = "idx_file_user_id", columnList = "user_id, id"),
+        @Index(name = "idx_file_open_download", columnList = "openDownload, id"),
+        @Index(name = "idx_file_filetype", columnList = "filetype, filesize")})
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "file")
 public class File {
     
     @Id
-    @GeneratedValue
+    // 与 User 的 id 相同，按 pooled-lo 从 hibernate_sequence 取号
+    @GeneratedValue(generator = "file_id")
+    @GenericGenerator(name = "file_id", strategy = "enhanced-sequence", parameters = {
+            @Parameter(name = "sequence_name", value = "hibernate_sequence"),
+            @Parameter(name = "increment_size", value = "50"),
+            @Parameter(name = "optimizer", value = "pooled-lo")})
     private Integer id;
     
     @Column(nullable = false)
@@ -29,6 +45,10 @@ public class File {
     
     private boolean openDownload;
     
+    @Column(length = 64)
+    @JsonIgnore
+    private String hash;
+    
     @ManyToOne(cascade = CascadeType.MERGE)
     @JoinColumn(name = "user_id")
     @JsonIgnore
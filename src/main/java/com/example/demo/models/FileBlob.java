@@ -0,0 +1,29 @@
+package com.example.demo.models;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+/**
+ * 按内容 SHA-256 存储的文件内容，被多少个 File 引用就记多少次
+ */
+@Getter
+@Setter
+@Accessors(chain = true)
+@Entity
+public class FileBlob {
+    
+    @Id
+    @Column(length = 64)
+    private String hash;
+    
+    @Column(nullable = false)
+    private Long size;
+    
+    @Column(nullable = false)
+    private long refCount;
+}
@@ -0,0 +1,87 @@
+package com.example.demo.models;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
+
+import javax.persistence.LockModeType;
+import javax.persistence.QueryHint;
+import java.util.Collection;
+import java.util.List;
+
+// 为 FileBlob 类创建存储库。
+public interface FileBlobRepository extends JpaRepository<FileBlob, String> {
+    
+    /**
+     * 按哈希批量读取并锁住已登记的行，必须在读写事务中调用，查主库。回收任务据此判断磁盘上的内容是否已登记：
+     * 上传的事务已经用 retain 插入但还没有提交的行，要等那个事务结束才能读到，不会被当成未登记；
+     * 不存在的哈希在事务结束前也不能被插入
+     *
+     * @param hashes 内容的 SHA-256
+     * @return 已登记的内容
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("select b from FileBlob b where b.hash in :hashes")
+    List<FileBlob> lockRegistered(@Param("hashes") Collection<String> hashes);
+    
+    /**
+     * 登记一份内容并把引用计数加一，内容已经登记过时只加计数。用一条 upsert 完成，
+     * 两个上传同时登记相同的内容不会因为主键冲突失败。语句会锁住这一行，直到事务结束。
+     * 只影响 file_blob 表，其他实体的二级缓存不会因为这条原生语句被清掉
+     *
+     * @param hash 内容的 SHA-256
+     * @param size 内容的字节数
+     * @return 影响的行数，新登记时为 1，已经存在时为 2
+     */
+    @Modifying
+    @QueryHints(@QueryHint(name = "org.hibernate.query.native.spaces", value = "file_blob"))
+    @Query(value = "insert into file_blob (hash, size, ref_count) values (:hash, :size, 1) " +
+            "on duplicate key update ref_count = ref_count + 1", nativeQuery = true)
+    int retain(@Param("hash") String hash, @Param("size") long size);
+    
+    /**
+     * 引用计数减一。计数为 0 的内容留在磁盘上，由回收任务统一清理
+     *
+     * @param hash 内容的 SHA-256
+     * @return 更新的行数
+     */
+    @Modifying
+    @Query("update FileBlob b set b.refCount = b.refCount - 1 where b.hash = :hash and b.refCount > 0")
+    int release(@Param("hash") String hash);
+    
+    /**
+     * 引用计数减去 released，用于批量删除时一个内容被多个文件引用的情况。
+     * 计数不够减时不更新，返回 0，不会把仍被其他文件引用的内容减到 0 交给回收任务
+     *
+     * @param hash     内容的 SHA-256
+     * @param released 释放的引用数
+     * @return 更新的行数
+     */
+    @Modifying
+    @Query("update FileBlob b set b.refCount = b.refCount - :released " +
+            "where b.hash = :hash and b.refCount >= :released")
+    int release(@Param("hash") String hash, @Param("released") long released);
+    
+    /**
+     * 读取一批已经没有引用的内容，不加锁
+     *
+     * @param pageable 只使用其中的页大小
+     * @return 内容的哈希
+     */
+    @Query("select b.hash from FileBlob b where b.refCount = 0")
+    List<String> findUnreferenced(Pageable pageable);
+    
+    /**
+     * 锁住给定内容中仍然没有引用的行。上传时的 retain 会等到锁释放，所以回收和上传不会交错
+     *
+     * @param hashes 内容的哈希
+     * @return 锁住的内容
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("select b from FileBlob b where b.hash in :hashes and b.refCount = 0")
+    List<FileBlob> lockUnreferenced(@Param("hashes") Collection<String> hashes);
+}
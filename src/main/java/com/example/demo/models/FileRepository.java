@@ -1,27 +1,115 @@
 package com.example.demo.models;
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Collection;
 import java.util.List;
 
 // 为 File 类创建存储库。
 public interface FileRepository extends JpaRepository<File, Integer> {
     
     /**
-     * 查找由给定用户拥有或可供下载的所有文件。
+     * 文件总数，查主库，用于修正计数器
      *
-     * @param user 上传文件的用户。
-     * @param openDownload 如果文件已打开以供下载，则为 true，否则为 false。
-     * @return 由用户拥有或可供下载的文件列表。
+     * @return 文件总数
      */
-    List<File> findAllByUserOrOpenDownload(User user, boolean openDownload);
+    @Override
+    @Transactional
+    long count();
     
     /**
-     * 它返回一个字符串列表，这些字符串是数据库中所有文件的文件类型
+     * 按 id 批量读取，查主库。回收任务据此判断磁盘上的文件是否还有记录，读到落后的副本会误删
      *
-     * @return 字符串列表
+     * @param ids 文件的 id
+     * @return 存在的文件
      */
-    @Query("select filetype from File group by filetype")
-    List<String> getFiletype();
+    @Override
+    @Transactional
+    List<File> findAllById(Iterable<Integer> ids);
+    
+    /**
+     * 键集分页：按 id 升序读取给定用户拥有或可供下载、且 id 大于 cursor 的一页文件，可按文件类型过滤，
+     * 并带出所有者的用户名。两个条件拆成 UNION 的两支，分别按 (user_id, id) 和 (open_download, id)
+     * 索引读取各自的前 limit 行，合并后再取 limit 行，不会因为 OR 而全表扫描
+     *
+     * @param userId   当前用户的 id
+     * @param cursor   上一页最后一个文件的 id，第一页传 0
+     * @param filetype 文件类型，为 null 时不过滤
+     * @param limit    页大小
+     * @return 一页文件
+     */
+    @Transactional(readOnly = true)
+    @Query(value = "select f.id as id, f.filename as filename, f.filetype as filetype, f.filesize as filesize, " +
+            "f.open_download as openDownload, u.username as owner from file f join (" +
+            "(select id from file where user_id = :userId and id > :cursor " +
+            "and (:filetype is null or filetype = :filetype) order by id asc limit :limit) union " +
+            "(select id from file where open_download = true and id > :cursor " +
+            "and (:filetype is null or filetype = :filetype) order by id asc limit :limit)" +
+            ") page on page.id = f.id left join user u on u.id = f.user_id order by f.id asc limit :limit",
+            nativeQuery = true)
+    List<FileSummary> findPageAfter(@Param("userId") int userId, @Param("cursor") int cursor,
+                                    @Param("filetype") String filetype, @Param("limit") int limit);
+    
+    /**
+     * 给定用户拥有或可供下载的文件数，两个条件同样拆成 UNION 的两支
+     *
+     * @param userId 当前用户的 id
+     * @return 文件数
+     */
+    @Transactional(readOnly = true)
+    @Query(value = "select count(*) from ((select id from file where user_id = :userId) union " +
+            "(select id from file where open_download = true)) visible", nativeQuery = true)
+    long countVisible(@Param("userId") int userId);
+    
+    /**
+     * 键集分页：按 id 降序读取给定用户拥有或可供下载、且 id 小于 cursor 的一页文件，可按文件类型过滤，
+     * 并带出所有者的用户名。查询方式同 findPageAfter
+     *
+     * @param userId   当前用户的 id
+     * @param cursor   上一页最后一个文件的 id，第一页传 Integer.MAX_VALUE
+     * @param filetype 文件类型，为 null 时不过滤
+     * @param limit    页大小
+     * @return 一页文件
+     */
+    @Transactional(readOnly = true)
+    @Query(value = "select f.id as id, f.filename as filename, f.filetype as filetype, f.filesize as filesize, " +
+            "f.open_download as openDownload, u.username as owner from file f join (" +
+            "(select id from file where user_id = :userId and id < :cursor " +
+            "and (:filetype is null or filetype = :filetype) order by id desc limit :limit) union " +
+            "(select id from file where open_download = true and id < :cursor " +
+            "and (:filetype is null or filetype = :filetype) order by id desc limit :limit)" +
+            ") page on page.id = f.id left join user u on u.id = f.user_id order by f.id desc limit :limit",
+            nativeQuery = true)
+    List<FileSummary> findPageBefore(@Param("userId") int userId, @Param("cursor") int cursor,
+                                     @Param("filetype") String filetype, @Param("limit") int limit);
+    
+    /**
+     * 按类型汇总所有文件：类型、文件数、总字节数和最大文件，用于重建统计
+     *
+     * @return 每个类型一行
+     */
+    @Query("select f.filetype, count(f), sum(f.filesize), max(f.filesize) from File f group by f.filetype")
+    List<Object[]> aggregateByFiletype();
+    
+    /**
+     * 按用户汇总所有文件：用户 id、文件数和总字节数，用于重建存储占用
+     *
+     * @return 每个有文件的用户一行
+     */
+    @Query("select f.user.id, count(f), sum(f.filesize) from File f where f.user is not null group by f.user.id")
+    List<Object[]> aggregateByUser();
+    
+    /**
+     * 用一条语句删除一组文件
+     *
+     * @param ids 文件 id
+     * @return 删除的行数
+     */
+    @Modifying
+    @Query("delete from File f where f.id in :ids")
+    int deleteByIds(@Param("ids") Collection<Integer> ids);
 }
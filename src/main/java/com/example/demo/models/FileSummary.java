@@ -0,0 +1,22 @@
+package com.example.demo.models;
+
+/**
+ * 文件列表中的一行，作为接口投影只查询这些字段和所有者的用户名，不会加载文件所属的用户实体
+ */
+public interface FileSummary {
+    
+    Integer getId();
+    
+    String getFilename();
+    
+    String getFiletype();
+    
+    Long getFilesize();
+    
+    boolean isOpenDownload();
+    
+    /**
+     * 所有者的用户名，文件没有所有者时为 null
+     */
+    String getOwner();
+}
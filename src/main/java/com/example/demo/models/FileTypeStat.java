@@ -0,0 +1,32 @@
+package com.example.demo.models;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+/**
+ * 某一种文件类型的统计：文件数、总字节数和最大的文件，随上传、修改和删除增量维护
+ */
+@Getter
+@Setter
+@Accessors(chain = true)
+@Entity
+public class FileTypeStat {
+    
+    // 没有类型的文件记为空字符串
+    @Id
+    private String filetype;
+    
+    @Column(nullable = false)
+    private long fileCount;
+    
+    @Column(nullable = false)
+    private long totalBytes;
+    
+    @Column(nullable = false)
+    private long largest;
+}
@@ -0,0 +1,74 @@
+package com.example.demo.models;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
+
+import javax.persistence.QueryHint;
+
+// 为 FileTypeStat 类创建存储库。
+public interface FileTypeStatRepository extends JpaRepository<FileTypeStat, String> {
+    
+    /**
+     * 把一个文件计入它的类型，这个类型还没有统计时新建一行。用一条 upsert 完成，
+     * 同一类型的第一批文件同时上传时不会因为主键冲突失败
+     *
+     * @param filetype 文件类型
+     * @param size     文件大小
+     * @return 影响的行数，新建时为 1，已经存在时为 2
+     */
+    @Modifying
+    @QueryHints(@QueryHint(name = "org.hibernate.query.native.spaces", value = "file_type_stat"))
+    @Query(value = "insert into file_type_stat (filetype, file_count, total_bytes, largest) " +
+            "values (:filetype, 1, :size, :size) on duplicate key update file_count = file_count + 1, " +
+            "total_bytes = total_bytes + :size, largest = greatest(largest, :size)", nativeQuery = true)
+    int add(@Param("filetype") String filetype, @Param("size") long size);
+    
+    /**
+     * 从类型中减去若干个文件。最大文件需要另外重新计算
+     *
+     * @param filetype 文件类型
+     * @param files    文件数
+     * @param size     这些文件的总大小
+     * @return 更新的行数
+     */
+    @Modifying
+    @Query("update FileTypeStat s set s.fileCount = s.fileCount - :files, s.totalBytes = s.totalBytes - :size " +
+            "where s.filetype = :filetype")
+    int remove(@Param("filetype") String filetype, @Param("files") long files, @Param("size") long size);
+    
+    /**
+     * 删掉的文件不小于记录的最大值时，在这个类型内重新求最大的文件。子查询走 File 的 (filetype, filesize) 索引
+     *
+     * @param filetype 文件类型，不能是表示没有类型的空字符串
+     * @param size     删掉的文件的大小
+     * @return 更新的行数
+     */
+    @Modifying
+    @Query("update FileTypeStat s set s.largest = (select coalesce(max(f.filesize), 0) from File f " +
+            "where f.filetype = :filetype) where s.filetype = :filetype and s.largest <= :size")
+    int recomputeLargest(@Param("filetype") String filetype, @Param("size") long size);
+    
+    /**
+     * 与 recomputeLargest 相同，用于没有类型的文件
+     *
+     * @param size 删掉的文件的大小
+     * @return 更新的行数
+     */
+    @Modifying
+    @Query("update FileTypeStat s set s.largest = (select coalesce(max(f.filesize), 0) from File f " +
+            "where f.filetype is null) where s.filetype = '' and s.largest <= :size")
+    int recomputeLargestUntyped(@Param("size") long size);
+    
+    /**
+     * 类型中已经没有文件时删除它
+     *
+     * @param filetype 文件类型
+     * @return 删除的行数
+     */
+    @Modifying
+    @Query("delete from FileTypeStat s where s.filetype = :filetype and s.fileCount <= 0")
+    int deleteIfEmpty(@Param("filetype") String filetype);
+}
@@ -1,15 +1,139 @@
 package com.example.demo.models;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.persistence.QueryHint;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
 
 // 为 User 类创建存储库。
 public interface UserRepository extends JpaRepository<User, Integer> {
     
     /**
-     * 通过用户名查找用户。
+     * 通过用户名查找用户。结果放在查询缓存中，user 表有任何写入时失效。
+     * 登录和注册查重不能读到副本上过时的数据，所以不用只读事务，总是查主库
      *
      * @param username 要查找的用户的用户名。
      * @return 一个用户对象
      */
+    @Transactional
+    @QueryHints(@QueryHint(name = "org.hibernate.cacheable", value = "true"))
     User findByUsername(String username);
+    
+    /**
+     * 按 id 读取用户，查主库。读出的用户通常会修改后整体保存，刷新令牌时也要核对最新的令牌代数，
+     * 读到落后的副本会把旧数据写回主库或放过已吊销的令牌
+     *
+     * @param id 用户的 id
+     * @return 用户，不存在时为空
+     */
+    @Override
+    @Transactional
+    Optional<User> findById(Integer id);
+    
+    /**
+     * 用户总数，查主库，用于修正计数器
+     *
+     * @return 用户总数
+     */
+    @Override
+    @Transactional
+    long count();
+    
+    /**
+     * 只更新密码哈希，用于登录成功后按新的工作因子重新计算哈希。只有库里仍是登录时校验过的旧哈希才更新，
+     * 期间修改过的密码不会被旧密码的新哈希覆盖
+     *
+     * @param id           用户 id
+     * @param oldHash      登录时校验过的哈希
+     * @param passwordHash 新的哈希
+     * @return 更新的行数，密码已经被修改时为 0
+     */
+    @Modifying
+    @Transactional
+    @Query("update User u set u.passwordHash = :passwordHash where u.id = :id and u.passwordHash = :oldHash")
+    int updatePasswordHash(@Param("id") Integer id, @Param("oldHash") String oldHash,
+                           @Param("passwordHash") String passwordHash);
+    
+    /**
+     * 修改密码并把令牌代数加一，在一条语句中完成。同时修改密码时代数各加一次，不会互相覆盖，
+     * 也不会把同时进行的资料修改写回旧值
+     *
+     * @param id           用户 id
+     * @param passwordHash 新的哈希
+     * @return 更新的行数，用户已经删除时为 0
+     */
+    @Modifying
+    @Transactional
+    @Query("update User u set u.passwordHash = :passwordHash, u.tokenGeneration = u.tokenGeneration + 1 " +
+            "where u.id = :id")
+    int updatePassword(@Param("id") Integer id, @Param("passwordHash") String passwordHash);
+    
+    /**
+     * 读取吊销过令牌的用户及其当前的令牌代数，查主库
+     *
+     * @return 每行是用户 id 和令牌代数
+     */
+    @Transactional
+    @Query("select u.id, u.tokenGeneration from User u where u.tokenGeneration > 0")
+    List<Object[]> findTokenGenerations();
+    
+    /**
+     * 按 id 升序读取 id 大于给定值的一页用户，用于键集分页遍历整张表。
+     *
+     * @param id       上一页最后一个用户的 id
+     * @param pageable 只使用其中的页大小，页码始终为 0
+     * @return 一页用户
+     */
+    @Transactional(readOnly = true)
+    List<UserSummary> findByIdGreaterThanOrderByIdAsc(Integer id, Pageable pageable);
+    
+    /**
+     * 按 id 升序读取给定的用户，查主库。在事务提交后的回调中调用，这时原事务的资源还绑定在线程上，所以开新事务
+     *
+     * @param ids 用户 id
+     * @return 仍然存在的用户
+     */
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    List<UserSummary> findByIdInOrderByIdAsc(Collection<Integer> ids);
+    
+    /**
+     * 键集分页：按 id 升序读取 id 大于 cursor 的一页用户，可按用户名前缀过滤。
+     *
+     * @param cursor   上一页最后一个用户的 id，第一页传 0
+     * @param username 用户名前缀，为 null 时不过滤
+     * @param pageable 只使用其中的页大小，页码始终为 0
+     * @return 一页用户
+     */
+    @Transactional(readOnly = true)
+    @Query("select u.id as id, u.username as username, u.nickname as nickname, u.email as email, " +
+            "u.phone as phone, u.address as address from User u " +
+            "where u.id > :cursor and (:username is null or u.username like concat(:username, '%')) " +
+            "order by u.id asc")
+    List<UserSummary> findPageAfter(@Param("cursor") int cursor, @Param("username") String username,
+                                    Pageable pageable);
+    
+    /**
+     * 键集分页：按 id 降序读取 id 小于 cursor 的一页用户，可按用户名前缀过滤。
+     *
+     * @param cursor   上一页最后一个用户的 id，第一页传 Integer.MAX_VALUE
+     * @param username 用户名前缀，为 null 时不过滤
+     * @param pageable 只使用其中的页大小，页码始终为 0
+     * @return 一页用户
+     */
+    @Transactional(readOnly = true)
+    @Query("select u.id as id, u.username as username, u.nickname as nickname, u.email as email, " +
+            "u.phone as phone, u.address as address from User u " +
+            "where u.id < :cursor and (:username is null or u.username like concat(:username, '%')) " +
+            "order by u.id desc")
+    List<UserSummary> findPageBefore(@Param("cursor") int cursor, @Param("username") String username,
+                                     Pageable pageable);
 }
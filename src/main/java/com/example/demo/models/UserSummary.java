@@ -0,0 +1,19 @@
+package com.example.demo.models;
+
+/**
+ * 用户列表中的一行，作为接口投影只查询这些字段，不会加载实体和它的关联
+ */
+public interface UserSummary {
+    
+    Integer getId();
+    
+    String getUsername();
+    
+    String getNickname();
+    
+    String getEmail();
+    
+    String getPhone();
+    
+    String getAddress();
+}
@@ -0,0 +1,28 @@
+package com.example.demo.models;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+/**
+ * 某个用户占用的存储：文件数和文件大小之和，随上传、修改和删除增量维护
+ */
+@Getter
+@Setter
+@Accessors(chain = true)
+@Entity
+public class UserUsage {
+    
+    @Id
+    private Integer userId;
+    
+    @Column(nullable = false)
+    private long fileCount;
+    
+    @Column(nullable = false)
+    private long totalBytes;
+}
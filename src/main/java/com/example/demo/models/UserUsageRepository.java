@@ -0,0 +1,36 @@
+package com.example.demo.models;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+// 为 UserUsage 类创建存储库。
+public interface UserUsageRepository extends JpaRepository<UserUsage, Integer> {
+    
+    /**
+     * 用户是否已有记录，查主库。副本落后时会误以为没有，随后的插入会覆盖已有的占用
+     *
+     * @param userId 用户的 id
+     * @return 有记录时为 true
+     */
+    @Override
+    @Transactional
+    boolean existsById(Integer userId);
+    
+    /**
+     * 把文件数和字节数加到用户的占用上。检查配额和累加在同一条语句中完成，并发上传不会一起越过配额
+     *
+     * @param userId 用户的 id
+     * @param files  文件数的变化量
+     * @param bytes  字节数的变化量
+     * @param quota  配额，不大于 0 时不检查
+     * @return 更新的行数，用户还没有记录或加上后超过配额时为 0
+     */
+    @Modifying
+    @Query("update UserUsage u set u.fileCount = u.fileCount + :files, u.totalBytes = u.totalBytes + :bytes " +
+            "where u.userId = :userId and (:quota <= 0L or :bytes <= 0L or u.totalBytes + :bytes <= :quota)")
+    int add(@Param("userId") int userId, @Param("files") long files, @Param("bytes") long bytes,
+            @Param("quota") long quota);
+}
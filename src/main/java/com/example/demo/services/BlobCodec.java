@@ -0,0 +1,92 @@
+package com.example.demo.services;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 文件内容在磁盘上的编码。文本、CSV、JSON、XML 和旧版 Office 等可压缩的类型用 gzip 保存，
+ * 图片、视频、压缩包和 docx/xlsx 这类本身已经压缩过的格式原样保存。类型按上传时的 MIME 类型判断。
+ * 压缩的内容不能按偏移读取，断点续传要从头解压，所以超过 maxSize 的内容也原样保存
+ */
+@Component
+public class BlobCodec {
+    
+    @Value("${file.compression.enabled:true}")
+    boolean enabled;
+    
+    @Value("${file.compression.level:6}")
+    int level;
+    
+    @Value("${file.compression.max-size:8388608}")
+    long maxSize;
+    
+    @Value("${file.compression.types:text/*,application/json,application/xml,application/javascript,"
+            + "application/x-javascript,application/x-ndjson,application/csv,application/sql,application/rtf,"
+            + "application/x-sh,application/x-tar,application/msword,application/vnd.ms-excel,"
+            + "application/vnd.ms-powerpoint,image/svg+xml,image/bmp}")
+    List<String> types;
+    
+    /**
+     * 给定类型的内容是否压缩保存。以 +json 和 +xml 结尾的类型也压缩
+     *
+     * @param filetype 文件的 MIME 类型，可以带参数
+     * @return 需要压缩时为 true
+     */
+    public boolean compressible(String filetype) {
+        if (!enabled || filetype == null) {
+            return false;
+        }
+        String type = filetype.split(";", 2)[0].trim().toLowerCase(Locale.ROOT);
+        if (type.endsWith("+json") || type.endsWith("+xml")) {
+            return true;
+        }
+        for (String pattern : types) {
+            String candidate = pattern.trim().toLowerCase(Locale.ROOT);
+            if (candidate.equals(type)
+                    || (candidate.endsWith("/*") && type.startsWith(candidate.substring(0, candidate.length() - 1)))) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * 给定类型和大小的内容是否压缩保存
+     *
+     * @param filetype 文件的 MIME 类型，可以带参数
+     * @param size     原始内容的字节数
+     * @return 类型可压缩且不超过 maxSize 时为 true
+     */
+    public boolean compressible(String filetype, long size) {
+        return size <= maxSize && compressible(filetype);
+    }
+    
+    /**
+     * 压缩保存的内容最多有多少字节
+     *
+     * @return 原始内容的字节数上限
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+    
+    /**
+     * 用配置的压缩级别包装输出流，关闭返回的流时写出 gzip 尾部并关闭 out
+     *
+     * @param out 写到磁盘的输出流
+     * @return 压缩输出流
+     */
+    public OutputStream compress(OutputStream out) throws IOException {
+        return new GZIPOutputStream(out, 65536) {
+            {
+                def.setLevel(level);
+            }
+        };
+    }
+}
@@ -0,0 +1,188 @@
+package com.example.demo.services;
+
+import com.example.demo.models.File;
+import com.example.demo.models.FileBlob;
+import com.example.demo.models.FileBlobRepository;
+import com.example.demo.models.FileRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 在后台回收磁盘空间：没有引用的内容、中断上传留下的暂存文件、没有登记的内容，以及旧版本留下的、
+ * 记录已经删除的 id_文件名 文件。每批处理 batchSize 个，批之间暂停 pause 毫秒，不会长时间占用磁盘和数据库
+ */
+@Service
+public class BlobCollector {
+    
+    @Resource
+    FileBlobRepository fileBlobRepository;
+    
+    @Resource
+    FileRepository fileRepository;
+    
+    @Resource
+    FileStore fileStore;
+    
+    @Resource
+    TransactionTemplate transactionTemplate;
+    
+    @Value("${file.gc.batch-size:100}")
+    int batchSize;
+    
+    @Value("${file.gc.pause:200}")
+    long pause;
+    
+    /**
+     * 暂存文件和未登记内容的保留时间，要比分块上传会话的有效期长
+     */
+    @Value("${file.gc.grace-period:172800000}")
+    long gracePeriod;
+    
+    /**
+     * 定期执行一次完整的回收，上一次结束后才开始计时
+     */
+    @Scheduled(initialDelayString = "${file.gc.interval:600000}", fixedDelayString = "${file.gc.interval:600000}")
+    public void collect() {
+        try {
+            collectUnreferenced();
+            Instant before = Instant.now().minusMillis(gracePeriod);
+            fileStore.deleteTemp(before);
+            collectUnregistered(before);
+            collectLegacy();
+        } catch (IOException | UncheckedIOException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * 删除引用计数为 0 的内容。每批在一个事务中锁住仍然没有引用的行，先删行再删磁盘上的内容；
+     * 同时上传相同内容的请求会在 retain 上等待，之后发现行已删除，重新登记并写入内容
+     *
+     * @return 删除的内容数
+     */
+    public int collectUnreferenced() {
+        int deleted = 0;
+        while (true) {
+            List<String> hashes = fileBlobRepository.findUnreferenced(PageRequest.of(0, batchSize));
+            if (hashes.isEmpty()) {
+                return deleted;
+            }
+            Integer count = transactionTemplate.execute(status -> {
+                List<FileBlob> blobs = fileBlobRepository.lockUnreferenced(hashes);
+                fileBlobRepository.deleteAllInBatch(blobs);
+                for (FileBlob blob : blobs) {
+                    try {
+                        fileStore.delete(blob.getHash());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return blobs.size();
+            });
+            deleted += count == null ? 0 : count;
+            if (hashes.size() < batchSize) {
+                return deleted;
+            }
+            throttle();
+        }
+    }
+    
+    /**
+     * 删除磁盘上有、数据库中没有登记的内容，它们来自写入磁盘后事务失败的上传
+     *
+     * @param before 只处理这之前写入的内容
+     */
+    void collectUnregistered(Instant before) throws IOException {
+        List<String> batch = new ArrayList<>(batchSize);
+        fileStore.scanBlobs(before, hash -> {
+            batch.add(hash);
+            if (batch.size() >= batchSize) {
+                deleteUnregistered(batch);
+            }
+        });
+        deleteUnregistered(batch);
+    }
+    
+    private void deleteUnregistered(List<String> hashes) {
+        if (hashes.isEmpty()) {
+            return;
+        }
+        // 在锁住这批哈希的事务中删除，正在上传相同内容的请求在 retain 上等待，之后重新写入内容
+        transactionTemplate.executeWithoutResult(status -> {
+            Set<String> registered = new HashSet<>();
+            for (FileBlob blob : fileBlobRepository.lockRegistered(hashes)) {
+                registered.add(blob.getHash());
+            }
+            for (String hash : hashes) {
+                if (!registered.contains(hash)) {
+                    try {
+                        fileStore.delete(hash);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            }
+        });
+        hashes.clear();
+        throttle();
+    }
+    
+    /**
+     * 删除旧版本留下的、记录已经不存在的文件
+     */
+    void collectLegacy() throws IOException {
+        Map<Integer, Path> batch = new HashMap<>();
+        fileStore.scanLegacy((id, path) -> {
+            batch.put(id, path);
+            if (batch.size() >= batchSize) {
+                deleteLegacy(batch);
+            }
+        });
+        deleteLegacy(batch);
+    }
+    
+    private void deleteLegacy(Map<Integer, Path> paths) {
+        if (paths.isEmpty()) {
+            return;
+        }
+        Set<Integer> existing = new HashSet<>();
+        for (File file : fileRepository.findAllById(paths.keySet())) {
+            existing.add(file.getId());
+        }
+        paths.forEach((id, path) -> {
+            if (!existing.contains(id)) {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        });
+        paths.clear();
+        throttle();
+    }
+    
+    private void throttle() {
+        try {
+            Thread.sleep(pause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.example.demo.services;
+
+import com.example.demo.models.File;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 可续传的分块上传。每一块按偏移直接写进最终的暂存文件，全部到齐后计算哈希并创建 File 记录
+ */
+@Service
+public class ChunkedUploadService {
+    
+    private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+    
+    @Resource
+    FileStore fileStore;
+    
+    @Resource
+    FileService fileService;
+    
+    @Resource
+    UsageService usageService;
+    
+    @Value("${file.upload.chunk-size:8388608}")
+    int chunkSize;
+    
+    @Value("${file.upload.max-size:10737418240}")
+    long maxSize;
+    
+    @Value("${file.upload.session-ttl:86400000}")
+    long sessionTtl;
+    
+    /**
+     * 每个用户同时打开的会话数上限
+     */
+    @Value("${file.upload.max-sessions:8}")
+    int maxSessions;
+    
+    /**
+     * 创建上传会话，并预先分配好文件大小。会话的大小在提交或放弃之前一直从配额中预留，
+     * 加上已有的占用和其他会话后会超过配额时抛出 QuotaExceededException，打开的会话过多时抛出 IllegalStateException
+     *
+     * @param userId   上传文件的用户的 id
+     * @param filename 文件名
+     * @param filetype 文件的 MIME 类型
+     * @param size     文件的总字节数
+     * @return 新的会话
+     */
+    public UploadSession create(Integer userId, String filename, String filetype, long size) throws IOException {
+        if (size <= 0 || size > maxSize) {
+            throw new IllegalArgumentException("size must be between 1 and " + maxSize);
+        }
+        UploadSession session = new UploadSession(UUID.randomUUID().toString(), userId, filename,
+                filetype, size, chunkSize, fileStore.createTemp());
+        try {
+            synchronized (this) {
+                if (sessions.values().stream().filter(s -> s.getUserId().equals(userId)).count() >= maxSessions) {
+                    throw new IllegalStateException("too many open uploads, commit or abort one first");
+                }
+                usageService.reserve(userId, size);
+                sessions.put(session.getId(), session);
+            }
+            try (RandomAccessFile file = new RandomAccessFile(session.getPath().toFile(), "rw")) {
+                file.setLength(size);
+            }
+        } catch (IOException | RuntimeException e) {
+            abort(session);
+            throw e;
+        }
+        return session;
+    }
+    
+    /**
+     * 取出属于给定用户的会话
+     *
+     * @param id     会话 id
+     * @param userId 当前用户的 id
+     * @return 会话，不存在或不属于该用户时返回 null
+     */
+    public UploadSession get(String id, Integer userId) {
+        UploadSession session = sessions.get(id);
+        return session != null && session.getUserId().equals(userId) ? session : null;
+    }
+    
+    /**
+     * 把一块数据从请求体直接写到文件中的对应位置。偏移必须是分块大小的整数倍，长度必须与这一块一致
+     *
+     * @param session 会话
+     * @param offset  这一块在文件中的偏移
+     * @param in      请求体
+     * @return 写入是否完整，不完整的块不会被标记为已收到
+     */
+    public boolean writeChunk(UploadSession session, long offset, InputStream in) throws IOException {
+        if (offset < 0 || offset >= session.getSize() || offset % session.getChunkSize() != 0) {
+            throw new IllegalArgumentException("offset must be a multiple of " + session.getChunkSize());
+        }
+        if (!session.startWrite()) {
+            throw new IllegalStateException("upload is being committed");
+        }
+        // 写入期间提交会等待，不会对写了一半的块计算哈希
+        try {
+            int index = (int) (offset / session.getChunkSize());
+            long length = session.chunkLength(index);
+            
+            long written = 0;
+            try (FileChannel channel = FileChannel.open(session.getPath(), StandardOpenOption.WRITE)) {
+                ReadableByteChannel source = Channels.newChannel(in);
+                while (written < length) {
+                    long n = channel.transferFrom(source, offset + written, length - written);
+                    if (n <= 0) {
+                        break;
+                    }
+                    written += n;
+                }
+            }
+            if (written != length || in.read() != -1) {
+                return false;
+            }
+            session.markReceived(index);
+            return true;
+        } finally {
+            session.endWrite();
+        }
+    }
+    
+    /**
+     * 所有分块到齐后，等正在写入的分块写完，计算哈希并在一个事务中创建 File 记录。提交失败时会话保留，可以再次提交
+     *
+     * @param session 会话
+     * @return 新建的文件，还有分块没有收到时返回 null
+     */
+    public File commit(UploadSession session) throws IOException {
+        if (!session.startCommit()) {
+            return null;
+        }
+        StagedBlob staged = null;
+        try {
+            staged = fileStore.stage(session.getPath(), session.getFiletype());
+            File file = fileService.create(staged, session.getFilename(), session.getFiletype(),
+                    session.getUserId());
+            remove(session);
+            // 暂存的是另一个文件，分块写入的原始文件不再需要
+            Files.deleteIfExists(session.getPath());
+            return file;
+        } catch (IOException | RuntimeException e) {
+            if (staged != null) {
+                fileStore.discard(staged);
+            }
+            // 数据还在分块写入的文件里，允许客户端重新提交
+            session.cancelCommit();
+            throw e;
+        }
+    }
+    
+    /**
+     * 放弃上传，删除已经写入的数据。正在提交时不做任何事
+     *
+     * @param session 会话
+     * @return 已经放弃时返回 true，正在提交时返回 false
+     */
+    public boolean abort(UploadSession session) throws IOException {
+        if (!session.startAbort()) {
+            return false;
+        }
+        remove(session);
+        Files.deleteIfExists(session.getPath());
+        return true;
+    }
+    
+    /**
+     * 移除会话并释放它预留的配额，同一个会话只释放一次
+     */
+    private void remove(UploadSession session) {
+        if (sessions.remove(session.getId(), session)) {
+            usageService.release(session.getUserId(), session.getSize());
+        }
+    }
+    
+    /**
+     * 定期清理长时间没有新分块的会话
+     */
+    @Scheduled(fixedDelayString = "${file.upload.cleanup-interval:3600000}")
+    public void expire() {
+        long deadline = System.currentTimeMillis() - sessionTtl;
+        for (UploadSession session : sessions.values()) {
+            if (session.getTouchedAt() < deadline && session.isIdle()) {
+                try {
+                    abort(session);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.demo.services;
+
+import com.example.demo.models.FileRepository;
+import com.example.demo.models.UserRepository;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 维护用户数和文件数。启动时从数据库读取一次，之后由创建、删除和导入更新，
+ * 并定期与数据库核对，计数接口不再每次都执行 count(*)。
+ * 另外维护用户数据的版本号，用户表每次提交修改后加一，用来判断缓存的导出结果是否过期
+ */
+@Service
+public class CounterService {
+    
+    private final AtomicLong users = new AtomicLong();
+    
+    private final AtomicLong files = new AtomicLong();
+    
+    private final AtomicLong userGeneration = new AtomicLong();
+    
+    @Resource
+    UserRepository userRepository;
+    
+    @Resource
+    FileRepository fileRepository;
+    
+    /**
+     * 从数据库重新读取计数，修正可能出现的偏差
+     */
+    @PostConstruct
+    @Scheduled(fixedDelayString = "${counter.reconcile-interval:300000}",
+            initialDelayString = "${counter.reconcile-interval:300000}")
+    public void reconcile() {
+        users.set(userRepository.count());
+        files.set(fileRepository.count());
+    }
+    
+    public long users() {
+        return users.get();
+    }
+    
+    public long files() {
+        return files.get();
+    }
+    
+    /**
+     * 用户数据的版本号。只在进程内有效，重启后从 0 开始
+     *
+     * @return 版本号
+     */
+    public long userGeneration() {
+        return userGeneration.get();
+    }
+    
+    /**
+     * 用户数加上 delta。在事务中调用时，等事务提交后才生效，回滚则不生效
+     *
+     * @param delta 变化量
+     */
+    public void addUsers(long delta) {
+        add(users, delta);
+        add(userGeneration, delta == 0 ? 0 : 1);
+    }
+    
+    /**
+     * 用户数据被修改但用户数不变时调用，只增加版本号。在事务中调用时，等事务提交后才生效
+     */
+    public void touchUsers() {
+        add(userGeneration, 1);
+    }
+    
+    /**
+     * 文件数加上 delta。在事务中调用时，等事务提交后才生效，回滚则不生效
+     *
+     * @param delta 变化量
+     */
+    public void addFiles(long delta) {
+        add(files, delta);
+    }
+    
+    private void add(AtomicLong counter, long delta) {
+        if (delta == 0) {
+            return;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    counter.addAndGet(delta);
+                }
+            });
+        } else {
+            counter.addAndGet(delta);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.example.demo.services;
+
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+
+import java.util.List;
+
+/**
+ * 导出格式。xlsx 给人看，csv 和 ndjson 给脚本用，后两者逐行写出，不需要构建工作簿
+ */
+public enum ExportFormat {
+    
+    XLSX("xlsx", "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet"),
+    
+    CSV("csv", "text/csv"),
+    
+    NDJSON("ndjson", "application/x-ndjson");
+    
+    private final String extension;
+    
+    private final MediaType mediaType;
+    
+    ExportFormat(String extension, String mediaType) {
+        this.extension = extension;
+        this.mediaType = MediaType.parseMediaType(mediaType);
+    }
+    
+    public String getExtension() {
+        return extension;
+    }
+    
+    /**
+     * 响应的 Content-Type，带上 utf-8 编码
+     *
+     * @return Content-Type 的值
+     */
+    public String getContentType() {
+        return mediaType + ";charset=utf-8";
+    }
+    
+    /**
+     * 决定导出格式。format 参数优先，其次按 Accept 头中的质量值依次匹配，都没有给出、都不匹配或 Accept 头格式错误时用 xlsx
+     *
+     * @param format format 参数，可以为 null
+     * @param accept Accept 请求头，可以为 null
+     * @return 导出格式，format 参数不是已知格式时返回 null
+     */
+    public static ExportFormat resolve(String format, String accept) {
+        if (format != null && !format.isBlank()) {
+            for (ExportFormat value : values()) {
+                if (value.extension.equalsIgnoreCase(format.trim())) {
+                    return value;
+                }
+            }
+            return null;
+        }
+        if (accept != null) {
+            try {
+                List<MediaType> mediaTypes = MediaType.parseMediaTypes(accept);
+                MediaType.sortBySpecificityAndQuality(mediaTypes);
+                for (MediaType mediaType : mediaTypes) {
+                    // */* 和 application/* 这类通配符不用来选格式，落到下面的默认值
+                    if (mediaType.isWildcardType() || mediaType.isWildcardSubtype()) {
+                        continue;
+                    }
+                    for (ExportFormat value : values()) {
+                        if (value.mediaType.isCompatibleWith(mediaType)) {
+                            return value;
+                        }
+                    }
+                }
+            } catch (InvalidMediaTypeException ignored) {
+                // 接口不需要登录，格式错误的 Accept 头不打日志，按没给出处理
+            }
+        }
+        return XLSX;
+    }
+}
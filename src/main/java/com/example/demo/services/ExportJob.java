@@ -0,0 +1,63 @@
+package com.example.demo.services;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.Getter;
+
+import java.nio.file.Path;
+
+/**
+ * 一次后台导出。记录状态、已经写出的行数，完成后记录结果文件的位置
+ */
+@Getter
+public class ExportJob {
+    
+    public enum State {
+        QUEUED, RUNNING, DONE, FAILED
+    }
+    
+    private final String id;
+    
+    /**
+     * 提交时的用户数据版本号，结果在版本号变化之前都可以复用
+     */
+    private final long generation;
+    
+    private final long createdAt = System.currentTimeMillis();
+    
+    private volatile State state = State.QUEUED;
+    
+    private volatile long rows;
+    
+    private volatile String error;
+    
+    private volatile long finishedAt;
+    
+    @JsonIgnore
+    private volatile Path path;
+    
+    public ExportJob(String id, long generation) {
+        this.id = id;
+        this.generation = generation;
+    }
+    
+    void start() {
+        state = State.RUNNING;
+    }
+    
+    void progress(long rows) {
+        this.rows = rows;
+    }
+    
+    void finish(Path path, long rows) {
+        this.path = path;
+        this.rows = rows;
+        this.finishedAt = System.currentTimeMillis();
+        this.state = State.DONE;
+    }
+    
+    void fail(String error) {
+        this.error = error;
+        this.finishedAt = System.currentTimeMillis();
+        this.state = State.FAILED;
+    }
+}
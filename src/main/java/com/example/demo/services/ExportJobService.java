@@ -0,0 +1,161 @@
+package com.example.demo.services;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 在后台线程池中导出用户，结果写到磁盘上。用户数据的版本号没有变化时，再次提交直接返回上一次的任务，
+ * 不会重复导出。线程池和队列都有上限，队列满时抛出 RejectedExecutionException，由 MyExceptionHandler 转成 503
+ */
+@Service
+public class ExportJobService {
+    
+    private final Map<String, ExportJob> jobs = new ConcurrentHashMap<>();
+    
+    private ExportJob latest;
+    
+    @Resource
+    ExportService exportService;
+    
+    @Resource
+    CounterService counterService;
+    
+    @Value("${export.jobs.dir:data/exports}")
+    String dir;
+    
+    @Value("${export.jobs.threads:1}")
+    int threads;
+    
+    @Value("${export.jobs.queue-capacity:4}")
+    int queueCapacity;
+    
+    /**
+     * 完成的任务和结果文件保留多久。被新版本取代的结果也要保留一段时间，正在进行的下载不会被打断
+     */
+    @Value("${export.jobs.ttl:3600000}")
+    long ttl;
+    
+    private Path root;
+    
+    private ThreadPoolExecutor executor;
+    
+    @PostConstruct
+    public void init() throws IOException {
+        root = Paths.get(dir).toAbsolutePath();
+        Files.createDirectories(root);
+        // 版本号只在进程内有效，上一次运行留下的结果无法判断是否过期。
+        // 早先的结果还带着密码哈希一列，启动时连同其他遗留的结果和临时文件一起删掉，不会再被下载
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(root, "{users-*,*.part}")) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+            Thread thread = new Thread(runnable, "export");
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.AbortPolicy());
+    }
+    
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+    
+    /**
+     * 提交一次导出。当前版本的数据已经在导出或已经导出过时，返回那个任务
+     *
+     * @return 导出任务
+     */
+    public synchronized ExportJob submit() {
+        long generation = counterService.userGeneration();
+        if (latest != null && latest.getGeneration() == generation && latest.getState() != ExportJob.State.FAILED) {
+            return latest;
+        }
+        ExportJob job = new ExportJob(UUID.randomUUID().toString(), generation);
+        executor.execute(() -> run(job));
+        jobs.put(job.getId(), job);
+        latest = job;
+        return job;
+    }
+    
+    /**
+     * 查询任务
+     *
+     * @param id 任务 id
+     * @return 任务，不存在或已经过期时返回 null
+     */
+    public ExportJob get(String id) {
+        return jobs.get(id);
+    }
+    
+    /**
+     * 先写到临时文件，完成后再移动到最终位置，下载接口不会读到写了一半的文件
+     *
+     * @param job 导出任务
+     */
+    private void run(ExportJob job) {
+        job.start();
+        Path temp = root.resolve(job.getId() + ".part");
+        Path target = root.resolve("users-" + job.getId() + ".xlsx");
+        try {
+            long rows;
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp))) {
+                rows = exportService.writeUsersXlsx(out, job::progress);
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            job.finish(target, rows);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            job.fail(e.getMessage());
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+    
+    /**
+     * 删除过期的任务和它们的结果文件，最近一次提交的任务一直保留
+     */
+    @Scheduled(fixedDelayString = "${export.jobs.cleanup-interval:600000}")
+    public void expire() {
+        long deadline = System.currentTimeMillis() - ttl;
+        for (Iterator<ExportJob> it = jobs.values().iterator(); it.hasNext(); ) {
+            ExportJob job = it.next();
+            if (job.getFinishedAt() == 0 || job.getFinishedAt() > deadline || job == latest) {
+                continue;
+            }
+            it.remove();
+            if (job.getPath() != null) {
+                try {
+                    Files.deleteIfExists(job.getPath());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package com.example.demo.services;
+
+import cn.hutool.core.text.csv.CsvUtil;
+import cn.hutool.core.text.csv.CsvWriter;
+import com.example.demo.models.FileRepository;
+import com.example.demo.models.FileSummary;
+import com.example.demo.models.UserRepository;
+import com.example.demo.models.UserSummary;
+import com.example.demo.utils.ReplicaRoutingDataSource;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.xssf.streaming.DeferredSXSSFSheet;
+import org.apache.poi.xssf.streaming.DeferredSXSSFWorkbook;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.LongConsumer;
+import java.util.function.LongSupplier;
+import java.util.function.ToIntFunction;
+
+/**
+ * 流式导出服务。按 id 键集分页读取，边读边写，内存占用只和页大小有关。支持 xlsx、csv 和 ndjson，
+ * 后两者直接把每一行写到输出流
+ */
+@Service
+public class ExportService {
+    
+    /**
+     * 导出的用户列，不包括密码哈希。导出接口不需要登录，哈希一旦导出就等于交给了任何人
+     */
+    private static final String[] USER_HEADER = {"id", "username", "nickname", "email", "phone", "address"};
+    
+    private static final String[] FILE_HEADER = {"id", "filename", "filetype", "filesize", "openDownload",
+            "owner"};
+    
+    @Resource
+    UserRepository userRepository;
+    
+    @Resource
+    FileRepository fileRepository;
+    
+    @Resource
+    MeterRegistry meterRegistry;
+    
+    @Resource
+    ObjectMapper objectMapper;
+    
+    @Resource
+    PlatformTransactionManager transactionManager;
+    
+    @Value("${export.page-size:1000}")
+    int pageSize;
+    
+    @Value("${export.window-size:100}")
+    int windowSize;
+    
+    /**
+     * xlsx 每个工作表最多的行数（包括表头），写满后换到下一个工作表并重复表头，不能超过 xlsx 的上限 1048576
+     */
+    @Value("${export.sheet-rows:1048576}")
+    int sheetRows;
+    
+    /**
+     * 总行数和每一页各用一个短的只读事务查询，下载期间不占着连接和事务。导出时线程固定在同一个库上，
+     * 配置了副本时各页都从同一个副本读取，不会因为每页轮换副本而在复制进度不同的副本之间漏行
+     */
+    private TransactionTemplate readOnly;
+    
+    @PostConstruct
+    public void init() {
+        readOnly = new TransactionTemplate(transactionManager);
+        readOnly.setReadOnly(true);
+    }
+    
+    /**
+     * 把所有用户写成 xlsx。行在 workbook.write 时才生成，超出窗口的行直接压缩写入输出流，
+     * 不会先落到临时文件，所以客户端会立刻开始收到数据。耗时记录到 user.export，行数累计到 user.export.rows
+     *
+     * @param out 输出流，通常是 HttpServletResponse 的输出流
+     * @return 写出的用户数
+     */
+    public long writeUsersXlsx(OutputStream out) throws IOException {
+        return writeUsersXlsx(out, rows -> {
+        });
+    }
+    
+    /**
+     * 把所有用户写成 xlsx，每写完一页报告一次进度
+     *
+     * @param out      输出流
+     * @param progress 接收已经写出的行数
+     * @return 写出的用户数
+     */
+    public long writeUsersXlsx(OutputStream out, LongConsumer progress) throws IOException {
+        return writeUsers(out, ExportFormat.XLSX, progress);
+    }
+    
+    /**
+     * 按给定的格式写出所有用户。耗时记录到 user.export，行数累计到 user.export.rows，都带 format 标签
+     *
+     * @param out      输出流
+     * @param format   导出格式
+     * @param progress 接收已经写出的行数
+     * @return 写出的用户数
+     */
+    public long writeUsers(OutputStream out, ExportFormat format, LongConsumer progress) throws IOException {
+        Function<UserSummary, Object[]> values = user -> new Object[]{user.getId(), user.getUsername(),
+                user.getNickname(), user.getEmail(), user.getPhone(), user.getAddress()};
+        return write(out, format, USER_HEADER, values, users(), progress, "user.export");
+    }
+    
+    /**
+     * 按给定的格式写出给定用户拥有或可供下载的所有文件，列和文件列表相同。耗时记录到 file.export，
+     * 行数累计到 file.export.rows
+     *
+     * @param out    输出流
+     * @param format 导出格式
+     * @param userId 当前用户的 id
+     * @return 写出的文件数
+     */
+    public long writeFiles(OutputStream out, ExportFormat format, int userId) throws IOException {
+        Function<FileSummary, Object[]> values = file -> new Object[]{file.getId(), file.getFilename(),
+                file.getFiletype(), file.getFilesize(), file.isOpenDownload(), file.getOwner()};
+        return write(out, format, FILE_HEADER, values, files(userId), rows -> {
+        }, "file.export");
+    }
+    
+    private <T> long write(OutputStream out, ExportFormat format, String[] header, Function<T, Object[]> values,
+                           Source<T> pages, LongConsumer progress, String metric) throws IOException {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        long[] rows = {0};
+        try (ReplicaRoutingDataSource.Pin pin = ReplicaRoutingDataSource.pin()) {
+            switch (format) {
+                case CSV:
+                    writeCsv(out, header, values, pages, progress, rows);
+                    break;
+                case NDJSON:
+                    writeNdjson(out, header, values, pages, progress, rows);
+                    break;
+                default:
+                    writeXlsx(out, header, values, pages, progress, rows);
+            }
+        } finally {
+            String tag = format.getExtension();
+            sample.stop(meterRegistry.timer(metric, "format", tag));
+            meterRegistry.counter(metric + ".rows", "format", tag).increment(rows[0]);
+        }
+        return rows[0];
+    }
+    
+    /**
+     * 行在 workbook.write 时才生成，超出窗口的行直接压缩写入输出流，不会先落到临时文件，
+     * 所以客户端会立刻开始收到数据。工作表要在写出之前全部建好，所以先按总行数算出需要几个，
+     * 各个工作表的生成器依次从同一个游标取行，写满 sheetRows 行就留给下一个。
+     * 导出期间新增的行超出最后一个工作表时不再写出
+     */
+    private <T> void writeXlsx(OutputStream out, String[] header, Function<T, Object[]> values,
+                               Source<T> pages, LongConsumer progress, long[] rows) throws IOException {
+        int perSheet = Math.min(sheetRows, SpreadsheetVersion.EXCEL2007.getMaxRows()) - 1;
+        long sheets = pages.count.getAsLong() / perSheet + 1;
+        Cursor<T> cursor = new Cursor<>(pages);
+        DeferredSXSSFWorkbook workbook = new DeferredSXSSFWorkbook(windowSize);
+        try {
+            for (int n = 1; n <= sheets; n++) {
+                DeferredSXSSFSheet sheet = workbook.createSheet("sheet" + n);
+                sheet.setRowGenerator(s -> {
+                    Row first = s.createRow(0);
+                    for (int i = 0; i < header.length; i++) {
+                        first.createCell(i).setCellValue(header[i]);
+                    }
+                    T item;
+                    for (int r = 1; r <= perSheet && (item = cursor.next()) != null; r++) {
+                        Row row = s.createRow(r);
+                        Object[] cells = values.apply(item);
+                        for (int i = 0; i < cells.length; i++) {
+                            Cell cell = row.createCell(i);
+                            if (cells[i] instanceof Number) {
+                                cell.setCellValue(((Number) cells[i]).doubleValue());
+                            } else if (cells[i] instanceof Boolean) {
+                                cell.setCellValue((Boolean) cells[i]);
+                            } else {
+                                cell.setCellValue((String) cells[i]);
+                            }
+                        }
+                        if (++rows[0] % pageSize == 0) {
+                            progress.accept(rows[0]);
+                        }
+                    }
+                    if (rows[0] % pageSize != 0) {
+                        progress.accept(rows[0]);
+                    }
+                });
+            }
+            workbook.write(out);
+        } finally {
+            workbook.dispose();
+            workbook.close();
+        }
+    }
+    
+    /**
+     * 每行按 RFC 4180 转义，每写完一页刷新一次，客户端边查边收
+     */
+    private <T> void writeCsv(OutputStream out, String[] header, Function<T, Object[]> values,
+                              Source<T> pages, LongConsumer progress, long[] rows) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        CsvWriter csv = CsvUtil.getWriter(writer);
+        csv.write(header);
+        String[] line = new String[header.length];
+        forEachPage(pages, page -> {
+            for (T item : page) {
+                Object[] cells = values.apply(item);
+                for (int i = 0; i < cells.length; i++) {
+                    line[i] = cells[i] == null ? null : cells[i].toString();
+                }
+                csv.write(line);
+                rows[0]++;
+            }
+            csv.flush();
+            progress.accept(rows[0]);
+        });
+        csv.flush();
+    }
+    
+    /**
+     * 每行一个 JSON 对象，字段名取自表头，空值写成 null
+     */
+    private <T> void writeNdjson(OutputStream out, String[] header, Function<T, Object[]> values,
+                                 Source<T> pages, LongConsumer progress, long[] rows) throws IOException {
+        JsonGenerator generator = objectMapper.getFactory().createGenerator(out, JsonEncoding.UTF8)
+                .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        generator.setRootValueSeparator(null);
+        try {
+            forEachPage(pages, page -> {
+                try {
+                    for (T item : page) {
+                        Object[] cells = values.apply(item);
+                        generator.writeStartObject();
+                        for (int i = 0; i < cells.length; i++) {
+                            generator.writeFieldName(header[i]);
+                            generator.writeObject(cells[i]);
+                        }
+                        generator.writeEndObject();
+                        generator.writeRaw('\n');
+                        rows[0]++;
+                    }
+                    generator.flush();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                progress.accept(rows[0]);
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            generator.close();
+        }
+    }
+    
+    /**
+     * 按 id 升序一页一页地遍历用户表，每一页都从上一页最后一个 id 之后开始查，任何一页的代价都相同
+     *
+     * @param consumer 处理每一页的回调
+     */
+    public void forEachUserPage(Consumer<List<UserSummary>> consumer) {
+        forEachPage(users(), consumer);
+    }
+    
+    /**
+     * 按 id 升序一页一页地读取给定的用户，每页按 id 列表查询一次，已经删除的用户不在结果中
+     *
+     * @param ids      要读取的用户 id
+     * @param consumer 处理每一页的回调
+     */
+    public void forEachUserPage(BitSet ids, Consumer<List<UserSummary>> consumer) {
+        List<Integer> page = new ArrayList<>(Math.min(pageSize, ids.cardinality()));
+        for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+            page.add(id);
+            if (page.size() == pageSize) {
+                consumer.accept(userRepository.findByIdInOrderByIdAsc(page));
+                page.clear();
+            }
+        }
+        if (!page.isEmpty()) {
+            consumer.accept(userRepository.findByIdInOrderByIdAsc(page));
+        }
+    }
+    
+    /**
+     * 按 id 升序一页一页地遍历给定用户拥有或可供下载的文件，使用和文件列表相同的键集查询
+     *
+     * @param userId   当前用户的 id
+     * @param consumer 处理每一页的回调
+     */
+    public void forEachFilePage(int userId, Consumer<List<FileSummary>> consumer) {
+        forEachPage(files(userId), consumer);
+    }
+    
+    private Source<UserSummary> users() {
+        PageRequest page = PageRequest.of(0, pageSize);
+        return new Source<>(
+                after -> readOnly.execute(status -> userRepository.findByIdGreaterThanOrderByIdAsc(after, page)),
+                UserSummary::getId, () -> readOnly.execute(status -> userRepository.count()));
+    }
+    
+    private Source<FileSummary> files(int userId) {
+        return new Source<>(
+                after -> readOnly.execute(status -> fileRepository.findPageAfter(userId, after, null, pageSize)),
+                FileSummary::getId, () -> readOnly.execute(status -> fileRepository.countVisible(userId)));
+    }
+    
+    private <T> void forEachPage(Source<T> source, Consumer<List<T>> consumer) {
+        int after = 0;
+        List<T> page;
+        do {
+            page = source.pageAfter.apply(after);
+            if (!page.isEmpty()) {
+                consumer.accept(page);
+                after = source.id.applyAsInt(page.get(page.size() - 1));
+            }
+        } while (page.size() == pageSize);
+    }
+    
+    /**
+     * 按 id 键集分页读取的数据：第一页从 id 0 之后开始，之后每页从上一页最后一行的 id 之后开始
+     */
+    private static class Source<T> {
+        
+        final IntFunction<List<T>> pageAfter;
+        
+        final ToIntFunction<T> id;
+        
+        /**
+         * 总行数，xlsx 据此确定工作表的个数
+         */
+        final LongSupplier count;
+        
+        Source(IntFunction<List<T>> pageAfter, ToIntFunction<T> id, LongSupplier count) {
+            this.pageAfter = pageAfter;
+            this.id = id;
+            this.count = count;
+        }
+    }
+    
+    /**
+     * 一行一行地取 Source 中的数据，取完一页再查下一页
+     */
+    private class Cursor<T> {
+        
+        private final Source<T> source;
+        
+        private List<T> page = Collections.emptyList();
+        
+        private int index;
+        
+        private int after;
+        
+        private boolean last;
+        
+        Cursor(Source<T> source) {
+            this.source = source;
+        }
+        
+        /**
+         * @return 下一行，没有了返回 null
+         */
+        T next() {
+            if (index == page.size()) {
+                if (last) {
+                    return null;
+                }
+                page = source.pageAfter.apply(after);
+                index = 0;
+                last = page.size() < pageSize;
+                if (page.isEmpty()) {
+                    return null;
+                }
+                after = source.id.applyAsInt(page.get(page.size() - 1));
+            }
+            return page.get(index++);
+        }
+    }
+}
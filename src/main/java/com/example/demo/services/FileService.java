@@ -0,0 +1,207 @@
+package com.example.demo.services;
+
+import com.example.demo.models.File;
+import com.example.demo.models.FileBlobRepository;
+import com.example.demo.models.FileRepository;
+import com.example.demo.models.UserRepository;
+import com.example.demo.utils.MyMetricsConfig;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 文件的写入服务：保存内容、登记引用计数并创建 File 记录
+ */
+@Service
+public class FileService {
+    
+    @Resource
+    FileRepository fileRepository;
+    
+    @Resource
+    FileBlobRepository fileBlobRepository;
+    
+    @Resource
+    UserRepository userRepository;
+    
+    @Resource
+    FileStore fileStore;
+    
+    @Resource
+    TransactionTemplate transactionTemplate;
+    
+    @Resource
+    CounterService counterService;
+    
+    @Resource
+    FileTypeStatService fileTypeStatService;
+    
+    @Resource
+    UsageService usageService;
+    
+    @Resource
+    MeterRegistry meterRegistry;
+    
+    /**
+     * 把上传的内容写入 FileStore 并创建 File 记录。内容在事务外写到临时文件并计算哈希，
+     * 事务内先锁住引用计数再把内容放到哈希对应的位置，已经存在相同内容时不再写第二份。
+     * 整个过程（包括从客户端读取内容）按文件类型记录到 file.upload 计时器
+     *
+     * @param in       文件内容
+     * @param filename 文件名
+     * @param filetype 文件的 MIME 类型
+     * @param userId   上传文件的用户的 id
+     * @return 新建的文件
+     */
+    public File upload(InputStream in, String filename, String filetype, Integer userId) throws IOException {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        StagedBlob staged = fileStore.stage(in, filetype);
+        try {
+            return create(staged, filename, filetype, userId);
+        } finally {
+            fileStore.discard(staged);
+            sample.stop(meterRegistry.timer("file.upload", "type", MyMetricsConfig.fileType(filetype)));
+        }
+    }
+    
+    /**
+     * 在一个事务中登记暂存的内容并创建 File 记录，按文件类型累计 file.upload.bytes。
+     * 事务中第一步先把文件计入用户的占用，超过配额时抛出 QuotaExceededException，不会留下任何记录。
+     * 内容在所有语句都成功后才放到哈希对应的位置，之前失败时暂存文件原样保留
+     *
+     * @param staged   暂存的内容
+     * @param filename 文件名
+     * @param filetype 文件的 MIME 类型
+     * @param userId   上传文件的用户的 id
+     * @return 新建的文件
+     */
+    public File create(StagedBlob staged, String filename, String filetype, Integer userId) {
+        usageService.open(userId);
+        return transactionTemplate.execute(status -> {
+            usageService.add(userId, staged.getSize());
+            fileBlobRepository.retain(staged.getHash(), staged.getSize());
+            
+            File file = new File()
+                    .setFilename(filename)
+                    .setFiletype(filetype)
+                    .setFilesize(staged.getSize())
+                    .setHash(staged.getHash())
+                    .setUser(userRepository.getById(userId));
+            fileRepository.saveAndFlush(file);
+            fileTypeStatService.add(filetype, staged.getSize());
+            counterService.addFiles(1);
+            meterRegistry.counter("file.upload.bytes", "type", MyMetricsConfig.fileType(filetype))
+                    .increment(staged.getSize());
+            // retain 锁住的行保证回收任务在事务结束前不会删除这份内容
+            try {
+                fileStore.commit(staged);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return file;
+        });
+    }
+    
+    /**
+     * 用请求中的文件信息更新文件，只改文件名和是否公开下载这样的元数据。
+     * 大小、类型和内容哈希由上传决定，一律沿用原来的，所以不需要调整占用和类型统计
+     *
+     * @param existing 数据库中原来的文件
+     * @param file     新的文件信息
+     * @return 更新后的文件
+     */
+    @Transactional
+    public File update(File existing, File file) {
+        file.setId(existing.getId());
+        file.setUser(existing.getUser());
+        file.setFilesize(existing.getFilesize());
+        file.setFiletype(existing.getFiletype());
+        file.setHash(existing.getHash());
+        fileRepository.saveAndFlush(file);
+        return file;
+    }
+    
+    /**
+     * 删除文件记录并释放它对内容的引用。文件已经被另一个请求删除时抛出异常并回滚，不会重复释放
+     *
+     * @param file 要删除的文件
+     * @throws OptimisticLockingFailureException 文件已经不存在时
+     */
+    @Transactional
+    public void delete(File file) {
+        if (fileRepository.deleteByIds(List.of(file.getId())) != 1) {
+            throw new OptimisticLockingFailureException("file " + file.getId() + " was deleted concurrently");
+        }
+        fileTypeStatService.remove(file.getFiletype(), file.getFilesize());
+        if (file.getUser() != null) {
+            usageService.remove(file.getUser().getId(), 1, size(file.getFilesize()));
+        }
+        counterService.addFiles(-1);
+        if (file.getHash() != null) {
+            fileBlobRepository.release(file.getHash());
+        }
+    }
+    
+    /**
+     * 在一个事务中删除一组文件。文件行用一条语句删除，类型统计按类型、占用按用户、引用计数按内容各更新一次，
+     * 磁盘上的内容由 BlobCollector 在后台回收。
+     * 删除的行数少于文件数说明有文件已经被另一个请求删除，这时抛出异常回滚整个事务，
+     * 两个请求同时删除相同的文件时只有一个会减少占用、类型统计和引用计数
+     *
+     * @param files 要删除的文件，调用方已经检查过所有权
+     * @throws OptimisticLockingFailureException 有文件已经不存在，或内容的引用计数不够减时
+     */
+    @Transactional
+    public void deleteAll(List<File> files) {
+        List<Integer> ids = new ArrayList<>(files.size());
+        Map<String, long[]> types = new HashMap<>();
+        Map<Integer, long[]> users = new HashMap<>();
+        Map<String, Long> hashes = new HashMap<>();
+        for (File file : files) {
+            ids.add(file.getId());
+            long size = size(file.getFilesize());
+            // 文件数、总字节数、最大文件
+            long[] stat = types.computeIfAbsent(file.getFiletype(), type -> new long[3]);
+            stat[0]++;
+            stat[1] += size;
+            stat[2] = Math.max(stat[2], size);
+            if (file.getUser() != null) {
+                // 文件数、总字节数
+                long[] usage = users.computeIfAbsent(file.getUser().getId(), id -> new long[2]);
+                usage[0]++;
+                usage[1] += size;
+            }
+            if (file.getHash() != null) {
+                hashes.merge(file.getHash(), 1L, Long::sum);
+            }
+        }
+        
+        if (fileRepository.deleteByIds(ids) != ids.size()) {
+            throw new OptimisticLockingFailureException("some of the files were deleted concurrently");
+        }
+        types.forEach((type, stat) -> fileTypeStatService.removeAll(type, stat[0], stat[1], stat[2]));
+        users.forEach((userId, usage) -> usageService.remove(userId, usage[0], usage[1]));
+        hashes.forEach((hash, released) -> {
+            if (fileBlobRepository.release(hash, released) == 0) {
+                throw new OptimisticLockingFailureException("blob " + hash + " has fewer references than released");
+            }
+        });
+        counterService.addFiles(-files.size());
+    }
+    
+    private static long size(Long filesize) {
+        return filesize == null ? 0 : filesize;
+    }
+}
@@ -0,0 +1,104 @@
+package com.example.demo.services;
+
+import com.example.demo.models.File;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * 文件内容的存储。内容按 SHA-256 寻址，相同的内容只存一份。可压缩类型的内容可能以 gzip 保存，
+ * 哈希和大小始终对应原始内容
+ */
+public interface FileStore {
+    
+    /**
+     * 把输入流写到临时文件，同时计算 SHA-256。可压缩的类型在写入时压缩，超过压缩的大小上限时原样保存
+     *
+     * @param in       文件内容
+     * @param filetype 文件的 MIME 类型
+     * @return 暂存的内容
+     */
+    StagedBlob stage(InputStream in, String filetype) throws IOException;
+    
+    /**
+     * 在暂存目录中创建一个空文件，用于分块上传时按偏移写入
+     *
+     * @return 新建的临时文件
+     */
+    Path createTemp() throws IOException;
+    
+    /**
+     * 计算一个已经写完的临时文件的 SHA-256。可压缩且不超过大小上限的内容压缩到另一个临时文件，否则暂存为它的硬链接。
+     * 提交只移动暂存的文件，原来的临时文件始终保留，提交失败后可以再次暂存，由调用方在提交成功后删除
+     *
+     * @param temp     用 createTemp 创建的临时文件
+     * @param filetype 文件的 MIME 类型
+     * @return 暂存的内容
+     */
+    StagedBlob stage(Path temp, String filetype) throws IOException;
+    
+    /**
+     * 把暂存的内容移动到哈希对应的位置。同样的内容已经存在时直接丢弃暂存文件，不论已有的一份是否压缩，
+     * 并更新已有的一份的修改时间，回收任务不会把它当成事务失败留下的内容删掉
+     *
+     * @param staged 暂存的内容
+     */
+    void commit(StagedBlob staged) throws IOException;
+    
+    /**
+     * 删除还没有提交的暂存文件，已经提交的什么也不做
+     *
+     * @param staged 暂存的内容
+     */
+    void discard(StagedBlob staged);
+    
+    /**
+     * 文件内容在磁盘上的位置
+     *
+     * @param file 文件
+     * @return 内容所在的路径，文件可能已经不存在
+     */
+    Path locate(File file);
+    
+    /**
+     * locate 返回的内容是否以 gzip 保存
+     *
+     * @param blob 内容所在的路径
+     * @return 压缩保存时为 true
+     */
+    boolean compressed(Path blob);
+    
+    /**
+     * 删除哈希对应的内容，压缩和未压缩的都删除，内容不存在时什么也不做
+     *
+     * @param hash 内容的 SHA-256
+     */
+    void delete(String hash) throws IOException;
+    
+    /**
+     * 删除在给定时间之前最后修改的暂存文件，它们属于中断的上传
+     *
+     * @param before 截止时间
+     * @return 删除的文件数
+     */
+    int deleteTemp(Instant before) throws IOException;
+    
+    /**
+     * 遍历在给定时间之前写入的所有内容
+     *
+     * @param before   截止时间，之后写入的内容可能还没有登记
+     * @param consumer 接收每个内容的哈希
+     */
+    void scanBlobs(Instant before, Consumer<String> consumer) throws IOException;
+    
+    /**
+     * 遍历旧版本按 id_文件名 保存的文件
+     *
+     * @param consumer 接收文件 id 和路径
+     */
+    void scanLegacy(BiConsumer<Integer, Path> consumer) throws IOException;
+}
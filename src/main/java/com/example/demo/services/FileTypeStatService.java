@@ -0,0 +1,128 @@
+package com.example.demo.services;
+
+import com.example.demo.models.FileRepository;
+import com.example.demo.models.FileTypeStat;
+import com.example.demo.models.FileTypeStatRepository;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 维护按文件类型汇总的统计。上传、修改和删除在同一个事务里增量更新，
+ * 读取时只需要读出和类型数一样多的行，不再对整张文件表 group by
+ */
+@Service
+public class FileTypeStatService {
+    
+    @Resource
+    FileTypeStatRepository fileTypeStatRepository;
+    
+    @Resource
+    FileRepository fileRepository;
+    
+    /**
+     * 把一个文件计入它的类型，必须在事务中调用
+     *
+     * @param filetype 文件类型
+     * @param size     文件大小
+     */
+    public void add(String filetype, Long size) {
+        fileTypeStatRepository.add(key(filetype), size == null ? 0 : size);
+    }
+    
+    /**
+     * 从类型中减去一个已经删除并刷到数据库的文件，必须在事务中调用。
+     * 全部用批量更新完成，同一事务中多次调用也不会读到持久化上下文里过期的统计
+     *
+     * @param filetype 文件类型
+     * @param size     文件大小
+     */
+    public void remove(String filetype, Long size) {
+        long bytes = size == null ? 0 : size;
+        removeAll(filetype, 1, bytes, bytes);
+    }
+    
+    /**
+     * 从类型中减去一组已经删除的同类型文件，用于批量删除
+     *
+     * @param filetype 文件类型
+     * @param count    文件数
+     * @param bytes    这些文件的总大小
+     * @param largest  其中最大的文件的大小
+     */
+    public void removeAll(String filetype, long count, long bytes, long largest) {
+        String key = key(filetype);
+        fileTypeStatRepository.remove(key, count, bytes);
+        // 只有这一行的计数减到 0 时才删除，否则在这个类型内重新求最大的文件
+        if (fileTypeStatRepository.deleteIfEmpty(key) > 0) {
+            return;
+        }
+        if (key.isEmpty()) {
+            fileTypeStatRepository.recomputeLargestUntyped(largest);
+        } else {
+            fileTypeStatRepository.recomputeLargest(key, largest);
+        }
+    }
+    
+    /**
+     * 所有类型的统计，按类型排序
+     *
+     * @return 统计列表
+     */
+    public List<FileTypeStat> list() {
+        return fileTypeStatRepository.findAll(Sort.by("filetype"));
+    }
+    
+    /**
+     * 所有类型的名称，没有类型的文件返回 null，与原来 group by 的结果一致
+     *
+     * @return 类型名称列表
+     */
+    public List<String> names() {
+        List<String> names = new ArrayList<>();
+        for (FileTypeStat stat : list()) {
+            names.add(stat.getFiletype().isEmpty() ? null : stat.getFiletype());
+        }
+        return names;
+    }
+    
+    /**
+     * 丢弃现有的统计，从文件表重新汇总，用于修正偏差
+     *
+     * @return 重建后的统计
+     */
+    @Transactional
+    public List<FileTypeStat> rebuild() {
+        fileTypeStatRepository.deleteAllInBatch();
+        List<FileTypeStat> stats = new ArrayList<>();
+        for (Object[] row : fileRepository.aggregateByFiletype()) {
+            stats.add(new FileTypeStat()
+                    .setFiletype(key((String) row[0]))
+                    .setFileCount((Long) row[1])
+                    .setTotalBytes(row[2] == null ? 0 : (Long) row[2])
+                    .setLargest(row[3] == null ? 0 : (Long) row[3]));
+        }
+        return fileTypeStatRepository.saveAll(stats);
+    }
+    
+    /**
+     * 第一次部署时统计表是空的，如果已经有文件就汇总一次
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    @Transactional
+    public void initialize() {
+        if (fileTypeStatRepository.count() == 0 && fileRepository.count() > 0) {
+            rebuild();
+        }
+    }
+    
+    private static String key(String filetype) {
+        return filetype == null ? "" : filetype;
+    }
+}
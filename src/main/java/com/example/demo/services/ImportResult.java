@@ -0,0 +1,22 @@
+package com.example.demo.services;
+
+import lombok.Getter;
+
+/**
+ * 一次导入的结果：写入的行数、耗时和吞吐量
+ */
+@Getter
+public class ImportResult {
+    
+    private final long rows;
+    
+    private final long millis;
+    
+    private final long rowsPerSecond;
+    
+    public ImportResult(long rows, long nanos) {
+        this.rows = rows;
+        this.millis = nanos / 1_000_000;
+        this.rowsPerSecond = nanos == 0 ? rows : rows * 1_000_000_000L / nanos;
+    }
+}
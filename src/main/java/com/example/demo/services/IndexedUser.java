@@ -0,0 +1,70 @@
+package com.example.demo.services;
+
+import com.example.demo.models.User;
+import com.example.demo.models.UserSummary;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 搜索索引中保存的一个用户。创建时复制字段，之后实体再被修改也不影响索引
+ */
+@Getter
+public class IndexedUser implements UserSummary {
+    
+    private final Integer id;
+    
+    private final String username;
+    
+    private final String nickname;
+    
+    private final String email;
+    
+    private final String phone;
+    
+    private final String address;
+    
+    /**
+     * 可搜索字段的小写形式，用 \0 分隔，用来确认候选结果确实包含查询串
+     */
+    @JsonIgnore
+    private final String text;
+    
+    private IndexedUser(Integer id, String username, String nickname, String email, String phone, String address) {
+        this.id = id;
+        this.username = username;
+        this.nickname = nickname;
+        this.email = email;
+        this.phone = phone;
+        this.address = address;
+        this.text = String.join("\0", fields());
+    }
+    
+    public static IndexedUser of(User user) {
+        return new IndexedUser(user.getId(), user.getUsername(), user.getNickname(),
+                user.getEmail(), user.getPhone(), user.getAddress());
+    }
+    
+    public static IndexedUser of(UserSummary user) {
+        return new IndexedUser(user.getId(), user.getUsername(), user.getNickname(),
+                user.getEmail(), user.getPhone(), user.getAddress());
+    }
+    
+    /**
+     * 返回非空的可搜索字段，已转成小写
+     *
+     * @return 字段值列表
+     */
+    @JsonIgnore
+    public List<String> fields() {
+        List<String> fields = new ArrayList<>(5);
+        for (String value : new String[]{username, nickname, email, phone, address}) {
+            if (value != null && !value.isBlank()) {
+                fields.add(UserSearchIndex.normalize(value));
+            }
+        }
+        return fields;
+    }
+}
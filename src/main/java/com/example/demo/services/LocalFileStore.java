@@ -0,0 +1,322 @@
+package com.example.demo.services;
+
+import cn.hutool.core.util.HexUtil;
+import com.example.demo.models.File;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * 存在本地磁盘上的 FileStore。内容放在 root/ab/cd/abcd... 下，两级哈希前缀把文件分散到
+ * 65536 个目录里，单个目录不会有太多条目。BlobCodec 判断为可压缩且不超过大小上限的内容保存为同一位置的 哈希.gz。
+ * 旧版本按 id_文件名 存在 classpath 下 file 目录中的文件仍然可以读取
+ */
+@Component
+public class LocalFileStore implements FileStore {
+    
+    private static final Pattern LEGACY_NAME = Pattern.compile("(\\d{1,9})_.*");
+    
+    private static final String GZIP_SUFFIX = ".gz";
+    
+    private static final int BUFFER_SIZE = 65536;
+    
+    @Value("${file.store.root:data/files}")
+    String root;
+    
+    @Resource
+    BlobCodec blobCodec;
+    
+    private Path blobs;
+    
+    private Path tmp;
+    
+    @PostConstruct
+    public void init() throws IOException {
+        blobs = Paths.get(root, "blobs").toAbsolutePath();
+        tmp = Paths.get(root, "tmp").toAbsolutePath();
+        Files.createDirectories(blobs);
+        Files.createDirectories(tmp);
+    }
+    
+    @Override
+    public StagedBlob stage(InputStream in, String filetype) throws IOException {
+        return write(in, Files.createTempFile(tmp, "upload", ".part"), blobCodec.compressible(filetype));
+    }
+    
+    @Override
+    public Path createTemp() throws IOException {
+        return Files.createTempFile(tmp, "chunked", ".part");
+    }
+    
+    @Override
+    public StagedBlob stage(Path temp, String filetype) throws IOException {
+        try (InputStream in = Files.newInputStream(temp)) {
+            if (blobCodec.compressible(filetype, Files.size(temp))) {
+                return write(in, Files.createTempFile(tmp, "upload", ".part"), true);
+            }
+            MessageDigest digest = sha256();
+            long size;
+            try (DigestInputStream digestIn = new DigestInputStream(in, digest)) {
+                size = digestIn.transferTo(OutputStream.nullOutputStream());
+            }
+            return new StagedBlob(link(temp), HexUtil.encodeHexStr(digest.digest()), size, false);
+        }
+    }
+    
+    /**
+     * 在暂存目录中给文件建一个硬链接，提交时移动的是链接，原来的文件保留。文件系统不支持硬链接时复制一份
+     *
+     * @param file 要链接的文件
+     * @return 新的临时文件
+     */
+    private Path link(Path file) throws IOException {
+        Path link = Files.createTempFile(tmp, "upload", ".part");
+        try {
+            Files.delete(link);
+            Files.createLink(link, file);
+        } catch (UnsupportedOperationException | IOException e) {
+            Files.copy(file, link, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return link;
+    }
+    
+    /**
+     * 把输入流写到临时文件，同时计算原始内容的 SHA-256，需要时一边读一边压缩。
+     * 事先不知道大小，压缩写入超过 BlobCodec 的上限时，把已经写入的部分解压回来，剩下的原样接在后面
+     *
+     * @param in       文件内容
+     * @param temp     要写入的临时文件
+     * @param compress 是否压缩
+     * @return 暂存的内容
+     */
+    private StagedBlob write(InputStream in, Path temp, boolean compress) throws IOException {
+        MessageDigest digest = sha256();
+        long size = 0;
+        try (DigestInputStream digestIn = new DigestInputStream(in, digest)) {
+            if (compress) {
+                try (OutputStream out = blobCodec.compress(Files.newOutputStream(temp))) {
+                    size = copy(digestIn, out, blobCodec.getMaxSize() + 1);
+                }
+                if (size > blobCodec.getMaxSize()) {
+                    compress = false;
+                    Path raw = inflate(temp);
+                    Files.delete(temp);
+                    temp = raw;
+                }
+            }
+            if (!compress) {
+                try (OutputStream out = Files.newOutputStream(temp, StandardOpenOption.APPEND)) {
+                    size += digestIn.transferTo(out);
+                }
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        return new StagedBlob(temp, HexUtil.encodeHexStr(digest.digest()), size, compress);
+    }
+    
+    /**
+     * 从输入流复制最多 limit 个字节
+     *
+     * @param in    输入流
+     * @param out   输出流
+     * @param limit 最多复制的字节数
+     * @return 复制的字节数，小于 limit 时输入流已经读完
+     */
+    private static long copy(InputStream in, OutputStream out, long limit) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long count = 0;
+        while (count < limit) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, limit - count));
+            if (n < 0) {
+                break;
+            }
+            out.write(buffer, 0, n);
+            count += n;
+        }
+        return count;
+    }
+    
+    /**
+     * 把 gzip 临时文件解压到新的临时文件
+     *
+     * @param compressed 压缩的临时文件，保留不删
+     * @return 解压后的临时文件
+     */
+    private Path inflate(Path compressed) throws IOException {
+        Path raw = Files.createTempFile(tmp, "upload", ".part");
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(compressed), BUFFER_SIZE);
+             OutputStream out = Files.newOutputStream(raw)) {
+            in.transferTo(out);
+        } catch (IOException e) {
+            Files.deleteIfExists(raw);
+            throw e;
+        }
+        return raw;
+    }
+    
+    @Override
+    public void commit(StagedBlob staged) throws IOException {
+        Path raw = path(staged.getHash());
+        Path target = staged.isCompressed() ? gzip(raw) : raw;
+        // 沿用已有的一份时更新它的修改时间，回收任务只处理宽限期之前写入的内容，不会在提交前把它当成未登记删掉
+        if (touch(raw) || touch(gzip(raw))) {
+            Files.deleteIfExists(staged.getTemp());
+            return;
+        }
+        Files.createDirectories(target.getParent());
+        try {
+            Files.move(staged.getTemp(), target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            Files.deleteIfExists(staged.getTemp());
+        }
+    }
+    
+    @Override
+    public void discard(StagedBlob staged) {
+        try {
+            Files.deleteIfExists(staged.getTemp());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    @Override
+    public Path locate(File file) {
+        if (file.getHash() != null) {
+            Path raw = path(file.getHash());
+            Path compressed = gzip(raw);
+            return !Files.exists(raw) && Files.exists(compressed) ? compressed : raw;
+        }
+        return legacy().resolve(file.getId() + "_" + file.getFilename());
+    }
+    
+    @Override
+    public boolean compressed(Path blob) {
+        return blob.startsWith(blobs) && blob.getFileName().toString().endsWith(GZIP_SUFFIX);
+    }
+    
+    @Override
+    public void delete(String hash) throws IOException {
+        Files.deleteIfExists(path(hash));
+        Files.deleteIfExists(gzip(path(hash)));
+    }
+    
+    @Override
+    public int deleteTemp(Instant before) throws IOException {
+        int deleted = 0;
+        try (Stream<Path> files = Files.list(tmp)) {
+            for (Iterator<Path> it = files.iterator(); it.hasNext(); ) {
+                Path file = it.next();
+                if (modifiedBefore(file, before) && Files.deleteIfExists(file)) {
+                    deleted++;
+                }
+            }
+        }
+        return deleted;
+    }
+    
+    @Override
+    public void scanBlobs(Instant before, Consumer<String> consumer) throws IOException {
+        try (Stream<Path> files = Files.walk(blobs, 3)) {
+            for (Iterator<Path> it = files.iterator(); it.hasNext(); ) {
+                Path file = it.next();
+                if (Files.isRegularFile(file) && modifiedBefore(file, before)) {
+                    String name = file.getFileName().toString();
+                    consumer.accept(name.endsWith(GZIP_SUFFIX) ?
+                            name.substring(0, name.length() - GZIP_SUFFIX.length()) : name);
+                }
+            }
+        }
+    }
+    
+    @Override
+    public void scanLegacy(BiConsumer<Integer, Path> consumer) throws IOException {
+        Path legacy = legacy();
+        if (!Files.isDirectory(legacy)) {
+            return;
+        }
+        try (Stream<Path> files = Files.list(legacy)) {
+            for (Iterator<Path> it = files.iterator(); it.hasNext(); ) {
+                Path file = it.next();
+                Matcher matcher = LEGACY_NAME.matcher(file.getFileName().toString());
+                if (Files.isRegularFile(file) && matcher.matches()) {
+                    consumer.accept(Integer.valueOf(matcher.group(1)), file);
+                }
+            }
+        }
+    }
+    
+    /**
+     * 旧版本保存文件的目录
+     *
+     * @return classpath 根目录下的 file 目录
+     */
+    private Path legacy() {
+        return Paths.get(this.getClass().getResource("/").getPath(), "file");
+    }
+    
+    private static boolean touch(Path blob) throws IOException {
+        try {
+            Files.setLastModifiedTime(blob, FileTime.from(Instant.now()));
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+    
+    private static boolean modifiedBefore(Path file, Instant before) {
+        try {
+            return Files.getLastModifiedTime(file).toInstant().isBefore(before);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * 哈希对应的路径
+     *
+     * @param hash 内容的 SHA-256，十六进制小写
+     * @return root/blobs/前两位/第三四位/哈希
+     */
+    Path path(String hash) {
+        return blobs.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash);
+    }
+    
+    private static Path gzip(Path raw) {
+        return raw.resolveSibling(raw.getFileName() + GZIP_SUFFIX);
+    }
+    
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
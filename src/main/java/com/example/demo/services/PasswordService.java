@@ -0,0 +1,216 @@
+package com.example.demo.services;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.concurrent.DelegatingSecurityContextExecutor;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.crypto.bcrypt.BCrypt;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * 在专用的线程池中计算 BCrypt。线程数默认等于 CPU 核数，队列有上限，队列满时立即抛出
+ * RejectedExecutionException，由 MyExceptionHandler 转成 503，哈希不会占满 Tomcat 的请求线程。
+ * 批量计算最多同时占用 password.batch-threads 个线程，其余线程留给登录等单个请求。
+ * 每次计算的耗时记录到 password.bcrypt，被拒绝的次数记录到 password.bcrypt.rejected，线程池本身的指标名为 bcrypt
+ */
+@Service
+public class PasswordService {
+    
+    @Value("${password.bcrypt.strength:10}")
+    int strength;
+    
+    @Value("${password.pool-size:0}")
+    int poolSize;
+    
+    @Value("${password.queue-capacity:64}")
+    int queueCapacity;
+    
+    /**
+     * 所有批量计算合起来最多同时占用的线程数，为 0 时取线程数的一半，至少一个
+     */
+    @Value("${password.batch-threads:0}")
+    int batchThreads;
+    
+    @Resource
+    MeterRegistry meterRegistry;
+    
+    private ThreadPoolExecutor executor;
+    
+    /**
+     * 把提交时的登录用户带到计算线程，之后在回调中写数据库时 ReplicaRoutingDataSource 能知道是谁写的
+     */
+    private Executor securedExecutor;
+    
+    /**
+     * 等待空闲名额的批量计算，所有批量请求共用
+     */
+    private final Queue<Runnable> batchQueue = new ConcurrentLinkedQueue<>();
+    
+    private final AtomicInteger batchRunning = new AtomicInteger();
+    
+    @PostConstruct
+    public void init() {
+        int threads = poolSize > 0 ? poolSize : Runtime.getRuntime().availableProcessors();
+        AtomicInteger sequence = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+            Thread thread = new Thread(runnable, "bcrypt-" + sequence.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.AbortPolicy());
+        securedExecutor = new DelegatingSecurityContextExecutor(executor);
+        if (batchThreads <= 0) {
+            batchThreads = Math.max(1, threads / 2);
+        }
+        new ExecutorServiceMetrics(executor, "bcrypt", Collections.emptyList()).bindTo(meterRegistry);
+    }
+    
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+    }
+    
+    /**
+     * 校验密码
+     *
+     * @param password     明文密码
+     * @param passwordHash 保存的哈希
+     * @return 密码正确时为 true
+     */
+    public CompletableFuture<Boolean> matches(String password, String passwordHash) {
+        return submit("check", () -> BCrypt.checkpw(password, passwordHash));
+    }
+    
+    /**
+     * 用当前配置的工作因子计算哈希
+     *
+     * @param password 明文密码
+     * @return 哈希
+     */
+    public CompletableFuture<String> hash(String password) {
+        return submit("hash", () -> BCrypt.hashpw(password, BCrypt.gensalt(strength)));
+    }
+    
+    /**
+     * 计算一组密码的哈希。所有批量请求的计算排在同一个队列里，合起来最多占用 batchThreads 个线程，
+     * 批量请求再多也不会占满线程池挤掉登录请求。有一个失败时结果立即失败，还没开始的不再计算
+     *
+     * @param passwords 明文密码
+     * @return 与 passwords 顺序相同的哈希
+     */
+    public CompletableFuture<List<String>> hashAll(List<String> passwords) {
+        Executor batchExecutor = new DelegatingSecurityContextExecutor(executor, SecurityContextHolder.getContext());
+        String[] hashes = new String[passwords.size()];
+        AtomicInteger remaining = new AtomicInteger(passwords.size());
+        CompletableFuture<List<String>> result = new CompletableFuture<>();
+        if (passwords.isEmpty()) {
+            result.complete(Collections.emptyList());
+            return result;
+        }
+        for (int i = 0; i < passwords.size(); i++) {
+            int index = i;
+            batchQueue.add(() -> {
+                if (result.isDone()) {
+                    batchRunning.decrementAndGet();
+                    return;
+                }
+                try {
+                    submit("hash", () -> BCrypt.hashpw(passwords.get(index), BCrypt.gensalt(strength)), batchExecutor)
+                            .whenComplete((hash, error) -> {
+                                batchRunning.decrementAndGet();
+                                if (error != null) {
+                                    result.completeExceptionally(error);
+                                } else {
+                                    hashes[index] = hash;
+                                    if (remaining.decrementAndGet() == 0) {
+                                        result.complete(Arrays.asList(hashes));
+                                    }
+                                }
+                                drainBatch();
+                            });
+                } catch (RejectedExecutionException e) {
+                    batchRunning.decrementAndGet();
+                    result.completeExceptionally(e);
+                }
+            });
+        }
+        drainBatch();
+        return result;
+    }
+    
+    /**
+     * 在名额以内从队列中取出批量计算开始执行，每个计算结束时再调用一次
+     */
+    private void drainBatch() {
+        while (!batchQueue.isEmpty()) {
+            int running = batchRunning.get();
+            if (running >= batchThreads) {
+                return;
+            }
+            if (!batchRunning.compareAndSet(running, running + 1)) {
+                continue;
+            }
+            Runnable task = batchQueue.poll();
+            if (task == null) {
+                // 名额被别的线程抢先用掉了队列中最后的任务，还回名额后重新检查
+                batchRunning.decrementAndGet();
+                continue;
+            }
+            task.run();
+        }
+    }
+    
+    /**
+     * 把计算提交到线程池，只计算执行时间，不包括排队时间
+     *
+     * @param operation 操作名，作为 password.bcrypt 的 operation 标签
+     * @param task      计算
+     * @return 计算结果
+     */
+    private <T> CompletableFuture<T> submit(String operation, Supplier<T> task) {
+        return submit(operation, task, securedExecutor);
+    }
+    
+    private <T> CompletableFuture<T> submit(String operation, Supplier<T> task, Executor target) {
+        Timer timer = meterRegistry.timer("password.bcrypt", "operation", operation);
+        try {
+            return CompletableFuture.supplyAsync(() -> timer.record(task), target);
+        } catch (RejectedExecutionException e) {
+            meterRegistry.counter("password.bcrypt.rejected").increment();
+            throw e;
+        }
+    }
+    
+    /**
+     * 哈希的工作因子与当前配置不同时，需要在下次登录成功后重新计算
+     *
+     * @param passwordHash 保存的哈希，格式为 $2a$10$...
+     * @return 需要重新计算时为 true
+     */
+    public boolean needsRehash(String passwordHash) {
+        try {
+            return Integer.parseInt(passwordHash.substring(4, 6)) != strength;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+}
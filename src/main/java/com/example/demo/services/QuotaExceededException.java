@@ -0,0 +1,11 @@
+package com.example.demo.services;
+
+/**
+ * 写入后会超过用户的存储配额
+ */
+public class QuotaExceededException extends RuntimeException {
+    
+    public QuotaExceededException(long used, long requested, long quota) {
+        super("storage quota exceeded: " + used + " of " + quota + " bytes used, " + requested + " more requested");
+    }
+}
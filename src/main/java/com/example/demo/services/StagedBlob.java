@@ -0,0 +1,30 @@
+package com.example.demo.services;
+
+import lombok.Getter;
+
+import java.nio.file.Path;
+
+/**
+ * 已经写到临时文件、算好哈希，但还没有放到内容地址上的文件内容
+ */
+@Getter
+public class StagedBlob {
+    
+    private final Path temp;
+    
+    private final String hash;
+    
+    private final long size;
+    
+    /**
+     * 临时文件是否已经用 gzip 压缩，size 和 hash 始终对应原始内容
+     */
+    private final boolean compressed;
+    
+    public StagedBlob(Path temp, String hash, long size, boolean compressed) {
+        this.temp = temp;
+        this.hash = hash;
+        this.size = size;
+        this.compressed = compressed;
+    }
+}
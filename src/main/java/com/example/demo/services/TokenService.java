@@ -0,0 +1,122 @@
+package com.example.demo.services;
+
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.JWTVerifier;
+import com.auth0.jwt.algorithms.Algorithm;
+import com.auth0.jwt.exceptions.JWTVerificationException;
+import com.auth0.jwt.interfaces.DecodedJWT;
+import com.example.demo.models.User;
+import com.example.demo.models.UserRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 签发和刷新令牌。访问令牌有效期短，只验签和查吊销表，不访问数据库；
+ * 刷新令牌有效期长，只能用来换新的访问令牌，换的时候和数据库中的令牌代数核对
+ */
+@Service
+public class TokenService {
+    
+    public static final String TYPE = "typ";
+    
+    public static final String ACCESS = "access";
+    
+    public static final String REFRESH = "refresh";
+    
+    public static final String GENERATION = "gen";
+    
+    @Resource
+    UserRepository userRepository;
+    
+    @Value("${SECRET}")
+    String secret;
+    
+    /**
+     * 访问令牌的有效期，单位毫秒
+     */
+    @Value("${jwt.access-ttl:900000}")
+    long accessTtl;
+    
+    /**
+     * 刷新令牌的有效期，单位毫秒
+     */
+    @Value("${jwt.refresh-ttl:1209600000}")
+    long refreshTtl;
+    
+    private Algorithm algorithm;
+    
+    private JWTVerifier refreshVerifier;
+    
+    @PostConstruct
+    public void init() {
+        algorithm = Algorithm.HMAC256(secret);
+        refreshVerifier = JWT.require(algorithm)
+                .withClaim(TYPE, REFRESH)
+                .withClaimPresence(GENERATION)
+                .build();
+    }
+    
+    /**
+     * 为用户签发一对令牌，都带有用户当前的令牌代数
+     *
+     * @param user 用户
+     * @return token、refreshToken 和访问令牌的有效秒数 expiresIn
+     */
+    public Map<String, Object> issue(User user) {
+        Map<String, Object> claim = new HashMap<>();
+        claim.put("username", user.getUsername());
+        claim.put("id", user.getId());
+        
+        long now = System.currentTimeMillis();
+        Map<String, Object> map = new HashMap<>();
+        map.put("token", sign(claim, user.getTokenGeneration(), ACCESS, now, accessTtl));
+        map.put("refreshToken", sign(claim, user.getTokenGeneration(), REFRESH, now, refreshTtl));
+        map.put("expiresIn", accessTtl / 1000);
+        return map;
+    }
+    
+    /**
+     * 验证刷新令牌，并确认其中的令牌代数仍是数据库中的当前值。刷新不需要登录，写后读的粘滞不起作用，
+     * 所以在读写事务中查主库，修改密码后不会从落后的副本读到旧的代数
+     *
+     * @param refreshToken 刷新令牌
+     * @return 令牌所属的用户，令牌无效、已过期、已吊销或用户已删除时返回 null
+     */
+    @Transactional
+    public User refresh(String refreshToken) {
+        DecodedJWT jwt;
+        try {
+            jwt = refreshVerifier.verify(refreshToken);
+        } catch (JWTVerificationException e) {
+            return null;
+        }
+        Map<String, Object> claim = jwt.getClaim("userForToken").asMap();
+        Integer generation = jwt.getClaim(GENERATION).asInt();
+        if (claim == null || !(claim.get("id") instanceof Integer) || generation == null) {
+            return null;
+        }
+        
+        User user = userRepository.findById((Integer) claim.get("id")).orElse(null);
+        if (user == null || user.getTokenGeneration() != generation) {
+            return null;
+        }
+        return user;
+    }
+    
+    private String sign(Map<String, Object> claim, int generation, String type, long now, long ttl) {
+        return JWT.create()
+                .withClaim("userForToken", claim)
+                .withClaim(GENERATION, generation)
+                .withClaim(TYPE, type)
+                .withIssuedAt(new Date(now))
+                .withExpiresAt(new Date(now + ttl))
+                .sign(algorithm);
+    }
+}
@@ -0,0 +1,154 @@
+package com.example.demo.services;
+
+import lombok.Getter;
+
+import java.nio.file.Path;
+import java.util.BitSet;
+
+/**
+ * 一次分块上传。记录文件的大小、分块大小和已经收到的分块
+ */
+@Getter
+public class UploadSession {
+    
+    private final String id;
+    
+    private final Integer userId;
+    
+    private final String filename;
+    
+    private final String filetype;
+    
+    private final long size;
+    
+    private final int chunkSize;
+    
+    private final Path path;
+    
+    private final BitSet received;
+    
+    private volatile long touchedAt = System.currentTimeMillis();
+    
+    private boolean committing;
+    
+    /**
+     * 正在写入的分块数，提交要等它们全部写完
+     */
+    private int writers;
+    
+    public UploadSession(String id, Integer userId, String filename, String filetype,
+                         long size, int chunkSize, Path path) {
+        this.id = id;
+        this.userId = userId;
+        this.filename = filename;
+        this.filetype = filetype;
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.path = path;
+        this.received = new BitSet(chunks());
+    }
+    
+    /**
+     * 分块的总数，最后一块可能比 chunkSize 小
+     */
+    public int chunks() {
+        return (int) ((size + chunkSize - 1) / chunkSize);
+    }
+    
+    /**
+     * 第 index 块的字节数
+     */
+    public long chunkLength(int index) {
+        return Math.min(chunkSize, size - (long) index * chunkSize);
+    }
+    
+    public synchronized void markReceived(int index) {
+        received.set(index);
+        touchedAt = System.currentTimeMillis();
+    }
+    
+    public synchronized int[] receivedChunks() {
+        return received.stream().toArray();
+    }
+    
+    public synchronized int[] missingChunks() {
+        BitSet missing = (BitSet) received.clone();
+        missing.flip(0, chunks());
+        return missing.stream().toArray();
+    }
+    
+    /**
+     * 开始写入一块，正在提交时拒绝。写完后必须调用 endWrite
+     *
+     * @return 可以写入时返回 true
+     */
+    public synchronized boolean startWrite() {
+        if (committing) {
+            return false;
+        }
+        writers++;
+        return true;
+    }
+    
+    public synchronized void endWrite() {
+        writers--;
+        notifyAll();
+    }
+    
+    /**
+     * 标记为正在提交，之后不再接受新的分块，并等待正在写入的分块写完。所有分块都收到后才能提交
+     *
+     * @return 可以提交时返回 true
+     */
+    public synchronized boolean startCommit() {
+        if (!close()) {
+            return false;
+        }
+        if (received.cardinality() != chunks()) {
+            committing = false;
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * 与 startCommit 相同，但不要求分块到齐，用于放弃上传。成功后会话不再使用
+     *
+     * @return 没有在提交时返回 true
+     */
+    public synchronized boolean startAbort() {
+        return close();
+    }
+    
+    private boolean close() {
+        if (committing) {
+            return false;
+        }
+        committing = true;
+        try {
+            while (writers > 0) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            committing = false;
+            return false;
+        }
+        return true;
+    }
+    
+    public synchronized void cancelCommit() {
+        committing = false;
+    }
+    
+    public synchronized boolean isCommitting() {
+        return committing;
+    }
+    
+    /**
+     * 既没有在提交，也没有正在写入的分块
+     */
+    public synchronized boolean isIdle() {
+        return !committing && writers == 0;
+    }
+}
@@ -0,0 +1,165 @@
+package com.example.demo.services;
+
+import com.example.demo.models.FileRepository;
+import com.example.demo.models.UserUsage;
+import com.example.demo.models.UserUsageRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 维护每个用户占用的存储并检查配额。上传和删除在同一个事务里增量更新，
+ * 查询占用只读一行，不再对用户的所有文件求和
+ */
+@Service
+public class UsageService {
+    
+    @Resource
+    UserUsageRepository userUsageRepository;
+    
+    @Resource
+    FileRepository fileRepository;
+    
+    /**
+     * 每个用户的配额，单位字节，不大于 0 时不限制
+     */
+    @Value("${file.quota:10737418240}")
+    long quota;
+    
+    /**
+     * 还没有提交的分块上传会话预留的字节数，按用户 id 记录
+     */
+    private final Map<Integer, Long> reserved = new ConcurrentHashMap<>();
+    
+    public long getQuota() {
+        return quota;
+    }
+    
+    /**
+     * 用户当前的占用
+     *
+     * @param userId 用户的 id
+     * @return 占用，用户还没有上传过文件时各项为 0
+     */
+    public UserUsage get(int userId) {
+        return userUsageRepository.findById(userId).orElseGet(() -> new UserUsage().setUserId(userId));
+    }
+    
+    /**
+     * 在写入任何内容之前检查再写入 bytes 个字节是否会超过配额，已经预留的字节也算作占用。
+     * 只是提前拒绝，真正的检查在 add 中
+     *
+     * @param userId 用户的 id
+     * @param bytes  将要写入的字节数
+     * @throws QuotaExceededException 会超过配额时
+     */
+    public void check(int userId, long bytes) {
+        if (quota <= 0) {
+            return;
+        }
+        long used = get(userId).getTotalBytes() + reserved.getOrDefault(userId, 0L);
+        if (used + bytes > quota) {
+            throw new QuotaExceededException(used, bytes, quota);
+        }
+    }
+    
+    /**
+     * 为一个分块上传会话预留 bytes 个字节，直到提交或放弃时用 release 释放
+     *
+     * @param userId 用户的 id
+     * @param bytes  会话的总字节数
+     * @throws QuotaExceededException 加上已有的占用和预留后超过配额时
+     */
+    public synchronized void reserve(int userId, long bytes) {
+        check(userId, bytes);
+        reserved.merge(userId, bytes, Long::sum);
+    }
+    
+    /**
+     * 释放 reserve 预留的字节
+     *
+     * @param userId 用户的 id
+     * @param bytes  会话的总字节数
+     */
+    public void release(int userId, long bytes) {
+        reserved.computeIfPresent(userId, (id, value) -> value == bytes ? null : value - bytes);
+    }
+    
+    /**
+     * 确保用户有一行记录，必须在事务外调用。两个请求同时插入时，失败的一方直接使用对方插入的行
+     *
+     * @param userId 用户的 id
+     */
+    public void open(int userId) {
+        if (userUsageRepository.existsById(userId)) {
+            return;
+        }
+        try {
+            userUsageRepository.saveAndFlush(new UserUsage().setUserId(userId));
+        } catch (DataIntegrityViolationException e) {
+            // 另一个请求已经插入
+        }
+    }
+    
+    /**
+     * 把一个新文件计入用户的占用，必须在事务中调用，调用前先用 open 确保记录存在
+     *
+     * @param userId 用户的 id
+     * @param bytes  文件大小
+     * @throws QuotaExceededException 加上后超过配额时，事务应当回滚
+     */
+    public void add(int userId, long bytes) {
+        if (userUsageRepository.add(userId, 1, bytes, quota) == 0) {
+            throw new QuotaExceededException(get(userId).getTotalBytes(), bytes, quota);
+        }
+    }
+    
+    /**
+     * 从用户的占用中减去若干个文件，不检查配额。文件数为 0 时只调整字节数，用于修改文件大小
+     *
+     * @param userId 用户的 id
+     * @param files  文件数
+     * @param bytes  这些文件的总大小
+     */
+    public void remove(int userId, long files, long bytes) {
+        userUsageRepository.add(userId, -files, -bytes, 0);
+    }
+    
+    /**
+     * 丢弃现有的占用，从文件表重新汇总，用于修正偏差
+     *
+     * @return 重建后的占用
+     */
+    @Transactional
+    public List<UserUsage> rebuild() {
+        userUsageRepository.deleteAllInBatch();
+        List<UserUsage> usages = new ArrayList<>();
+        for (Object[] row : fileRepository.aggregateByUser()) {
+            usages.add(new UserUsage()
+                    .setUserId((Integer) row[0])
+                    .setFileCount((Long) row[1])
+                    .setTotalBytes(row[2] == null ? 0 : (Long) row[2]));
+        }
+        return userUsageRepository.saveAll(usages);
+    }
+    
+    /**
+     * 第一次部署时占用表是空的，如果已经有文件就汇总一次
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    @Transactional
+    public void initialize() {
+        if (userUsageRepository.count() == 0 && fileRepository.count() > 0) {
+            rebuild();
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package com.example.demo.services;
+
+import com.example.demo.models.User;
+import com.example.demo.models.UserSummary;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Pattern;
+
+/**
+ * 用户名、昵称、邮箱、电话和地址的内存倒排索引，搜索不再对数据库做 LIKE 扫描。
+ * 三个字符及以上的查询按三元组求交集后逐个确认，可以匹配字段中的任意位置；
+ * 更短的查询按词前缀匹配，词是字段的完整值和按非字母数字拆开的各段。
+ * 启动完成后从数据库分页建立，之后由创建、修改、删除和导入在事务提交后增量更新
+ */
+@Service
+public class UserSearchIndex {
+    
+    private static final int GRAM = 3;
+    
+    private static final Pattern SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+    
+    private final Map<Integer, IndexedUser> users = new ConcurrentHashMap<>();
+    
+    private final Map<String, Set<Integer>> grams = new ConcurrentHashMap<>();
+    
+    private final ConcurrentNavigableMap<String, Set<Integer>> tokens = new ConcurrentSkipListMap<>();
+    
+    @Resource
+    ExportService exportService;
+    
+    /**
+     * 从数据库按 id 分页读取全部用户建立索引。放在读写事务中以便从主库读取：索引之后只做增量更新，
+     * 从落后的副本建立会一直缺少那段时间内新增的用户
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    @Transactional
+    public void build() {
+        exportService.forEachUserPage(page -> {
+            for (UserSummary user : page) {
+                apply(IndexedUser.of(user));
+            }
+        });
+    }
+    
+    /**
+     * 返回包含查询串的用户，按 id 升序。查询不区分大小写
+     *
+     * @param query 查询串
+     * @param limit 最多返回的用户数
+     * @return 匹配的用户
+     */
+    public List<IndexedUser> search(String query, int limit) {
+        String q = query == null ? "" : normalize(query.trim());
+        if (q.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+        
+        Set<Integer> ids = q.length() < GRAM ? prefix(q, limit) : substring(q, limit);
+        List<IndexedUser> result = new ArrayList<>(ids.size());
+        for (Integer id : ids) {
+            IndexedUser user = users.get(id);
+            if (user != null) {
+                result.add(user);
+            }
+        }
+        result.sort(Comparator.comparing(IndexedUser::getId));
+        return result;
+    }
+    
+    /**
+     * 新增或更新一个用户的索引。在事务中调用时，等事务提交后才生效，回滚则不生效
+     *
+     * @param user 已经分配 id 的用户
+     */
+    public void put(User user) {
+        if (user.getId() == null) {
+            return;
+        }
+        IndexedUser indexed = IndexedUser.of(user);
+        afterCommit(() -> apply(indexed));
+    }
+    
+    /**
+     * 等事务提交后从数据库重新读取一个用户并更新索引，用于批量写入。同一个事务中的 id 记在一个位图里，
+     * 只登记一个事务同步，提交后按页读取，不为每个用户保留一份索引数据直到提交
+     *
+     * @param id 已经写入的用户的 id
+     */
+    public void refresh(Integer id) {
+        if (id == null) {
+            return;
+        }
+        BitSet ids = (BitSet) TransactionSynchronizationManager.getResource(this);
+        if (ids == null) {
+            ids = new BitSet();
+            if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+                ids.set(id);
+                reload(ids);
+                return;
+            }
+            BitSet pending = ids;
+            TransactionSynchronizationManager.bindResource(this, pending);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    reload(pending);
+                }
+                
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(UserSearchIndex.this);
+                }
+            });
+        }
+        ids.set(id);
+    }
+    
+    /**
+     * 删除一个用户的索引。在事务中调用时，等事务提交后才生效
+     *
+     * @param id 用户 id
+     */
+    public void remove(Integer id) {
+        afterCommit(() -> {
+            synchronized (this) {
+                IndexedUser old = users.remove(id);
+                if (old != null) {
+                    unindex(old);
+                }
+            }
+        });
+    }
+    
+    private void reload(BitSet ids) {
+        exportService.forEachUserPage(ids, page -> {
+            for (UserSummary user : page) {
+                apply(IndexedUser.of(user));
+            }
+        });
+    }
+    
+    static String normalize(String value) {
+        return value.toLowerCase(Locale.ROOT);
+    }
+    
+    /**
+     * 所有三元组的倒排列表求交集，从最短的列表开始遍历，再用原文确认，避免三元组位置不连续造成的误报。
+     * 倒排列表无序，要遍历完所有候选，只保留 id 最小的 limit 个
+     */
+    private Set<Integer> substring(String q, int limit) {
+        List<Set<Integer>> postings = new ArrayList<>();
+        for (String gram : grams(q)) {
+            Set<Integer> ids = grams.get(gram);
+            if (ids == null) {
+                return Collections.emptySet();
+            }
+            postings.add(ids);
+        }
+        postings.sort(Comparator.comparingInt(Set::size));
+        
+        TreeSet<Integer> result = new TreeSet<>();
+        Set<Integer> smallest = postings.get(0);
+        List<Set<Integer>> others = postings.subList(1, postings.size());
+        for (Integer id : smallest) {
+            if (result.size() >= limit && id > result.last() || !containsAll(others, id)) {
+                continue;
+            }
+            IndexedUser user = users.get(id);
+            if (user != null && user.getText().contains(q)) {
+                keepSmallest(result, id, limit);
+            }
+        }
+        return result;
+    }
+    
+    private Set<Integer> prefix(String q, int limit) {
+        TreeSet<Integer> result = new TreeSet<>();
+        for (Set<Integer> ids : tokens.subMap(q, true, q + Character.MAX_VALUE, false).values()) {
+            for (Integer id : ids) {
+                keepSmallest(result, id, limit);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * 把 id 放进结果，结果超过 limit 个时去掉最大的
+     */
+    private static void keepSmallest(TreeSet<Integer> result, Integer id, int limit) {
+        if (result.add(id) && result.size() > limit) {
+            result.pollLast();
+        }
+    }
+    
+    private static boolean containsAll(List<Set<Integer>> postings, Integer id) {
+        for (Set<Integer> ids : postings) {
+            if (!ids.contains(id)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private synchronized void apply(IndexedUser user) {
+        IndexedUser old = users.put(user.getId(), user);
+        if (old != null) {
+            unindex(old);
+        }
+        for (String gram : grams(user)) {
+            grams.computeIfAbsent(gram, key -> ConcurrentHashMap.newKeySet()).add(user.getId());
+        }
+        for (String token : tokens(user)) {
+            tokens.computeIfAbsent(token, key -> ConcurrentHashMap.newKeySet()).add(user.getId());
+        }
+    }
+    
+    private void unindex(IndexedUser user) {
+        for (String gram : grams(user)) {
+            removePosting(grams, gram, user.getId());
+        }
+        for (String token : tokens(user)) {
+            removePosting(tokens, token, user.getId());
+        }
+    }
+    
+    private static void removePosting(Map<String, Set<Integer>> index, String key, Integer id) {
+        Set<Integer> ids = index.get(key);
+        if (ids != null) {
+            ids.remove(id);
+            if (ids.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+    
+    private static Set<String> grams(IndexedUser user) {
+        Set<String> result = new HashSet<>();
+        for (String field : user.fields()) {
+            result.addAll(grams(field));
+        }
+        return result;
+    }
+    
+    private static Set<String> grams(String value) {
+        Set<String> result = new HashSet<>();
+        for (int i = 0; i + GRAM <= value.length(); i++) {
+            result.add(value.substring(i, i + GRAM));
+        }
+        return result;
+    }
+    
+    private static Set<String> tokens(IndexedUser user) {
+        Set<String> result = new HashSet<>();
+        for (String field : user.fields()) {
+            result.add(field);
+            for (String token : SEPARATOR.split(field)) {
+                if (!token.isEmpty()) {
+                    result.add(token);
+                }
+            }
+        }
+        return result;
+    }
+    
+    private static void afterCommit(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package com.example.demo.services;
+
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.poi.excel.ExcelUtil;
+import cn.hutool.poi.excel.sax.handler.RowHandler;
+import com.example.demo.models.User;
+import com.example.demo.models.UserRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.exception.ConstraintViolationException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.Resource;
+import javax.persistence.CacheRetrieveMode;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceException;
+import java.io.File;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * 用户的批量写入服务，负责 Excel 导入等需要一次写入大量用户的场景
+ */
+@Service
+public class UserService {
+    
+    private static final Pattern SCIENTIFIC = Pattern.compile("-?\\d+(\\.\\d+)?E\\d+");
+    
+    @PersistenceContext
+    EntityManager entityManager;
+    
+    @Resource
+    UserRepository userRepository;
+    
+    @Resource
+    CounterService counterService;
+    
+    @Resource
+    UserSearchIndex userSearchIndex;
+    
+    @Resource
+    MeterRegistry meterRegistry;
+    
+    @Value("${spring.jpa.properties.hibernate.jdbc.batch_size:500}")
+    int batchSize;
+    
+    /**
+     * 以 SAX 事件方式逐行读取 Excel 的第一个工作表，每攒满一批就写入数据库并清空持久化上下文。
+     * 第一行是表头，列名即 User 的属性名。导出的表不带密码哈希，已有的用户没有 passwordHash 列时沿用库里的，
+     * 新用户必须有，否则整个导入回滚并抛出 IllegalArgumentException。整个导入在同一个事务中完成，内存占用与文件大小无关：
+     * 新建的用户通过 StatelessSession 插入，不进持久化上下文也不写二级缓存，否则每个用户都会留下一个等事务结束才释放的回调，
+     * clear 清不掉。
+     * 耗时记录到 user.import，行数累计到 user.import.rows，两者之比即每秒行数。
+     *
+     * @param workbook 要导入的 Excel 文件（xls 或 xlsx）
+     * @return 导入的行数和耗时
+     * @throws IllegalArgumentException 有新用户没有密码哈希时
+     */
+    @Transactional
+    public ImportResult importUsers(File workbook) {
+        long start = System.nanoTime();
+        UserRowHandler handler = new UserRowHandler();
+        // xlsx 的 SAX 读取器把整数参数当作 rId，并不等于表的序号，所以读全部表，在回调里只处理第一个
+        ExcelUtil.readBySax(workbook, -1, handler);
+        handler.finish();
+        counterService.addUsers(handler.created);
+        counterService.touchUsers();
+        long nanos = System.nanoTime() - start;
+        meterRegistry.timer("user.import").record(nanos, TimeUnit.NANOSECONDS);
+        meterRegistry.counter("user.import.rows").increment(handler.rows);
+        return new ImportResult(handler.rows, nanos);
+    }
+    
+    /**
+     * 修改密码并把令牌代数加一，在同一个读写事务中从主库读回修改后的用户，用它的令牌代数签发和吊销令牌
+     *
+     * @param id           用户 id
+     * @param passwordHash 新的哈希
+     * @return 修改后的用户，用户已经删除时为 null
+     */
+    @Transactional
+    public User changePassword(Integer id, String passwordHash) {
+        if (userRepository.updatePassword(id, passwordHash) == 0) {
+            return null;
+        }
+        // 批量更新在事务结束后才清掉二级缓存里的旧实体，这里绕过缓存直接读
+        return entityManager.find(User.class, id,
+                Map.of("javax.persistence.cache.retrieveMode", CacheRetrieveMode.BYPASS));
+    }
+    
+    /**
+     * 在一个事务中新建一组用户。按 JDBC 批大小分批刷到数据库，id 由 pooled-lo 序列预先分配，
+     * 插入语句可以合并成批。和导入一样不写二级缓存
+     *
+     * @param users 要新建的用户，密码哈希已经计算好
+     * @return 新建的用户，id 已经分配
+     */
+    @Transactional
+    public List<User> createUsers(List<User> users) {
+        List<User> batch = new ArrayList<>(Math.min(batchSize, users.size()));
+        long created = 0;
+        for (User user : users) {
+            batch.add(user);
+            if (batch.size() >= batchSize) {
+                created += writeBatch(batch);
+            }
+        }
+        if (!batch.isEmpty()) {
+            created += writeBatch(batch);
+        }
+        counterService.addUsers(created);
+        return users;
+    }
+    
+    /**
+     * 写入一批用户，有 id 的合并并保留库里的令牌代数，没有给出密码哈希时也保留库里的，
+     * 没有 id 的用当前事务的连接开一个 StatelessSession 插入。
+     * StatelessSession 不把实体放进持久化上下文，也不在 ActionQueue 留下任何东西，批内存随 clear 一起释放。
+     * 搜索索引在事务提交后按 id 从数据库重新读取
+     *
+     * @param users 要写入的用户
+     * @return 新建的用户数
+     */
+    private int writeBatch(List<User> users) {
+        Session session = entityManager.unwrap(Session.class);
+        int created = 0;
+        for (User user : users) {
+            if (user.getId() != null) {
+                // 导出的表里没有令牌代数和密码哈希，照原样合并会把令牌代数清零，之前签发的令牌和吊销记录对不上
+                User stored = entityManager.find(User.class, user.getId());
+                if (stored != null) {
+                    user.setTokenGeneration(stored.getTokenGeneration());
+                    if (user.getPasswordHash() == null) {
+                        user.setPasswordHash(stored.getPasswordHash());
+                    }
+                }
+            }
+            if (user.getPasswordHash() == null) {
+                throw new IllegalArgumentException("passwordHash is required for new user " + user.getUsername());
+            }
+            if (user.getId() != null) {
+                entityManager.merge(user);
+            } else {
+                created++;
+            }
+        }
+        entityManager.flush();
+        int inserts = created;
+        try {
+            session.doWork(connection -> {
+                try (StatelessSession stateless = session.getSessionFactory().withStatelessOptions()
+                        .connection(connection).openStatelessSession()) {
+                    // 使用外部连接的 StatelessSession 关闭时不执行攒着的批，批大小取这一批的插入数，最后一条插入时整批执行
+                    stateless.setJdbcBatchSize(inserts);
+                    for (User user : users) {
+                        if (user.getId() == null) {
+                            stateless.insert(user);
+                        }
+                    }
+                }
+            });
+        } catch (ConstraintViolationException e) {
+            // 和 EntityManager.flush 抛出的一样包成 PersistenceException，调用方按原因识别唯一约束冲突
+            throw new PersistenceException(e);
+        }
+        if (created > 0) {
+            evictQueriesAfterCommit(session.getSessionFactory());
+        }
+        for (User user : users) {
+            userSearchIndex.refresh(user.getId());
+        }
+        entityManager.clear();
+        users.clear();
+        return created;
+    }
+    
+    /**
+     * StatelessSession 的插入不经过 Hibernate 的查询缓存失效机制，事务提交后清掉查询缓存，
+     * 否则 findByUsername 之前缓存的空结果会一直查不到新用户。整个事务只登记一次
+     *
+     * @param sessionFactory 查询缓存所属的会话工厂
+     */
+    private void evictQueriesAfterCommit(SessionFactory sessionFactory) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()
+                || TransactionSynchronizationManager.hasResource(this)) {
+            return;
+        }
+        TransactionSynchronizationManager.bindResource(this, Boolean.TRUE);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                sessionFactory.getCache().evictQueryRegions();
+            }
+            
+            @Override
+            public void afterCompletion(int status) {
+                TransactionSynchronizationManager.unbindResourceIfPossible(UserService.this);
+            }
+        });
+    }
+    
+    /**
+     * 把每一行转换成 User 并攒批写入
+     */
+    private class UserRowHandler implements RowHandler {
+        
+        private List<String> header;
+        
+        private final List<User> batch = new ArrayList<>();
+        
+        private long rows;
+        
+        private long created;
+        
+        @Override
+        public void handle(int sheetIndex, long rowIndex, List<Object> rowCells) {
+            if (sheetIndex != 0) {
+                return;
+            }
+            if (header == null) {
+                header = new ArrayList<>(rowCells.size());
+                for (Object cell : rowCells) {
+                    header.add(cell == null ? null : cell.toString().trim());
+                }
+                return;
+            }
+            
+            Map<String, Object> row = new HashMap<>();
+            for (int i = 0; i < rowCells.size() && i < header.size(); i++) {
+                if (header.get(i) != null && rowCells.get(i) != null) {
+                    row.put(header.get(i), cellValue(rowCells.get(i)));
+                }
+            }
+            if (row.isEmpty()) {
+                return;
+            }
+            
+            batch.add(BeanUtil.toBeanIgnoreError(row, User.class));
+            rows++;
+            if (batch.size() >= batchSize) {
+                created += writeBatch(batch);
+            }
+        }
+        
+        /**
+         * SAX 读取的数字单元格可能是 Double，也可能是按“常规”格式转出的科学计数法字符串，
+         * 整数值统一转成 Long，避免电话号码之类的列变成 1.38E10
+         *
+         * @param cell 单元格的值
+         * @return 转换后的值
+         */
+        private Object cellValue(Object cell) {
+            if (cell instanceof Double) {
+                double value = (Double) cell;
+                if (value == Math.rint(value) && !Double.isInfinite(value)) {
+                    return (long) value;
+                }
+            } else if (cell instanceof String && SCIENTIFIC.matcher((String) cell).matches()) {
+                BigDecimal value = new BigDecimal((String) cell);
+                if (value.stripTrailingZeros().scale() <= 0) {
+                    return value.toBigInteger().toString();
+                }
+            }
+            return cell;
+        }
+        
+        /**
+         * 写入最后不满一批的数据。xls 的 SAX 读取器不会回调 doAfterAllAnalysed，所以由调用方显式触发
+         */
+        void finish() {
+            if (!batch.isEmpty()) {
+                created += writeBatch(batch);
+            }
+        }
+    }
+}
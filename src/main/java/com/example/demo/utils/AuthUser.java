@@ -0,0 +1,38 @@
+package com.example.demo.utils;
+
+import lombok.Getter;
+
+import java.security.Principal;
+
+/**
+ * 通过 JWT 验证的当前用户，由 JwtAuthenticationFilter 放到请求上
+ */
+@Getter
+public class AuthUser implements Principal {
+    
+    private final Integer id;
+    
+    private final String username;
+    
+    /**
+     * 令牌签发时用户的令牌代数
+     */
+    private final int generation;
+    
+    /**
+     * 令牌的过期时间，毫秒时间戳
+     */
+    private final long expiresAt;
+    
+    public AuthUser(Integer id, String username, int generation, long expiresAt) {
+        this.id = id;
+        this.username = username;
+        this.generation = generation;
+        this.expiresAt = expiresAt;
+    }
+    
+    @Override
+    public String getName() {
+        return username;
+    }
+}
@@ -0,0 +1,313 @@
+package com.example.demo.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpRange;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.WebAsyncTask;
+
+import javax.annotation.Resource;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.LongConsumer;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * 把磁盘上的文件发送给客户端。支持 ETag/If-None-Match 条件请求和单个 Range 的断点续传，
+ * 大文件优先交给 Tomcat 的 sendfile，否则在 TransferPool 中用 FileChannel.transferTo 发送，不经过堆内存中转，
+ * 也不占用请求线程。以 gzip 保存的文件按客户端是否接受 gzip 原样发送或解压发送
+ */
+@Component
+public class FileSender {
+    
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+    
+    private static final int BUFFER_SIZE = 65536;
+    
+    @Value("${file.sendfile-threshold:49152}")
+    long sendfileThreshold;
+    
+    @Value("${file.cache-max-age:31536000}")
+    long cacheMaxAge;
+    
+    @Resource
+    TransferPool transferPool;
+    
+    /**
+     * 发送文件。内容不会改变，所以响应可以被客户端缓存，之后用 ETag 做条件请求。
+     * 不大于 sendfile 阈值的正文能一次放进套接字缓冲区，直接在请求线程中写出；
+     * 更大的正文交给 sendfile，不支持 sendfile 时返回在 TransferPool 中发送的异步任务
+     *
+     * @param request  请求对象
+     * @param response 响应对象
+     * @param file     磁盘上的文件
+     * @param etag     强 ETag，带双引号
+     * @param filename 下载时显示的文件名
+     * @param sent     发送结束后以正文字节数回调，304、416、HEAD 请求等没有正文时为 0。
+     *                 交给 sendfile 的字节在回调之后才真正写出，写出失败或超时时不回调
+     * @return 需要在后台发送时返回异步任务，控制器直接返回它；否则返回 null，响应已经完成
+     */
+    public WebAsyncTask<Void> send(HttpServletRequest request, HttpServletResponse response, File file,
+                                   String etag, String filename, LongConsumer sent) throws IOException {
+        if (!file.isFile()) {
+            response.sendError(404);
+            sent.accept(0);
+            return null;
+        }
+        return send(request, response, file, file.length(), false, etag, filename, sent);
+    }
+    
+    /**
+     * 发送以 gzip 保存的文件。客户端接受 gzip 且没有请求范围时，原样发送压缩的字节并带上 Content-Encoding，
+     * 仍然可以走 sendfile；否则一边读一边解压，Range 按解压后的偏移计算
+     *
+     * @param request  请求对象
+     * @param response 响应对象
+     * @param gzip     磁盘上压缩保存的文件
+     * @param length   解压后的字节数
+     * @param etag     原始内容的强 ETag，带双引号
+     * @param filename 下载时显示的文件名
+     * @param sent     同 send，原样发送时是压缩后的字节数
+     * @return 需要在后台发送时返回异步任务，否则返回 null
+     */
+    public WebAsyncTask<Void> sendCompressed(HttpServletRequest request, HttpServletResponse response, File gzip,
+                                             long length, String etag, String filename,
+                                             LongConsumer sent) throws IOException {
+        if (!gzip.isFile()) {
+            response.sendError(404);
+            sent.accept(0);
+            return null;
+        }
+        
+        response.setHeader("Vary", "Accept-Encoding");
+        if (request.getHeader("Range") == null && acceptsGzip(request.getHeader("Accept-Encoding"))) {
+            response.setHeader("Content-Encoding", "gzip");
+            // 编码后的表示与原始内容字节不同，ETag 也要区分
+            String gzipEtag = etag.substring(0, etag.length() - 1) + "-gzip\"";
+            return send(request, response, gzip, gzip.length(), false, gzipEtag, filename, sent);
+        }
+        return send(request, response, gzip, length, true, etag, filename, sent);
+    }
+    
+    /**
+     * 处理条件请求和范围，写出响应头，再按正文大小选择发送方式
+     *
+     * @param file    磁盘上的文件
+     * @param length  响应表示的字节数
+     * @param inflate 是否需要一边读一边解压，解压时不能用 sendfile
+     */
+    private WebAsyncTask<Void> send(HttpServletRequest request, HttpServletResponse response, File file,
+                                    long length, boolean inflate, String etag, String filename,
+                                    LongConsumer sent) throws IOException {
+        response.setHeader("ETag", etag);
+        response.setHeader("Cache-Control", "private, max-age=" + cacheMaxAge + ", immutable");
+        response.setHeader("Accept-Ranges", "bytes");
+        response.setHeader("Content-Disposition", String.format("attachment; filename=\"%s\"", filename));
+        response.setHeader("Access-Control-Expose-Headers",
+                "Content-Disposition, ETag, Accept-Ranges, Content-Range, Content-Encoding");
+        
+        if (matches(request.getHeader("If-None-Match"), etag)) {
+            response.setStatus(304);
+            sent.accept(0);
+            return null;
+        }
+        
+        long start = 0;
+        long end = length - 1;
+        HttpRange range = range(request, etag);
+        if (range != null) {
+            if (range.getRangeStart(length) >= length) {
+                response.setHeader("Content-Range", "bytes */" + length);
+                response.sendError(416);
+                sent.accept(0);
+                return null;
+            }
+            start = range.getRangeStart(length);
+            end = range.getRangeEnd(length);
+            response.setStatus(206);
+            response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+        }
+        
+        long count = end - start + 1;
+        response.setContentType("application/octet-stream");
+        response.setContentLengthLong(count);
+        if ("HEAD".equals(request.getMethod()) || count == 0) {
+            sent.accept(0);
+            return null;
+        }
+        
+        if (count < sendfileThreshold) {
+            sent.accept(copy(file, inflate, response, start, end));
+            return null;
+        }
+        
+        if (!inflate && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            // Tomcat 在响应结束后由内核直接把文件写到套接字，请求线程不再参与拷贝
+            request.setAttribute(SENDFILE_FILENAME, file.getAbsolutePath());
+            request.setAttribute(SENDFILE_START, start);
+            request.setAttribute(SENDFILE_END, end + 1);
+            sent.accept(count);
+            return null;
+        }
+        
+        long first = start;
+        long last = end;
+        try {
+            return transferPool.submit(count, () -> {
+                sent.accept(copy(file, inflate, response, first, last));
+                return null;
+            });
+        } catch (RuntimeException e) {
+            // 还没有写出任何内容，清掉已经设置的头，让异常处理器返回错误
+            response.reset();
+            throw e;
+        }
+    }
+    
+    private long copy(File file, boolean inflate, HttpServletResponse response, long start, long end) throws IOException {
+        return inflate ? inflate(file, response, start, end) : copy(file, response, start, end);
+    }
+    
+    /**
+     * 把文件的 [start, end] 写到响应流。线程被中断时通道关闭，写入立即失败
+     *
+     * @param file     磁盘上的文件
+     * @param response 响应对象
+     * @param start    第一个字节的位置
+     * @param end      最后一个字节的位置
+     * @return 写出的字节数
+     */
+    private long copy(File file, HttpServletResponse response, long start, long end) throws IOException {
+        long position = start;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            while (position <= end) {
+                position += channel.transferTo(position, end + 1 - position, out);
+            }
+        }
+        return position - start;
+    }
+    
+    /**
+     * 把 gzip 文件解压后的 [start, end] 写到响应流。前面的字节需要解压后丢弃，代价与 start 成正比，
+     * 只有不超过 file.compression.max-size 的内容压缩保存，这个代价有上限
+     *
+     * @param file     磁盘上压缩保存的文件
+     * @param response 响应对象
+     * @param start    解压后第一个字节的位置
+     * @param end      解压后最后一个字节的位置
+     * @return 写出的字节数
+     */
+    private long inflate(File file, HttpServletResponse response, long start, long end) throws IOException {
+        long written = 0;
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(file.toPath()), BUFFER_SIZE)) {
+            for (long skipped = 0; skipped < start; ) {
+                long n = in.skip(start - skipped);
+                if (n <= 0) {
+                    throw new EOFException("compressed file is shorter than expected");
+                }
+                skipped += n;
+            }
+            OutputStream out = response.getOutputStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long remaining = end + 1 - start;
+            while (remaining > 0) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException();
+                }
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (n < 0) {
+                    throw new EOFException("compressed file is shorter than expected");
+                }
+                out.write(buffer, 0, n);
+                remaining -= n;
+                written += n;
+            }
+        }
+        return written;
+    }
+    
+    /**
+     * 解析 Range 请求头。只处理一个范围；If-Range 与当前 ETag 不一致、格式错误或请求了多个范围时，
+     * 按规范忽略 Range，返回整个文件
+     *
+     * @param request 请求对象
+     * @param etag    当前的 ETag
+     * @return 请求的范围，没有可用的范围时返回 null
+     */
+    private HttpRange range(HttpServletRequest request, String etag) {
+        String header = request.getHeader("Range");
+        String ifRange = request.getHeader("If-Range");
+        if (header == null || (ifRange != null && !ifRange.equals(etag))) {
+            return null;
+        }
+        try {
+            List<HttpRange> ranges = HttpRange.parseRanges(header);
+            return ranges.size() == 1 ? ranges.get(0) : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Accept-Encoding 中是否接受 gzip，q=0 表示拒绝
+     *
+     * @param header Accept-Encoding 请求头
+     * @return 接受时返回 true
+     */
+    private boolean acceptsGzip(String header) {
+        if (header == null) {
+            return false;
+        }
+        for (String candidate : header.split(",")) {
+            String[] parts = candidate.trim().split(";");
+            if (parts[0].trim().equalsIgnoreCase("gzip")) {
+                for (int i = 1; i < parts.length; i++) {
+                    String param = parts[i].trim();
+                    if (param.startsWith("q=") && param.substring(2).trim().matches("0(\\.0*)?")) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * If-None-Match 中是否包含给定的 ETag
+     *
+     * @param header If-None-Match 请求头
+     * @param etag   当前的 ETag
+     * @return 匹配时返回 true
+     */
+    private boolean matches(String header, String etag) {
+        if (header == null) {
+            return false;
+        }
+        for (String candidate : header.split(",")) {
+            String value = candidate.trim();
+            if (value.equals("*") || value.equals(etag) || value.equals("W/" + etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.demo.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.JWTVerifier;
+import com.auth0.jwt.algorithms.Algorithm;
+import com.auth0.jwt.exceptions.JWTDecodeException;
+import com.auth0.jwt.exceptions.JWTVerificationException;
+import com.auth0.jwt.exceptions.SignatureVerificationException;
+import com.auth0.jwt.exceptions.TokenExpiredException;
+import com.auth0.jwt.interfaces.Claim;
+import com.auth0.jwt.interfaces.DecodedJWT;
+import com.example.demo.services.TokenRevocationService;
+import com.example.demo.services.TokenService;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+import static com.example.demo.utils.MiddleWare.getTokenFrom;
+
+/**
+ * 从授权标头中取出令牌，验证签名后把 AuthUser 放到安全上下文中。只接受带有过期时间和令牌代数的访问令牌，
+ * 刷新令牌不能用来访问接口。已经验证过的令牌缓存在一个有容量上限的 LRU 缓存里，同一个令牌只解析和验签一次，
+ * 但每次请求都会检查是否过期和是否已被吊销，后者只查内存，不访问数据库。
+ * 被拒绝的令牌按原因计入 jwt.rejected
+ */
+public class JwtAuthenticationFilter extends OncePerRequestFilter {
+    
+    private final JWTVerifier verifier;
+    
+    private final LRUCache<String, AuthUser> verified;
+    
+    private final TokenRevocationService revocations;
+    
+    private final MeterRegistry meterRegistry;
+    
+    /**
+     * @param algorithm     签发令牌时使用的算法
+     * @param cacheSize     最多缓存多少个已验证的令牌
+     * @param revocations   判断令牌是否已被吊销
+     * @param meterRegistry 记录被拒绝的令牌
+     */
+    public JwtAuthenticationFilter(Algorithm algorithm, int cacheSize, TokenRevocationService revocations,
+                                   MeterRegistry meterRegistry) {
+        this.verifier = JWT.require(algorithm)
+                .withClaim(TokenService.TYPE, TokenService.ACCESS)
+                .withClaimPresence("exp")
+                .withClaimPresence(TokenService.GENERATION)
+                .build();
+        this.verified = CacheUtil.newLRUCache(cacheSize);
+        this.revocations = revocations;
+        this.meterRegistry = meterRegistry;
+    }
+    
+    /**
+     * 令牌有效时设置当前用户；没有令牌或令牌无效时什么也不做，由安全配置决定是否返回 401
+     */
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response,
+                                    FilterChain filterChain) throws ServletException, IOException {
+        String token = getTokenFrom(request.getHeader("authorization"));
+        if (token != null) {
+            AuthUser user = authenticate(token);
+            if (user != null) {
+                SecurityContextHolder.getContext().setAuthentication(
+                        new UsernamePasswordAuthenticationToken(user, token, Collections.emptyList()));
+            }
+        }
+        filterChain.doFilter(request, response);
+    }
+    
+    /**
+     * 先查缓存，没有命中时验证签名并解析 userForToken 声明，最后检查过期时间和吊销表
+     *
+     * @param token 令牌
+     * @return 令牌对应的用户，令牌无效、过期或已被吊销时返回 null
+     */
+    private AuthUser authenticate(String token) {
+        AuthUser user = verified.get(token);
+        if (user == null) {
+            user = verify(token);
+            if (user == null) {
+                return null;
+            }
+            verified.put(token, user);
+        }
+        
+        if (System.currentTimeMillis() >= user.getExpiresAt()) {
+            verified.remove(token);
+            reject("expired");
+            return null;
+        }
+        if (revocations.isRevoked(user.getId(), user.getGeneration())) {
+            verified.remove(token);
+            reject("revoked");
+            return null;
+        }
+        return user;
+    }
+    
+    /**
+     * 验证签名并解析声明
+     *
+     * @param token 令牌
+     * @return 令牌对应的用户，令牌无效时返回 null
+     */
+    private AuthUser verify(String token) {
+        try {
+            DecodedJWT jwt = verifier.verify(token);
+            Claim claim = jwt.getClaim("userForToken");
+            Map<String, Object> map = claim.isNull() ? null : claim.asMap();
+            Integer generation = jwt.getClaim(TokenService.GENERATION).asInt();
+            if (map == null || !(map.get("id") instanceof Integer) || generation == null) {
+                reject("claim");
+                return null;
+            }
+            return new AuthUser((Integer) map.get("id"), (String) map.get("username"), generation,
+                    jwt.getExpiresAt().getTime());
+        } catch (TokenExpiredException e) {
+            reject("expired");
+            return null;
+        } catch (SignatureVerificationException e) {
+            reject("signature");
+            return null;
+        } catch (JWTDecodeException e) {
+            reject("malformed");
+            return null;
+        } catch (JWTVerificationException e) {
+            reject("invalid");
+            return null;
+        }
+    }
+    
+    private void reject(String reason) {
+        meterRegistry.counter("jwt.rejected", "reason", reason).increment();
+    }
+}
@@ -0,0 +1,140 @@
+package com.example.demo.utils;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.metrics.micrometer.MicrometerMetricsTrackerFactory;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 配置了 datasource.replica.urls 时启用读写分离：主库仍按 spring.datasource 和 spring.datasource.hikari 配置，
+ * 另为每个副本建一个只读连接池，用 ReplicaRoutingDataSource 按事务是否只读选择，只读事务读到的实体不写二级缓存。
+ * 没有配置副本时不生效，由 Spring Boot 自动配置单个数据源
+ */
+@Configuration
+@ConditionalOnProperty("datasource.replica.urls")
+public class MyDataSourceConfig {
+    
+    @Resource
+    MeterRegistry meterRegistry;
+    
+    /**
+     * 副本的 JDBC URL，多个用逗号分隔
+     */
+    @Value("${datasource.replica.urls}")
+    String[] replicaUrls;
+    
+    @Value("${datasource.replica.username:${spring.datasource.username:}}")
+    String replicaUsername;
+    
+    @Value("${datasource.replica.password:${spring.datasource.password:}}")
+    String replicaPassword;
+    
+    /**
+     * 每个副本连接池的最大连接数
+     */
+    @Value("${datasource.replica.pool-size:10}")
+    int replicaPoolSize;
+    
+    /**
+     * 从副本取连接的超时，单位毫秒。超时后退回主库，所以比主库的短
+     */
+    @Value("${datasource.replica.connection-timeout:1000}")
+    long replicaConnectionTimeout;
+    
+    /**
+     * 副本取连接失败后多久再试，单位毫秒
+     */
+    @Value("${datasource.replica.retry-after:30000}")
+    long retryAfter;
+    
+    /**
+     * 用户写入后多长时间内的只读事务仍走主库，单位毫秒，应大于副本的复制延迟，为 0 时关闭
+     */
+    @Value("${datasource.sticky-window:5000}")
+    long stickyWindow;
+    
+    private final List<HikariDataSource> pools = new ArrayList<>();
+    
+    /**
+     * 主库的连接池。和 Spring Boot 自动配置的一样绑定 spring.datasource.hikari，
+     * 绑定在方法返回之后进行，所以那里的 pool-name 会覆盖这里的默认值
+     *
+     * @param properties spring.datasource
+     * @return 主库连接池，由容器负责关闭
+     */
+    @Bean
+    @ConfigurationProperties("spring.datasource.hikari")
+    public HikariDataSource primaryDataSource(DataSourceProperties properties) {
+        HikariDataSource primary = properties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+        primary.setPoolName("primary");
+        primary.setMetricsTrackerFactory(new MicrometerMetricsTrackerFactory(meterRegistry));
+        return primary;
+    }
+    
+    @Bean
+    @Primary
+    public DataSource dataSource(HikariDataSource primary, DataSourceProperties properties) {
+        List<DataSource> replicas = new ArrayList<>();
+        for (int i = 0; i < replicaUrls.length; i++) {
+            HikariDataSource replica = new HikariDataSource();
+            replica.setPoolName("replica-" + i);
+            replica.setJdbcUrl(replicaUrls[i].trim());
+            replica.setUsername(replicaUsername);
+            replica.setPassword(replicaPassword);
+            if (properties.getDriverClassName() != null) {
+                replica.setDriverClassName(properties.getDriverClassName());
+            }
+            replica.setReadOnly(true);
+            replica.setMaximumPoolSize(replicaPoolSize);
+            replica.setConnectionTimeout(replicaConnectionTimeout);
+            // 副本启动时连不上也不影响应用启动，取连接时再失败并退回主库
+            replica.setInitializationFailTimeout(-1);
+            replica.setMetricsTrackerFactory(new MicrometerMetricsTrackerFactory(meterRegistry));
+            pools.add(replica);
+            replicas.add(replica);
+        }
+        
+        // 延迟到第一条语句才取连接，这时事务的只读标志已经设置好
+        return new LazyConnectionDataSourceProxy(
+                new ReplicaRoutingDataSource(primary, replicas, retryAfter, stickyWindow, meterRegistry));
+    }
+    
+    /**
+     * 给 JPA 换上 ReplicaJpaDialect，从副本读到的实体不进二级缓存。在实体管理器工厂初始化之前设置，
+     * 事务管理器初始化时会从工厂取同一个方言
+     *
+     * @return 设置方言的后处理器
+     */
+    @Bean
+    public static BeanPostProcessor replicaJpaDialectPostProcessor() {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessBeforeInitialization(Object bean, String beanName) {
+                if (bean instanceof LocalContainerEntityManagerFactoryBean) {
+                    ((LocalContainerEntityManagerFactoryBean) bean).setJpaDialect(new ReplicaJpaDialect());
+                }
+                return bean;
+            }
+        };
+    }
+    
+    @PreDestroy
+    public void close() {
+        pools.forEach(HikariDataSource::close);
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.demo.utils;
+
+import com.example.demo.services.QuotaExceededException;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 把控制器中未处理的异常转成统一的错误响应
+ */
+@RestControllerAdvice
+public class MyExceptionHandler {
+    
+    /**
+     * 有界线程池的队列已满，立即返回 503，让客户端稍后重试
+     *
+     * @param e 线程池拒绝任务时抛出的异常
+     * @return 状态码为 503 的响应实体
+     */
+    @ExceptionHandler(RejectedExecutionException.class)
+    public ResponseEntity<Object> handleRejected(RejectedExecutionException e) {
+        Map<String, String> map = new HashMap<>();
+        map.put("error", "server busy, try again later");
+        return ResponseEntity.status(503).header("Retry-After", "1").body(map);
+    }
+    
+    /**
+     * 写入会超过用户的存储配额，返回 413
+     *
+     * @param e 检查配额时抛出的异常
+     * @return 状态码为 413 的响应实体
+     */
+    @ExceptionHandler(QuotaExceededException.class)
+    public ResponseEntity<Object> handleQuotaExceeded(QuotaExceededException e) {
+        Map<String, String> map = new HashMap<>();
+        map.put("error", e.getMessage());
+        return ResponseEntity.status(413).body(map);
+    }
+    
+    /**
+     * 上传的请求体超过上限，返回 413，并提示改用分块上传
+     *
+     * @param e 请求体过大时抛出的异常
+     * @return 状态码为 413 的响应实体
+     */
+    @ExceptionHandler(MaxUploadSizeExceededException.class)
+    public ResponseEntity<Object> handleUploadTooLarge(MaxUploadSizeExceededException e) {
+        Map<String, String> map = new HashMap<>();
+        map.put("error", "upload too large, send large files in chunks to /api/file/uploads");
+        return ResponseEntity.status(413).body(map);
+    }
+    
+    /**
+     * 同一份数据同时被另一个请求修改或删除，本次的事务已经回滚，返回 409
+     *
+     * @param e 检测到并发修改时抛出的异常
+     * @return 状态码为 409 的响应实体
+     */
+    @ExceptionHandler(ConcurrencyFailureException.class)
+    public ResponseEntity<Object> handleConcurrencyFailure(ConcurrencyFailureException e) {
+        Map<String, String> map = new HashMap<>();
+        map.put("error", "the data was changed by another request, reload and try again");
+        return ResponseEntity.status(409).body(map);
+    }
+}
@@ -0,0 +1,38 @@
+package com.example.demo.utils;
+
+import io.micrometer.core.instrument.config.MeterFilter;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.Locale;
+
+/**
+ * 指标的公共配置。文件类型来自客户端，作为标签时要规范化并限制取值个数，避免时间序列无限增长
+ */
+@Configuration
+public class MyMetricsConfig {
+    
+    /**
+     * 文件相关指标的 type 标签最多保留的取值个数，超出的序列不再注册
+     */
+    private static final int MAX_FILE_TYPES = 100;
+    
+    @Bean
+    public MeterFilter fileTypeTagLimit() {
+        return MeterFilter.maximumAllowableTags("file.", "type", MAX_FILE_TYPES, MeterFilter.deny());
+    }
+    
+    /**
+     * 把 MIME 类型转换成标签值：去掉参数并转成小写，没有类型时为 none
+     *
+     * @param filetype 文件的 MIME 类型
+     * @return 标签值
+     */
+    public static String fileType(String filetype) {
+        if (filetype == null || filetype.isBlank()) {
+            return "none";
+        }
+        int semicolon = filetype.indexOf(';');
+        return (semicolon < 0 ? filetype : filetype.substring(0, semicolon)).trim().toLowerCase(Locale.ROOT);
+    }
+}
@@ -2,14 +2,20 @@ package com.example.demo.utils;
 
 import org.springframework.context.annotation.Configuration;
 import org.springframework.web.servlet.config.annotation.CorsRegistry;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
+import javax.annotation.Resource;
+
 /**
- * 该类是一个配置类，实现了WebMvcConfigurer接口，重写了addCorsMappings方法
+ * 该类是一个配置类，实现了WebMvcConfigurer接口，重写了addCorsMappings和addInterceptors方法
  */
 @Configuration
 public class MyWebMvcConfig implements WebMvcConfigurer {
     
+    @Resource
+    QuotaInterceptor quotaInterceptor;
+    
     /**
      * 允许从 localhost:3000 域到 /api/** 端点的所有请求的所有标头、所有方法和最长 30 分钟的时间。
      *
@@ -24,4 +30,14 @@ public class MyWebMvcConfig implements WebMvcConfigurer {
                 .maxAge(1800)
                 .allowedOrigins("http://localhost:3000");
     }
+    
+    /**
+     * 在上传文件的请求解析 multipart 之前检查配额
+     *
+     * @param registry 要修改的 InterceptorRegistry
+     */
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(quotaInterceptor).addPathPatterns("/api/file");
+    }
 }
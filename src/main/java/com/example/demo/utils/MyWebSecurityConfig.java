@@ -1,23 +1,80 @@
 package com.example.demo.utils;
 
+import com.auth0.jwt.algorithms.Algorithm;
+import com.example.demo.services.TokenRevocationService;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.core.task.TaskDecorator;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
+import org.springframework.security.concurrent.DelegatingSecurityContextRunnable;
+import org.springframework.security.config.http.SessionCreationPolicy;
+import org.springframework.security.web.authentication.UsernamePasswordAuthenticationFilter;
 
 /**
- * 禁用 CSRF 保护并启用 CORS。
+ * 禁用 CSRF 保护并启用 CORS，用 JWT 过滤器对 /api/** 进行身份验证。
  */
 @Configuration
 public class MyWebSecurityConfig extends WebSecurityConfigurerAdapter {
     
+    @Autowired
+    Environment env;
+    
+    @Autowired
+    MeterRegistry meterRegistry;
+    
+    @Autowired
+    TokenRevocationService tokenRevocationService;
+    
+    /**
+     * Spring Boot 用它包装 applicationTaskExecutor 的任务，把提交时的登录用户带到任务线程。
+     * 计算完哈希后在那里写数据库时，ReplicaRoutingDataSource 能知道是谁写的
+     *
+     * @return 任务装饰器
+     */
+    @Bean
+    public TaskDecorator securityContextTaskDecorator() {
+        return DelegatingSecurityContextRunnable::new;
+    }
+    
     /**
-     * 禁用 CSRF 保护并启用 CORS。
+     * 禁用 CSRF 保护并启用 CORS。除登录、用户列表、导入导出和文件下载外，/api/** 都需要有效的令牌，
+     * 否则返回 401。
      *
      * @param http 这是用于配置 Web 安全性的主界面。
      */
     @Override
     protected void configure(HttpSecurity http) throws Exception {
+        // 过滤器不注册为 Bean，否则 Spring Boot 会把它再注册到安全过滤器链之外
+        JwtAuthenticationFilter jwtFilter = new JwtAuthenticationFilter(
+                Algorithm.HMAC256(env.getProperty("SECRET")),
+                env.getProperty("jwt.cache-size", Integer.class, 10000),
+                tokenRevocationService,
+                meterRegistry);
+        
         http.csrf().disable()
-                .cors().and();
+                .cors().and()
+                .sessionManagement().sessionCreationPolicy(SessionCreationPolicy.STATELESS).and()
+                .addFilterBefore(jwtFilter, UsernamePasswordAuthenticationFilter.class)
+                .exceptionHandling().authenticationEntryPoint((request, response, e) -> {
+                    response.setStatus(401);
+                    response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+                    response.getWriter().write("{\"error\":\"token missing or invalid\"}");
+                }).and()
+                .authorizeRequests()
+                .antMatchers("/api/login/**").permitAll()
+                .antMatchers(HttpMethod.GET, "/api/user", "/api/user/export",
+                        "/api/user/deprecated/export").permitAll()
+                .antMatchers(HttpMethod.POST, "/api/user/import").permitAll()
+                .antMatchers(HttpMethod.GET, "/api/file/count", "/api/file/type",
+                        "/api/file/export").authenticated()
+                .antMatchers(HttpMethod.GET, "/api/file/*").permitAll()
+                .antMatchers("/api/**").authenticated()
+                .anyRequest().permitAll();
     }
 }
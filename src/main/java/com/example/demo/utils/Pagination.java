@@ -0,0 +1,69 @@
+package com.example.demo.utils;
+
+import org.springframework.data.domain.PageRequest;
+import org.springframework.http.ResponseEntity;
+
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * 键集分页的辅助方法。响应正文仍然是数组，下一页的游标放在 X-Next-Cursor 响应头里
+ */
+public class Pagination {
+    
+    public static final String NEXT_CURSOR = "X-Next-Cursor";
+    
+    public static final int MAX_SIZE = 1000;
+    
+    /**
+     * 把请求的页大小限制在 1 到 MAX_SIZE 之间
+     *
+     * @param size 请求的页大小
+     * @return 只取第一页的分页请求，偏移量始终为 0
+     */
+    public static PageRequest limit(int size) {
+        return PageRequest.of(0, Math.max(1, Math.min(size, MAX_SIZE)));
+    }
+    
+    /**
+     * 如果请求的是降序，返回 true
+     *
+     * @param sort 排序方向，asc 或 desc
+     * @return 是否降序
+     */
+    public static boolean descending(String sort) {
+        return "desc".equalsIgnoreCase(sort);
+    }
+    
+    /**
+     * 没有传游标时使用的起始游标
+     *
+     * @param cursor     请求中的游标
+     * @param descending 是否降序
+     * @return 第一页的游标
+     */
+    public static int cursor(Integer cursor, boolean descending) {
+        if (cursor != null) {
+            return cursor;
+        }
+        return descending ? Integer.MAX_VALUE : 0;
+    }
+    
+    /**
+     * 返回一页数据。如果这一页是满的，就把最后一条的 id 作为下一页的游标
+     *
+     * @param items    这一页的数据
+     * @param pageable 查询这一页时使用的分页请求
+     * @param id       取出一条数据的 id
+     * @return 状态码为 200 的响应实体
+     */
+    public static <T> ResponseEntity<Object> page(List<T> items, PageRequest pageable,
+                                                  Function<T, Integer> id) {
+        ResponseEntity.BodyBuilder builder = ResponseEntity.status(200)
+                .header("Access-Control-Expose-Headers", NEXT_CURSOR);
+        if (items.size() == pageable.getPageSize()) {
+            builder.header(NEXT_CURSOR, String.valueOf(id.apply(items.get(items.size() - 1))));
+        }
+        return builder.body(items);
+    }
+}
@@ -0,0 +1,34 @@
+package com.example.demo.utils;
+
+import com.example.demo.services.UsageService;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.annotation.Resource;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * 在读取请求体之前按 Content-Length 检查上传者的配额。multipart 按需解析，这里拒绝的请求不会有任何字节
+ * 落到临时文件。Content-Length 包含 multipart 的边界和头部，比文件本身略大；没有 Content-Length 的请求
+ * 由控制器在解析后按文件大小检查
+ */
+@Component
+public class QuotaInterceptor implements HandlerInterceptor {
+    
+    @Resource
+    UsageService usageService;
+    
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        long length = request.getContentLengthLong();
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        if (length > 0 && authentication != null && authentication.getPrincipal() instanceof AuthUser) {
+            // 超过配额时抛出 QuotaExceededException，由 MyExceptionHandler 转成 413
+            usageService.check(((AuthUser) authentication.getPrincipal()).getId(), length);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.demo.utils;
+
+import org.hibernate.CacheMode;
+import org.hibernate.Session;
+import org.springframework.orm.jpa.vendor.HibernateJpaDialect;
+import org.springframework.transaction.TransactionDefinition;
+
+import javax.persistence.CacheStoreMode;
+import javax.persistence.EntityManager;
+import java.sql.SQLException;
+
+/**
+ * 只读事务从副本读取，读到的实体可能落后于主库。只读事务中的会话只从二级缓存读、不往里放，
+ * 副本上的旧数据不会进入实体缓存和查询缓存，之后被读写事务和登录读到。
+ * EntityManager.find 按实体管理器的 storeMode 属性重新设置会话的缓存模式，所以两者都要设置
+ */
+public class ReplicaJpaDialect extends HibernateJpaDialect {
+    
+    private static final String STORE_MODE = "javax.persistence.cache.storeMode";
+    
+    @Override
+    public Object beginTransaction(EntityManager entityManager, TransactionDefinition definition)
+            throws SQLException {
+        Object transactionData = super.beginTransaction(entityManager, definition);
+        if (!definition.isReadOnly()) {
+            return transactionData;
+        }
+        Session session = getSession(entityManager);
+        ReadOnlyTransactionData data = new ReadOnlyTransactionData(transactionData, entityManager,
+                session.getCacheMode(), entityManager.getProperties().get(STORE_MODE));
+        session.setCacheMode(CacheMode.GET);
+        entityManager.setProperty(STORE_MODE, CacheStoreMode.BYPASS);
+        return data;
+    }
+    
+    @Override
+    public void cleanupTransaction(Object transactionData) {
+        if (transactionData instanceof ReadOnlyTransactionData) {
+            ReadOnlyTransactionData data = (ReadOnlyTransactionData) transactionData;
+            if (data.entityManager.isOpen()) {
+                getSession(data.entityManager).setCacheMode(data.cacheMode);
+                data.entityManager.setProperty(STORE_MODE,
+                        data.storeMode == null ? CacheStoreMode.USE : data.storeMode);
+            }
+            super.cleanupTransaction(data.delegate);
+        } else {
+            super.cleanupTransaction(transactionData);
+        }
+    }
+    
+    private static class ReadOnlyTransactionData {
+        
+        private final Object delegate;
+        
+        private final EntityManager entityManager;
+        
+        private final CacheMode cacheMode;
+        
+        private final Object storeMode;
+        
+        ReadOnlyTransactionData(Object delegate, EntityManager entityManager, CacheMode cacheMode,
+                                Object storeMode) {
+            this.delegate = delegate;
+            this.entityManager = entityManager;
+            this.cacheMode = cacheMode;
+            this.storeMode = storeMode;
+        }
+    }
+}
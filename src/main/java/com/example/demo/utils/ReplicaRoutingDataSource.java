@@ -0,0 +1,290 @@
+package com.example.demo.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.TimedCache;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 按事务类型选择数据库：只读事务中的连接轮流从副本取，其余的（读写事务、事务外的访问、启动时的建表）都用主库。
+ * 取副本连接失败时把这个副本标记为不可用一段时间，改用下一个副本，全部不可用时退回主库，每段不可用时间只报告一次。
+ * 用户提交执行过写语句的事务后的一段时间内，这个用户的只读事务也走主库，保证读到自己刚写的数据。
+ * 分页读取大量数据时可以用 pin 把一个线程的只读事务固定在同一个库上，每页仍然各用一个短事务。
+ * 必须包在 LazyConnectionDataSourceProxy 里使用，否则事务开始时还不知道它是不是只读的。
+ * 去向在取连接时决定，连接必须随事务释放，所以要关闭 spring.jpa.open-in-view，
+ * 否则请求中第一个事务取到的连接会一直用到请求结束，只读事务在先时之后的写也会落到副本上。
+ * 按去向计入 datasource.route
+ */
+public class ReplicaRoutingDataSource extends AbstractDataSource {
+    
+    private static final Logger log = LoggerFactory.getLogger(ReplicaRoutingDataSource.class);
+    
+    private static final int UNDECIDED = -2;
+    
+    private static final int PRIMARY = -1;
+    
+    /**
+     * 当前线程固定使用的库：UNDECIDED 表示还没有取过只读连接，PRIMARY 表示主库，其余为副本的下标。
+     * 没有调用 pin 时为 null
+     */
+    private static final ThreadLocal<int[]> PINNED = new ThreadLocal<>();
+    
+    private final DataSource primary;
+    
+    private final List<DataSource> replicas;
+    
+    /**
+     * 每个副本在这个时间（毫秒时间戳）之前不可用
+     */
+    private final AtomicLongArray downUntil;
+    
+    private final AtomicInteger next = new AtomicInteger();
+    
+    private final long retryAfter;
+    
+    /**
+     * 最近提交过写语句的用户，为 null 时不保证读到自己的写
+     */
+    private final TimedCache<Integer, Boolean> recentWriters;
+    
+    private final Counter primaryRoutes;
+    
+    private final Counter replicaRoutes;
+    
+    private final Counter stickyRoutes;
+    
+    private final Counter fallbackRoutes;
+    
+    /**
+     * @param primary       主库
+     * @param replicas      副本，至少一个
+     * @param retryAfter    副本取连接失败后多久再试，单位毫秒
+     * @param stickyWindow  用户写入后多长时间内只读主库，单位毫秒，不大于 0 时关闭
+     * @param meterRegistry 记录每次取连接的去向
+     */
+    public ReplicaRoutingDataSource(DataSource primary, List<DataSource> replicas, long retryAfter,
+                                    long stickyWindow, MeterRegistry meterRegistry) {
+        this.primary = primary;
+        this.replicas = replicas;
+        this.downUntil = new AtomicLongArray(replicas.size());
+        this.retryAfter = retryAfter;
+        if (stickyWindow > 0) {
+            recentWriters = CacheUtil.newTimedCache(stickyWindow);
+            recentWriters.schedulePrune(stickyWindow);
+        } else {
+            recentWriters = null;
+        }
+        primaryRoutes = meterRegistry.counter("datasource.route", "target", "primary");
+        replicaRoutes = meterRegistry.counter("datasource.route", "target", "replica");
+        stickyRoutes = meterRegistry.counter("datasource.route", "target", "sticky");
+        fallbackRoutes = meterRegistry.counter("datasource.route", "target", "fallback");
+    }
+    
+    @Override
+    public Connection getConnection() throws SQLException {
+        Integer userId = currentUserId();
+        if (!TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+            Connection connection = primary.getConnection();
+            primaryRoutes.increment();
+            return rememberWriter(connection, userId);
+        }
+        int[] pinned = PINNED.get();
+        if (pinned != null && pinned[0] != UNDECIDED) {
+            return pinnedConnection(pinned);
+        }
+        if (userId != null && recentWriters != null && recentWriters.containsKey(userId)) {
+            stickyRoutes.increment();
+            remember(pinned, PRIMARY);
+            return primary.getConnection();
+        }
+        
+        for (int i = 0; i < replicas.size(); i++) {
+            int index = Math.floorMod(next.getAndIncrement(), replicas.size());
+            long until = downUntil.get(index);
+            if (until > System.currentTimeMillis()) {
+                continue;
+            }
+            try {
+                Connection connection = replicas.get(index).getConnection();
+                replicaRoutes.increment();
+                remember(pinned, index);
+                return connection;
+            } catch (SQLException e) {
+                markDown(index, until, e);
+            }
+        }
+        fallbackRoutes.increment();
+        remember(pinned, PRIMARY);
+        return primary.getConnection();
+    }
+    
+    /**
+     * 把当前线程之后的只读事务固定在同一个库上，直到返回的 Pin 关闭。第一个只读事务照常选择，之后的都用它选中的库。
+     * 连接仍然随每个事务取还，长时间的导出不会一直占着一个连接，各页也不会从复制进度不同的副本读取。
+     * 已经固定时再调用不改变固定的库。没有配置副本时没有作用
+     *
+     * @return 关闭时解除固定
+     */
+    public static Pin pin() {
+        if (PINNED.get() != null) {
+            return () -> {
+            };
+        }
+        PINNED.set(new int[]{UNDECIDED});
+        return PINNED::remove;
+    }
+    
+    /**
+     * 解除 pin 的固定，用在 try-with-resources 中
+     */
+    public interface Pin extends AutoCloseable {
+        
+        @Override
+        void close();
+    }
+    
+    /**
+     * 从固定的库取连接。固定的副本不可用时改为固定在主库上：主库不会落后，按 id 键集分页接着读不会漏掉或重复已经读过的行
+     */
+    private Connection pinnedConnection(int[] pinned) throws SQLException {
+        int index = pinned[0];
+        if (index != PRIMARY) {
+            long until = downUntil.get(index);
+            if (until <= System.currentTimeMillis()) {
+                try {
+                    Connection connection = replicas.get(index).getConnection();
+                    replicaRoutes.increment();
+                    return connection;
+                } catch (SQLException e) {
+                    markDown(index, until, e);
+                }
+            }
+            pinned[0] = PRIMARY;
+            fallbackRoutes.increment();
+        } else {
+            primaryRoutes.increment();
+        }
+        return primary.getConnection();
+    }
+    
+    /**
+     * 同时失败的请求只有一个能更新时间，由它报告，副本一直不可用时每次重试报告一次
+     */
+    private void markDown(int index, long until, SQLException e) {
+        if (downUntil.compareAndSet(index, until, System.currentTimeMillis() + retryAfter)) {
+            log.warn("replica {} unavailable, retrying after {} ms", index, retryAfter, e);
+        }
+    }
+    
+    private static void remember(int[] pinned, int target) {
+        if (pinned != null) {
+            pinned[0] = target;
+        }
+    }
+    
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("credentials are configured per pool");
+    }
+    
+    /**
+     * 在读写事务中取连接时，包装连接以便知道事务是否执行过写语句，写过的事务提交后记下当前用户。
+     * 只查询的读写事务不影响之后的读去向
+     *
+     * @param connection 主库的连接
+     * @param userId     当前用户的 id，没有登录时为 null
+     * @return 包装后的连接，不需要记录时原样返回
+     */
+    private Connection rememberWriter(Connection connection, Integer userId) {
+        if (userId == null || recentWriters == null || !TransactionSynchronizationManager.isSynchronizationActive()) {
+            return connection;
+        }
+        AtomicBoolean written = new AtomicBoolean();
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                if (written.get()) {
+                    recentWriters.put(userId, Boolean.TRUE);
+                }
+            }
+        });
+        return proxy(Connection.class, connection, (target, method, args) -> {
+            Object result = invoke(target, method, args);
+            // Statement、PreparedStatement 和 CallableStatement 都要包装，按方法的返回类型建代理
+            if (result instanceof Statement) {
+                return proxy(method.getReturnType(), result, (statement, executed, parameters) -> {
+                    Object value = invoke(statement, executed, parameters);
+                    if (isWrite(executed.getName(), value)) {
+                        written.set(true);
+                    }
+                    return value;
+                });
+            }
+            return result;
+        });
+    }
+    
+    /**
+     * execute 返回 false 表示执行的是更新语句
+     */
+    private static boolean isWrite(String method, Object result) {
+        switch (method) {
+            case "executeUpdate":
+            case "executeLargeUpdate":
+            case "executeBatch":
+            case "executeLargeBatch":
+                return true;
+            case "execute":
+                return Boolean.FALSE.equals(result);
+            default:
+                return false;
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<?> type, Object target, Interceptor interceptor) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+                (proxy, method, args) -> interceptor.intercept(target, method, args));
+    }
+    
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getTargetException();
+        }
+    }
+    
+    private interface Interceptor {
+        
+        Object intercept(Object target, Method method, Object[] args) throws Throwable;
+    }
+    
+    private static Integer currentUserId() {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        if (authentication != null && authentication.getPrincipal() instanceof AuthUser) {
+            return ((AuthUser) authentication.getPrincipal()).getId();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,124 @@
+package com.example.demo.utils;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.CallableProcessingInterceptor;
+import org.springframework.web.context.request.async.WebAsyncTask;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 上传和下载的专用线程池。控制器返回这里创建的 WebAsyncTask，Tomcat 的请求线程立即归还，
+ * 字节在线程池中搬运，慢客户端不会占满请求线程、拖慢登录和列表接口。
+ * 同时进行的传输数有上限，满了立即抛出 RejectedExecutionException，由 MyExceptionHandler 转成 503。
+ * 名额只在传输真正结束时归还，超时后仍然阻塞在写响应上的线程继续占着名额，线程池的队列也有同样的上限；
+ * 每次传输的超时按字节数计算，超时后中断线程池中的线程。
+ * 被拒绝和超时的次数记录到 file.transfer.rejected 和 file.transfer.timeouts，线程池本身的指标名为 transfer
+ */
+@Component
+public class TransferPool {
+    
+    @Value("${file.transfer.max-concurrent:200}")
+    int maxConcurrent;
+    
+    @Value("${file.transfer.timeout:60000}")
+    long timeout;
+    
+    @Value("${file.transfer.min-rate:65536}")
+    long minRate;
+    
+    @Resource
+    MeterRegistry meterRegistry;
+    
+    private Semaphore permits;
+    
+    private ThreadPoolExecutor executor;
+    
+    private TaskExecutorAdapter taskExecutor;
+    
+    @PostConstruct
+    public void init() {
+        permits = new Semaphore(maxConcurrent);
+        AtomicInteger sequence = new AtomicInteger();
+        // 并发数由 permits 控制，拿到许可的任务总有空闲线程，队列只用来接住线程刚归还时的间隙
+        executor = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(maxConcurrent), runnable -> {
+            Thread thread = new Thread(runnable, "transfer-" + sequence.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        taskExecutor = new TaskExecutorAdapter(executor);
+        new ExecutorServiceMetrics(executor, "transfer", Collections.emptyList()).bindTo(meterRegistry);
+    }
+    
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+    
+    /**
+     * 占用一个传输名额，创建在线程池中执行的异步任务。任务开始运行后，名额在任务结束时归还，
+     * 超时或客户端断开也要等线程真正退出；任务还在队列里时超时、客户端断开或线程池拒绝执行，
+     * 异步请求结束时把任务标记为不再运行并归还名额。两条路径只有一条会归还
+     *
+     * @param bytes 要传输的字节数，用来计算超时
+     * @param task  传输
+     * @return 控制器直接返回的异步任务
+     * @throws RejectedExecutionException 同时进行的传输已经达到上限
+     */
+    @SuppressWarnings("unchecked")
+    public <T> WebAsyncTask<T> submit(long bytes, Callable<T> task) {
+        if (!permits.tryAcquire()) {
+            meterRegistry.counter("file.transfer.rejected").increment();
+            throw new RejectedExecutionException("too many transfers");
+        }
+        // 任务开始运行时和异步请求结束时都尝试把它置为 true，先成功的一方负责归还名额
+        AtomicBoolean claimed = new AtomicBoolean();
+        WebAsyncTask<T> asyncTask = new WebAsyncTask<>(timeout(bytes), taskExecutor, () -> {
+            if (!claimed.compareAndSet(false, true)) {
+                return (T) CallableProcessingInterceptor.RESULT_NONE;
+            }
+            try {
+                return task.call();
+            } finally {
+                permits.release();
+            }
+        });
+        asyncTask.onCompletion(() -> {
+            if (claimed.compareAndSet(false, true)) {
+                permits.release();
+            }
+        });
+        asyncTask.onTimeout(() -> {
+            meterRegistry.counter("file.transfer.timeouts").increment();
+            // 不给出结果，由默认的处理器抛出 AsyncRequestTimeoutException，响应未提交时返回 503
+            return (T) CallableProcessingInterceptor.RESULT_NONE;
+        });
+        return asyncTask;
+    }
+    
+    /**
+     * 基础超时加上按最低速率传完所有字节需要的时间
+     *
+     * @param bytes 要传输的字节数
+     * @return 超时，单位毫秒
+     */
+    long timeout(long bytes) {
+        return timeout + bytes / Math.max(1, minRate) * 1000;
+    }
+}
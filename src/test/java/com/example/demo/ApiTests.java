@@ -0,0 +1,97 @@
+package com.example.demo;
+
+import com.example.demo.models.User;
+import com.example.demo.models.UserRepository;
+import com.example.demo.services.TokenService;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.crypto.bcrypt.BCrypt;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+
+/**
+ * 接口测试的基类。所有子类使用同一套配置，共用一个应用上下文和 H2 内存库，
+ * 所以每个测试都新建自己的用户，不依赖库里原有的数据
+ */
+@SpringBootTest
+@AutoConfigureMockMvc
+@ActiveProfiles("test")
+public abstract class ApiTests {
+    
+    private static final AtomicInteger SEQUENCE = new AtomicInteger();
+    
+    @Autowired
+    protected MockMvc mvc;
+    
+    @Autowired
+    protected UserRepository userRepository;
+    
+    @Autowired
+    protected TokenService tokenService;
+    
+    @Autowired
+    protected ObjectMapper objectMapper;
+    
+    /**
+     * 新建一个用户，用户名以 prefix 开头并且不会重复
+     *
+     * @param prefix   用户名前缀
+     * @param password 明文密码
+     * @return 保存后的用户
+     */
+    protected User createUser(String prefix, String password) {
+        return userRepository.save(new User()
+                .setUsername(prefix + SEQUENCE.incrementAndGet())
+                .setPasswordHash(BCrypt.hashpw(password, BCrypt.gensalt(4))));
+    }
+    
+    /**
+     * 给用户签发访问令牌，返回 Authorization 头的值
+     *
+     * @param user 用户
+     * @return Bearer 加访问令牌
+     */
+    protected String bearer(User user) {
+        return "Bearer " + tokenService.issue(user).get("token");
+    }
+    
+    /**
+     * 执行请求，异步处理的请求等结果出来后再分派一次，返回最终的响应
+     *
+     * @param request 请求
+     * @return 响应
+     */
+    protected MockHttpServletResponse perform(RequestBuilder request) throws Exception {
+        MvcResult result = mvc.perform(request).andReturn();
+        if (result.getRequest().isAsyncStarted()) {
+            result.getAsyncResult(10000);
+            result = mvc.perform(asyncDispatch(result)).andReturn();
+        }
+        return result.getResponse();
+    }
+    
+    protected Map<String, Object> json(MockHttpServletResponse response) throws Exception {
+        return objectMapper.readValue(response.getContentAsString(StandardCharsets.UTF_8),
+                new TypeReference<Map<String, Object>>() {
+                });
+    }
+    
+    protected List<Map<String, Object>> jsonList(MockHttpServletResponse response) throws Exception {
+        return objectMapper.readValue(response.getContentAsString(StandardCharsets.UTF_8),
+                new TypeReference<List<Map<String, Object>>>() {
+                });
+    }
+}
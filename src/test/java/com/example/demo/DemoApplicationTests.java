@@ -1,9 +1,14 @@
 package com.example.demo;
 
 import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
 
+// 和 ApiTests 的配置相同，共用一个应用上下文，不会另建一个上下文重建同一个内存库的表
 @SpringBootTest
+@AutoConfigureMockMvc
+@ActiveProfiles("test")
 class DemoApplicationTests {
     
     @Test
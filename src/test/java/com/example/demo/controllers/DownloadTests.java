@@ -0,0 +1,121 @@
+package com.example.demo.controllers;
+
+import com.example.demo.ApiTests;
+import com.example.demo.models.User;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockMultipartFile;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
+
+/**
+ * 文件下载的范围和条件请求。压缩保存的文件按 Accept-Encoding 原样发送或解压发送
+ */
+class DownloadTests extends ApiTests {
+    
+    @Test
+    void downloadSupportsRangesAndConditionalRequests() throws Exception {
+        User user = createUser("download", "pw");
+        String token = bearer(user);
+        byte[] data = new byte[20000];
+        new Random(1).nextBytes(data);
+        int id = (Integer) json(upload(token, "a.bin", data)).get("id");
+        
+        MockHttpServletResponse full = perform(get("/api/file/" + id));
+        assertThat(full.getStatus()).isEqualTo(200);
+        assertThat(full.getHeader("Accept-Ranges")).isEqualTo("bytes");
+        assertThat(full.getContentAsByteArray()).isEqualTo(data);
+        String etag = full.getHeader("ETag");
+        assertThat(etag).isNotNull();
+        
+        MockHttpServletResponse range = perform(get("/api/file/" + id).header("Range", "bytes=10-19"));
+        assertThat(range.getStatus()).isEqualTo(206);
+        assertThat(range.getHeader("Content-Range")).isEqualTo("bytes 10-19/20000");
+        assertThat(range.getContentAsByteArray()).isEqualTo(Arrays.copyOfRange(data, 10, 20));
+        
+        MockHttpServletResponse suffix = perform(get("/api/file/" + id).header("Range", "bytes=-5"));
+        assertThat(suffix.getStatus()).isEqualTo(206);
+        assertThat(suffix.getHeader("Content-Range")).isEqualTo("bytes 19995-19999/20000");
+        assertThat(suffix.getContentAsByteArray()).isEqualTo(Arrays.copyOfRange(data, 19995, 20000));
+        
+        MockHttpServletResponse unsatisfiable = perform(get("/api/file/" + id).header("Range", "bytes=20000-"));
+        assertThat(unsatisfiable.getStatus()).isEqualTo(416);
+        assertThat(unsatisfiable.getHeader("Content-Range")).isEqualTo("bytes */20000");
+        
+        MockHttpServletResponse notModified = perform(get("/api/file/" + id).header("If-None-Match", etag));
+        assertThat(notModified.getStatus()).isEqualTo(304);
+        assertThat(notModified.getContentAsByteArray()).isEmpty();
+        
+        // If-Range 与当前 ETag 不符时忽略 Range，返回整个文件
+        MockHttpServletResponse staleRange = perform(get("/api/file/" + id)
+                .header("Range", "bytes=0-1").header("If-Range", "\"stale\""));
+        assertThat(staleRange.getStatus()).isEqualTo(200);
+        assertThat(staleRange.getContentAsByteArray()).hasSize(data.length);
+        
+        assertThat(perform(get("/api/file/" + Integer.MAX_VALUE)).getStatus()).isEqualTo(404);
+    }
+    
+    @Test
+    void compressedFilesArePassedThroughOrInflated() throws Exception {
+        String token = bearer(createUser("gzip", "pw"));
+        // 内容每次不同，存储目录里不会有上次运行留下的同一份
+        byte[] data = text("small" + System.nanoTime(), 600);
+        int id = (Integer) json(upload(token, "a.txt", "text/plain", data)).get("id");
+        
+        MockHttpServletResponse encoded = perform(get("/api/file/" + id).header("Accept-Encoding", "gzip"));
+        assertThat(encoded.getStatus()).isEqualTo(200);
+        assertThat(encoded.getHeader("Content-Encoding")).isEqualTo("gzip");
+        assertThat(encoded.getHeader("ETag")).endsWith("-gzip\"");
+        assertThat(encoded.getContentAsByteArray().length).isLessThan(data.length);
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(encoded.getContentAsByteArray()))) {
+            assertThat(in.readAllBytes()).isEqualTo(data);
+        }
+        
+        MockHttpServletResponse inflated = perform(get("/api/file/" + id));
+        assertThat(inflated.getHeader("Content-Encoding")).isNull();
+        assertThat(inflated.getContentAsByteArray()).isEqualTo(data);
+        
+        // 范围按解压后的偏移计算
+        MockHttpServletResponse range = perform(get("/api/file/" + id)
+                .header("Range", "bytes=500-599").header("Accept-Encoding", "gzip"));
+        assertThat(range.getStatus()).isEqualTo(206);
+        assertThat(range.getHeader("Content-Encoding")).isNull();
+        assertThat(range.getHeader("Content-Range")).isEqualTo("bytes 500-599/600");
+        assertThat(range.getContentAsByteArray()).isEqualTo(Arrays.copyOfRange(data, 500, 600));
+        
+        // 超过压缩上限的内容原样保存，接受 gzip 的客户端拿到的也是原始字节
+        byte[] large = text("large" + System.nanoTime(), 2000);
+        int largeId = (Integer) json(upload(token, "b.txt", "text/plain", large)).get("id");
+        MockHttpServletResponse raw = perform(get("/api/file/" + largeId).header("Accept-Encoding", "gzip"));
+        assertThat(raw.getHeader("Content-Encoding")).isNull();
+        assertThat(raw.getContentAsByteArray()).isEqualTo(large);
+    }
+    
+    private byte[] text(String prefix, int length) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; builder.length() < length; i++) {
+            builder.append(prefix).append(" line ").append(i).append('\n');
+        }
+        return builder.substring(0, length).getBytes(StandardCharsets.UTF_8);
+    }
+    
+    private MockHttpServletResponse upload(String token, String filename, byte[] data) throws Exception {
+        return upload(token, filename, "application/octet-stream", data);
+    }
+    
+    private MockHttpServletResponse upload(String token, String filename, String filetype,
+                                           byte[] data) throws Exception {
+        return perform(multipart("/api/file")
+                .file(new MockMultipartFile("file", filename, filetype, data))
+                .header("authorization", token));
+    }
+}
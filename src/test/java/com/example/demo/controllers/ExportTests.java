@@ -0,0 +1,196 @@
+package com.example.demo.controllers;
+
+import cn.hutool.poi.excel.ExcelReader;
+import cn.hutool.poi.excel.ExcelUtil;
+import cn.hutool.poi.excel.ExcelWriter;
+import com.example.demo.ApiTests;
+import com.example.demo.models.User;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockMultipartFile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+
+/**
+ * 导出格式按 format 参数和 Accept 协商，导出的用户不带密码哈希，导出的表可以原样导入。
+ * 后台导出在用户数据没有变化时沿用上一次的任务，创建、修改、导入和删除用户后重新导出
+ */
+class ExportTests extends ApiTests {
+    
+    @Test
+    void exportNegotiatesFormatFromAccept() throws Exception {
+        createUser("export", "pw");
+        
+        MockHttpServletResponse csv = export("?format=csv", null);
+        assertThat(csv.getContentType()).startsWith("text/csv");
+        assertThat(csv.getHeader("Content-Disposition")).endsWith(".csv");
+        assertThat(csv.getContentAsString(StandardCharsets.UTF_8))
+                .startsWith("id,username,nickname,email,phone,address");
+        
+        MockHttpServletResponse ndjson = export("", "application/x-ndjson");
+        assertThat(ndjson.getContentType()).startsWith("application/x-ndjson");
+        String firstLine = ndjson.getContentAsString(StandardCharsets.UTF_8).split("\n")[0];
+        assertThat(objectMapper.readTree(firstLine).has("username")).isTrue();
+        assertThat(objectMapper.readTree(firstLine).has("passwordHash")).isFalse();
+        
+        // 按质量值选择，ndjson 的 q 更高
+        assertThat(export("", "text/csv;q=0.5, application/x-ndjson;q=0.9").getContentType())
+                .startsWith("application/x-ndjson");
+        // format 参数优先于 Accept
+        assertThat(export("?format=csv", "application/x-ndjson").getContentType()).startsWith("text/csv");
+        
+        MockHttpServletResponse wildcard = export("", "*/*");
+        assertThat(wildcard.getContentType()).startsWith(
+                "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet");
+        assertThat(new String(wildcard.getContentAsByteArray(), 0, 2, StandardCharsets.US_ASCII)).isEqualTo("PK");
+        assertThat(export("", null).getContentType()).startsWith(
+                "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet");
+        MockHttpServletResponse malformed = export("", "text/csv;q=");
+        assertThat(malformed.getStatus()).isEqualTo(200);
+        assertThat(malformed.getContentType()).startsWith(
+                "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet");
+        
+        MockHttpServletResponse unknown = export("?format=pdf", null);
+        assertThat(unknown.getStatus()).isEqualTo(400);
+        assertThat(json(unknown)).containsKey("error");
+    }
+    
+    @Test
+    void xlsxExportLeavesOutPasswordHashAndReimportsAsIs() throws Exception {
+        User user = createUser("roundtrip", "pw");
+        String hash = userRepository.findById(user.getId()).orElseThrow().getPasswordHash();
+        
+        MockHttpServletResponse xlsx = export("", null);
+        assertThat(xlsx.getStatus()).isEqualTo(200);
+        List<Map<String, Object>> rows;
+        try (ExcelReader reader = ExcelUtil.getReader(new ByteArrayInputStream(xlsx.getContentAsByteArray()))) {
+            assertThat(reader.readRow(0)).doesNotContain("passwordHash");
+            rows = reader.readAll();
+        }
+        
+        // 导出的表原样导入，已有的用户沿用库里的密码哈希
+        Map<String, Object> row = rows.stream()
+                .filter(r -> user.getUsername().equals(r.get("username"))).findFirst().orElseThrow();
+        row.put("nickname", "roundtrip");
+        assertThat(importRows(List.of(row)).getStatus()).isEqualTo(201);
+        User reimported = userRepository.findById(user.getId()).orElseThrow();
+        assertThat(reimported.getNickname()).isEqualTo("roundtrip");
+        assertThat(reimported.getPasswordHash()).isEqualTo(hash);
+        
+        // 新用户没有密码哈希无法登录，整个导入被拒绝
+        Map<String, Object> newUser = new LinkedHashMap<>();
+        newUser.put("username", "nohash" + System.nanoTime());
+        MockHttpServletResponse rejected = importRows(List.of(newUser));
+        assertThat(rejected.getStatus()).isEqualTo(400);
+        assertThat(json(rejected)).containsKey("error");
+        assertThat(userRepository.findByUsername((String) newUser.get("username"))).isNull();
+    }
+    
+    @Test
+    void exportJobResultLeavesOutPasswordHash() throws Exception {
+        String token = bearer(createUser("job", "pw"));
+        String location = submitJob(token);
+        awaitJob(location, token);
+        
+        MockHttpServletResponse file = perform(get(location + "/file").header("authorization", token));
+        assertThat(file.getStatus()).isEqualTo(200);
+        try (ExcelReader reader = ExcelUtil.getReader(new ByteArrayInputStream(file.getContentAsByteArray()))) {
+            assertThat(reader.readRow(0)).contains("username").doesNotContain("passwordHash");
+        }
+    }
+    
+    @Test
+    void exportJobIsReusedUntilUsersChange() throws Exception {
+        String token = bearer(createUser("reuse", "pw"));
+        User other = createUser("reuse", "pw");
+        String location = submitJob(token);
+        assertThat(submitJob(token)).isEqualTo(location);
+        awaitJob(location, token);
+        // 完成之后数据没有变化，仍然是同一个任务
+        assertThat(submitJob(token)).isEqualTo(location);
+        
+        String username = "reuse" + System.nanoTime();
+        MockHttpServletResponse created = perform(post("/api/user").header("authorization", token)
+                .contentType(MediaType.APPLICATION_JSON).content("{\"username\":\"" + username + "\"}"));
+        assertThat(created.getStatus()).isEqualTo(201);
+        location = assertNewJob(location, token);
+        
+        MockHttpServletResponse updated = perform(put("/api/user/" + other.getId()).header("authorization", token)
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{\"id\":" + other.getId() + ",\"username\":\"" + other.getUsername()
+                        + "\",\"nickname\":\"renamed\"}"));
+        assertThat(updated.getStatus()).isEqualTo(200);
+        location = assertNewJob(location, token);
+        
+        Map<String, Object> row = new LinkedHashMap<>();
+        row.put("username", "reuse" + System.nanoTime());
+        row.put("passwordHash", "x");
+        assertThat(importRows(List.of(row)).getStatus()).isEqualTo(201);
+        location = assertNewJob(location, token);
+        
+        assertThat(perform(delete("/api/user/" + other.getId()).header("authorization", token)).getStatus())
+                .isEqualTo(204);
+        assertNewJob(location, token);
+    }
+    
+    /**
+     * 用户数据变化后再提交得到一个新任务，新任务完成前重复提交得到的还是它
+     *
+     * @param previous 变化之前的任务地址
+     * @param token    认证头
+     * @return 新任务的地址
+     */
+    private String assertNewJob(String previous, String token) throws Exception {
+        String location = submitJob(token);
+        assertThat(location).isNotEqualTo(previous);
+        assertThat(submitJob(token)).isEqualTo(location);
+        awaitJob(location, token);
+        return location;
+    }
+    
+    private String submitJob(String token) throws Exception {
+        MockHttpServletResponse response = perform(post("/api/user/export/jobs").header("authorization", token));
+        assertThat(response.getStatus()).isEqualTo(202);
+        return response.getHeader("Location");
+    }
+    
+    private void awaitJob(String location, String token) throws Exception {
+        Map<String, Object> job = json(perform(get(location).header("authorization", token)));
+        for (int i = 0; i < 500 && !"DONE".equals(job.get("state")); i++) {
+            assertThat(job.get("state")).isNotEqualTo("FAILED");
+            Thread.sleep(20);
+            job = json(perform(get(location).header("authorization", token)));
+        }
+        assertThat(job.get("state")).isEqualTo("DONE");
+    }
+    
+    private MockHttpServletResponse importRows(List<Map<String, Object>> rows) throws Exception {
+        ExcelWriter writer = ExcelUtil.getWriter(true);
+        writer.write(rows, true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.flush(out, true);
+        writer.close();
+        return perform(multipart("/api/user/import").file(new MockMultipartFile("file", "users.xlsx",
+                "application/octet-stream", out.toByteArray())));
+    }
+    
+    private MockHttpServletResponse export(String query, String accept) throws Exception {
+        if (accept == null) {
+            return perform(get("/api/user/export" + query));
+        }
+        return perform(get("/api/user/export" + query).header("Accept", accept));
+    }
+}
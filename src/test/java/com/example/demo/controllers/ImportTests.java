@@ -0,0 +1,55 @@
+package com.example.demo.controllers;
+
+import cn.hutool.poi.excel.ExcelUtil;
+import cn.hutool.poi.excel.ExcelWriter;
+import com.example.demo.ApiTests;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockMultipartFile;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
+
+/**
+ * 导入 xlsx 和 xls 时长数字不会变成科学计数法
+ */
+class ImportTests extends ApiTests {
+    
+    @Test
+    void importKeepsLongNumbersOutOfScientificNotation() throws Exception {
+        for (String type : new String[]{"xlsx", "xls"}) {
+            String prefix = "import" + type + System.nanoTime();
+            List<Map<String, Object>> rows = new ArrayList<>();
+            rows.add(row(prefix + "a", 13800000000L));
+            // 按“常规”格式保存的数字，SAX 读出来是科学计数法的字符串
+            rows.add(row(prefix + "b", "1.39E10"));
+            ExcelWriter writer = ExcelUtil.getWriter("xlsx".equals(type));
+            writer.write(rows, true);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writer.flush(out, true);
+            writer.close();
+            
+            MockHttpServletResponse response = perform(multipart("/api/user/import")
+                    .file(new MockMultipartFile("file", "users." + type, "application/octet-stream",
+                            out.toByteArray())));
+            assertThat(response.getStatus()).isEqualTo(201);
+            assertThat(json(response).get("rows")).isEqualTo(2);
+            assertThat(userRepository.findByUsername(prefix + "a").getPhone()).isEqualTo("13800000000");
+            assertThat(userRepository.findByUsername(prefix + "b").getPhone()).isEqualTo("13900000000");
+        }
+    }
+    
+    private static Map<String, Object> row(String username, Object phone) {
+        Map<String, Object> row = new LinkedHashMap<>();
+        row.put("username", username);
+        row.put("passwordHash", "x");
+        row.put("phone", phone);
+        return row;
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.demo.controllers;
+
+import com.example.demo.ApiTests;
+import com.example.demo.models.File;
+import com.example.demo.models.FileRepository;
+import com.example.demo.models.User;
+import com.example.demo.utils.Pagination;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+
+/**
+ * 用户和文件列表按游标翻页，直到最后一页
+ */
+class PaginationTests extends ApiTests {
+    
+    @Autowired
+    FileRepository fileRepository;
+    
+    @Test
+    void userPagesFollowCursorToTheEnd() throws Exception {
+        String prefix = "page" + System.nanoTime() + "x";
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            ids.add(createUser(prefix, "pw").getId());
+        }
+        
+        MockHttpServletResponse first = perform(get("/api/user").param("username", prefix).param("size", "2"));
+        assertThat(ids(first)).isEqualTo(ids.subList(0, 2));
+        assertThat(first.getHeader(Pagination.NEXT_CURSOR)).isEqualTo(String.valueOf(ids.get(1)));
+        
+        // 最后一页正好是满的，仍然给出游标，下一页为空且没有游标
+        MockHttpServletResponse second = perform(get("/api/user").param("username", prefix).param("size", "2")
+                .param("cursor", first.getHeader(Pagination.NEXT_CURSOR)));
+        assertThat(ids(second)).isEqualTo(ids.subList(2, 4));
+        MockHttpServletResponse third = perform(get("/api/user").param("username", prefix).param("size", "2")
+                .param("cursor", second.getHeader(Pagination.NEXT_CURSOR)));
+        assertThat(ids(third)).isEmpty();
+        assertThat(third.getHeader(Pagination.NEXT_CURSOR)).isNull();
+        
+        MockHttpServletResponse descending = perform(get("/api/user").param("username", prefix)
+                .param("size", "3").param("sort", "desc"));
+        assertThat(ids(descending)).containsExactly(ids.get(3), ids.get(2), ids.get(1));
+        MockHttpServletResponse rest = perform(get("/api/user").param("username", prefix).param("size", "3")
+                .param("sort", "desc").param("cursor", descending.getHeader(Pagination.NEXT_CURSOR)));
+        assertThat(ids(rest)).containsExactly(ids.get(0));
+        assertThat(rest.getHeader(Pagination.NEXT_CURSOR)).isNull();
+    }
+    
+    @Test
+    void filePagesFollowCursorToTheEnd() throws Exception {
+        User owner = createUser("files", "pw");
+        User other = createUser("files", "pw");
+        String filetype = "test/page" + System.nanoTime();
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            File file = fileRepository.save(new File().setFilename("f" + i).setFiletype(filetype)
+                    .setFilesize((long) i).setUser(i == 2 ? other : owner).setOpenDownload(i == 4));
+            if (i != 2) {
+                ids.add(file.getId());
+            }
+        }
+        // 别人的文件只有公开下载的才能看到
+        fileRepository.save(new File().setFilename("hidden").setFiletype(filetype).setFilesize(1L).setUser(other));
+        
+        String token = bearer(owner);
+        MockHttpServletResponse first = perform(get("/api/file").header("authorization", token)
+                .param("filetype", filetype).param("size", "3"));
+        assertThat(ids(first)).isEqualTo(ids.subList(0, 3));
+        MockHttpServletResponse second = perform(get("/api/file").header("authorization", token)
+                .param("filetype", filetype).param("size", "3")
+                .param("cursor", first.getHeader(Pagination.NEXT_CURSOR)));
+        assertThat(ids(second)).isEqualTo(ids.subList(3, 4));
+        assertThat(second.getHeader(Pagination.NEXT_CURSOR)).isNull();
+        
+        MockHttpServletResponse descending = perform(get("/api/file").header("authorization", token)
+                .param("filetype", filetype).param("size", "4").param("sort", "desc"));
+        assertThat(ids(descending)).containsExactly(ids.get(3), ids.get(2), ids.get(1), ids.get(0));
+        assertThat(descending.getHeader(Pagination.NEXT_CURSOR)).isEqualTo(String.valueOf(ids.get(0)));
+    }
+    
+    private List<Integer> ids(MockHttpServletResponse response) throws Exception {
+        assertThat(response.getStatus()).isEqualTo(200);
+        return jsonList(response).stream().map(item -> (Integer) item.get("id")).collect(Collectors.toList());
+    }
+}
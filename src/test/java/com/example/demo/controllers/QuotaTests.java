@@ -0,0 +1,94 @@
+package com.example.demo.controllers;
+
+import com.example.demo.ApiTests;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockMultipartFile;
+
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+
+/**
+ * 单个上传和分块上传超过存储配额时被拒绝，占用不变。没有提交的会话同样占用配额。
+ * 单个上传的请求体超过上限时，在读取之前被拒绝
+ */
+class QuotaTests extends ApiTests {
+    
+    @Test
+    void uploadsBeyondQuotaAreRejected() throws Exception {
+        String token = bearer(createUser("quota", "pw"));
+        byte[] data = new byte[60000];
+        new Random(2).nextBytes(data);
+        assertThat(upload(token, "first.bin", data).getStatus()).isEqualTo(201);
+        
+        new Random(3).nextBytes(data);
+        MockHttpServletResponse rejected = upload(token, "second.bin", data);
+        assertThat(rejected.getStatus()).isEqualTo(413);
+        assertThat(json(rejected)).containsKey("error");
+        
+        MockHttpServletResponse session = perform(post("/api/file/uploads").header("authorization", token)
+                .contentType(MediaType.APPLICATION_JSON).content("{\"filename\":\"big.bin\",\"size\":60000}"));
+        assertThat(session.getStatus()).isEqualTo(413);
+        
+        Map<String, Object> usage = json(perform(get("/api/user/one/usage").header("authorization", token)));
+        assertThat(((Number) usage.get("totalBytes")).longValue()).isEqualTo(60000);
+    }
+    
+    @Test
+    void openSessionsReserveQuotaUntilAborted() throws Exception {
+        String token = bearer(createUser("reserve", "pw"));
+        MockHttpServletResponse first = createSession(token, 60000);
+        assertThat(first.getStatus()).isEqualTo(201);
+        
+        // 第一个会话还没有写入任何分块，但它的大小已经预留，单个上传和新的会话都放不下
+        byte[] data = new byte[50000];
+        new Random(5).nextBytes(data);
+        assertThat(upload(token, "small.bin", data).getStatus()).isEqualTo(413);
+        assertThat(createSession(token, 50000).getStatus()).isEqualTo(413);
+        
+        assertThat(createSession(token, 1).getStatus()).isEqualTo(201);
+        MockHttpServletResponse tooMany = createSession(token, 1);
+        assertThat(tooMany.getStatus()).isEqualTo(409);
+        assertThat(json(tooMany)).containsKey("error");
+        
+        // 放弃后预留的配额和会话名额都还回来
+        assertThat(perform(delete("/api/file/uploads/" + json(first).get("id")).header("authorization", token))
+                .getStatus()).isEqualTo(204);
+        assertThat(createSession(token, 50000).getStatus()).isEqualTo(201);
+    }
+    
+    @Test
+    void largeMultipartUploadsAreSentToChunkedUploads() throws Exception {
+        String token = bearer(createUser("multipart", "pw"));
+        byte[] data = new byte[90000];
+        new Random(7).nextBytes(data);
+        // 没有超过配额，但请求体超过了单个上传的上限
+        MockHttpServletResponse rejected = perform(multipart("/api/file")
+                .file(new MockMultipartFile("file", "large.bin", "application/octet-stream", data))
+                .content(data)
+                .header("authorization", token));
+        assertThat(rejected.getStatus()).isEqualTo(413);
+        assertThat((String) json(rejected).get("error")).contains("/api/file/uploads");
+        
+        Map<String, Object> usage = json(perform(get("/api/user/one/usage").header("authorization", token)));
+        assertThat(((Number) usage.get("totalBytes")).longValue()).isEqualTo(0);
+    }
+    
+    private MockHttpServletResponse createSession(String token, long size) throws Exception {
+        return perform(post("/api/file/uploads").header("authorization", token)
+                .contentType(MediaType.APPLICATION_JSON).content("{\"filename\":\"big.bin\",\"size\":" + size + "}"));
+    }
+    
+    private MockHttpServletResponse upload(String token, String filename, byte[] data) throws Exception {
+        return perform(multipart("/api/file")
+                .file(new MockMultipartFile("file", filename, "application/octet-stream", data))
+                .header("authorization", token));
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.demo.controllers;
+
+import com.example.demo.ApiTests;
+import com.example.demo.models.User;
+import com.example.demo.models.UserRepository;
+import com.example.demo.services.UserSearchIndex;
+import com.example.demo.services.UserService;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+
+/**
+ * 用户搜索按三元组匹配任意位置，短查询只按前缀匹配。结果限制条数时返回 id 最小的用户
+ */
+class SearchTests extends ApiTests {
+    
+    @Autowired
+    UserService userService;
+    
+    @Autowired
+    UserRepository userRepository;
+    
+    @Autowired
+    UserSearchIndex userSearchIndex;
+    
+    @Test
+    void searchMatchesTrigramsAnywhereAndShortQueriesByPrefix() throws Exception {
+        List<User> users = new ArrayList<>();
+        users.add(new User().setUsername("search" + System.nanoTime() + "a").setPasswordHash("x")
+                .setNickname("qzfoo").setEmail("Alpha@Wxyq.org"));
+        users.add(new User().setUsername("search" + System.nanoTime() + "b").setPasswordHash("x")
+                .setNickname("qzbar"));
+        userService.createUsers(users);
+        Integer first = users.get(0).getId();
+        Integer second = users.get(1).getId();
+        String token = bearer(users.get(0));
+        
+        assertThat(search(token, "zfo")).containsExactly(first);
+        assertThat(search(token, "WXYQ")).containsExactly(first);
+        assertThat(search(token, "qzb")).containsExactly(second);
+        assertThat(search(token, "qz")).containsExactly(first, second);
+        assertThat(search(token, "wx")).containsExactly(first);
+        // 短查询只匹配词的开头，长查询的三元组必须连续出现
+        assertThat(search(token, "zf")).isEmpty();
+        assertThat(search(token, "qzfbar")).isEmpty();
+    }
+    
+    @Test
+    void limitedSearchReturnsSmallestIds() throws Exception {
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < 17; i++) {
+            users.add(new User().setUsername("limit" + System.nanoTime() + "u" + i).setPasswordHash("x"));
+        }
+        userService.createUsers(users);
+        // 倒排列表是 16 个桶的哈希集合，按 id 除以 16 的余数遍历。找两个遍历顺序与 id 顺序相反的用户
+        User low = null;
+        User high = null;
+        for (User a : users) {
+            for (User b : users) {
+                if (a.getId() < b.getId() && a.getId() % 16 > b.getId() % 16) {
+                    low = a;
+                    high = b;
+                }
+            }
+        }
+        assertThat(low).isNotNull();
+        String nickname = "lim" + System.nanoTime();
+        for (User user : List.of(high, low)) {
+            userRepository.save(user.setNickname(nickname));
+            userSearchIndex.put(user);
+        }
+        
+        String token = bearer(users.get(0));
+        assertThat(search(token, nickname, 1)).containsExactly(low.getId());
+        assertThat(search(token, nickname, 2)).containsExactly(low.getId(), high.getId());
+    }
+    
+    private List<Integer> search(String token, String q) throws Exception {
+        return search(token, q, 20);
+    }
+    
+    private List<Integer> search(String token, String q, int size) throws Exception {
+        return ids(perform(get("/api/user/search").header("authorization", token).param("q", q)
+                .param("size", String.valueOf(size))));
+    }
+    
+    private List<Integer> ids(MockHttpServletResponse response) throws Exception {
+        assertThat(response.getStatus()).isEqualTo(200);
+        return jsonList(response).stream().map(item -> (Integer) item.get("id")).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,180 @@
+package com.example.demo.controllers;
+
+import cn.hutool.poi.excel.ExcelUtil;
+import cn.hutool.poi.excel.ExcelWriter;
+import com.example.demo.ApiTests;
+import com.example.demo.models.User;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockMultipartFile;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+
+/**
+ * 登录、刷新令牌，修改密码和删除用户后令牌的吊销，以及重新导入不影响令牌
+ */
+class TokenTests extends ApiTests {
+    
+    @Test
+    void refreshTokenIssuesNewPair() throws Exception {
+        User user = createUser("refresh", "pw");
+        Map<String, Object> login = login(user.getUsername(), "pw");
+        String token = (String) login.get("token");
+        String refreshToken = (String) login.get("refreshToken");
+        assertThat(login).containsKeys("expiresIn", "username", "nickname");
+        assertThat(one(token).getStatus()).isEqualTo(200);
+        
+        // 刷新令牌不能当访问令牌用，访问令牌也不能用来刷新
+        assertThat(one(refreshToken).getStatus()).isEqualTo(401);
+        assertThat(refresh(token).getStatus()).isEqualTo(401);
+        assertThat(perform(post("/api/login/refresh").contentType(MediaType.APPLICATION_JSON).content("{}"))
+                .getStatus()).isEqualTo(401);
+        
+        MockHttpServletResponse refreshed = refresh(refreshToken);
+        assertThat(refreshed.getStatus()).isEqualTo(200);
+        assertThat(one((String) json(refreshed).get("token")).getStatus()).isEqualTo(200);
+    }
+    
+    @Test
+    void wrongPasswordIsRejected() throws Exception {
+        User user = createUser("wrong", "pw");
+        MockHttpServletResponse response = perform(post("/api/login").contentType(MediaType.APPLICATION_JSON)
+                .content("{\"username\":\"" + user.getUsername() + "\",\"password\":\"nope\"}"));
+        assertThat(response.getStatus()).isEqualTo(401);
+        assertThat(json(response)).containsKey("error");
+    }
+    
+    @Test
+    void passwordChangeRevokesEarlierTokens() throws Exception {
+        User user = createUser("password", "pw");
+        Map<String, Object> login = login(user.getUsername(), "pw");
+        String token = (String) login.get("token");
+        
+        MockHttpServletResponse changed = perform(put("/api/user/password").header("authorization", "Bearer " + token)
+                .contentType(MediaType.APPLICATION_JSON).content("{\"password\":\"pw2\"}"));
+        assertThat(changed.getStatus()).isEqualTo(200);
+        Map<String, Object> pair = json(changed);
+        
+        assertThat(one(token).getStatus()).isEqualTo(401);
+        assertThat(refresh((String) login.get("refreshToken")).getStatus()).isEqualTo(401);
+        assertThat(one((String) pair.get("token")).getStatus()).isEqualTo(200);
+        assertThat(refresh((String) pair.get("refreshToken")).getStatus()).isEqualTo(200);
+        assertThat(login(user.getUsername(), "pw2")).containsKey("token");
+    }
+    
+    @Test
+    void concurrentPasswordChangesEachBumpTheGeneration() throws Exception {
+        User user = createUser("bump", "pw");
+        String token = bearer(user);
+        CyclicBarrier barrier = new CyclicBarrier(2);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        List<Future<Integer>> results = new ArrayList<>();
+        try {
+            for (String password : List.of("pw2", "pw3")) {
+                results.add(executor.submit(() -> {
+                    barrier.await();
+                    return perform(put("/api/user/password").header("authorization", token)
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .content("{\"password\":\"" + password + "\"}")).getStatus();
+                }));
+            }
+            int changed = 0;
+            for (Future<Integer> result : results) {
+                if (result.get(30, TimeUnit.SECONDS) == 200) {
+                    changed++;
+                }
+            }
+            // 后到的请求可能因为令牌已经被吊销而返回 401，成功的次数必须等于代数
+            assertThat(changed).isPositive();
+            assertThat(userRepository.findById(user.getId()).orElseThrow().getTokenGeneration()).isEqualTo(changed);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test
+    void deletedUserTokensAreRevoked() throws Exception {
+        User user = createUser("deleted", "pw");
+        Map<String, Object> login = login(user.getUsername(), "pw");
+        String token = (String) login.get("token");
+        
+        assertThat(perform(delete("/api/user/" + user.getId()).header("authorization", "Bearer " + token))
+                .getStatus()).isEqualTo(204);
+        assertThat(one(token).getStatus()).isEqualTo(401);
+        assertThat(refresh((String) login.get("refreshToken")).getStatus()).isEqualTo(401);
+    }
+    
+    @Test
+    void refreshChecksThatTheUserStillExists() throws Exception {
+        User user = createUser("vanished", "pw");
+        Map<String, Object> login = login(user.getUsername(), "pw");
+        
+        // 不经过接口删除，相当于重启后内存里没有吊销记录
+        userRepository.deleteById(user.getId());
+        assertThat(refresh((String) login.get("refreshToken")).getStatus()).isEqualTo(401);
+    }
+    
+    @Test
+    void reimportKeepsTokenGeneration() throws Exception {
+        User user = createUser("reimport", "pw");
+        MockHttpServletResponse changed = perform(put("/api/user/password").header("authorization", bearer(user))
+                .contentType(MediaType.APPLICATION_JSON).content("{\"password\":\"pw2\"}"));
+        String token = (String) json(changed).get("token");
+        User stored = userRepository.findById(user.getId()).orElseThrow();
+        assertThat(stored.getTokenGeneration()).isEqualTo(1);
+        
+        // 导出的表带 id 列，重新导入时按 id 合并
+        Map<String, Object> row = new LinkedHashMap<>();
+        row.put("id", stored.getId());
+        row.put("username", stored.getUsername());
+        row.put("passwordHash", stored.getPasswordHash());
+        row.put("nickname", "reimported");
+        ExcelWriter writer = ExcelUtil.getWriter(true);
+        writer.write(List.of(row), true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.flush(out, true);
+        writer.close();
+        assertThat(perform(multipart("/api/user/import").file(new MockMultipartFile("file", "users.xlsx",
+                "application/octet-stream", out.toByteArray()))).getStatus()).isEqualTo(201);
+        
+        User reimported = userRepository.findById(user.getId()).orElseThrow();
+        assertThat(reimported.getNickname()).isEqualTo("reimported");
+        assertThat(reimported.getTokenGeneration()).isEqualTo(1);
+        assertThat(one(token).getStatus()).isEqualTo(200);
+        assertThat(perform(get("/api/user/one").header("authorization", bearer(reimported))).getStatus())
+                .isEqualTo(200);
+    }
+    
+    private Map<String, Object> login(String username, String password) throws Exception {
+        MockHttpServletResponse response = perform(post("/api/login").contentType(MediaType.APPLICATION_JSON)
+                .content("{\"username\":\"" + username + "\",\"password\":\"" + password + "\"}"));
+        assertThat(response.getStatus()).isEqualTo(200);
+        return json(response);
+    }
+    
+    private MockHttpServletResponse refresh(String refreshToken) throws Exception {
+        return perform(post("/api/login/refresh").contentType(MediaType.APPLICATION_JSON)
+                .content("{\"refreshToken\":\"" + refreshToken + "\"}"));
+    }
+    
+    private MockHttpServletResponse one(String token) throws Exception {
+        return perform(get("/api/user/one").header("authorization", "Bearer " + token));
+    }
+}
@@ -0,0 +1,55 @@
+package com.example.demo.controllers;
+
+import com.example.demo.ApiTests;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+
+/**
+ * 分块上传的续传和提交
+ */
+class UploadsTests extends ApiTests {
+    
+    @Test
+    void chunkedUploadResumesAndCommits() throws Exception {
+        String token = bearer(createUser("chunks", "pw"));
+        Map<String, Object> session = json(perform(post("/api/file/uploads").header("authorization", token)
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{\"filename\":\"c.txt\",\"filetype\":\"text/plain\",\"size\":10}")));
+        String uploads = "/api/file/uploads/" + session.get("id");
+        assertThat(session.get("chunks")).isEqualTo(3);
+        
+        assertThat(perform(put(uploads + "?offset=8").header("authorization", token).content("ij")).getStatus())
+                .isEqualTo(200);
+        assertThat(perform(put(uploads + "?offset=0").header("authorization", token).content("abcd")).getStatus())
+                .isEqualTo(200);
+        assertThat(perform(put(uploads + "?offset=3").header("authorization", token).content("abcd")).getStatus())
+                .isEqualTo(400);
+        
+        MockHttpServletResponse early = perform(post(uploads + "/commit").header("authorization", token));
+        assertThat(early.getStatus()).isEqualTo(409);
+        assertThat(json(early).get("missing")).isEqualTo(List.of(1));
+        
+        // 断线后重新查询进度，只补缺少的那一块
+        Map<String, Object> status = json(perform(get(uploads).header("authorization", token)));
+        assertThat(status.get("received")).isEqualTo(List.of(0, 2));
+        assertThat(status.get("missing")).isEqualTo(List.of(1));
+        assertThat(perform(put(uploads + "?offset=4").header("authorization", token).content("efgh")).getStatus())
+                .isEqualTo(200);
+        
+        MockHttpServletResponse committed = perform(post(uploads + "/commit").header("authorization", token));
+        assertThat(committed.getStatus()).isEqualTo(201);
+        Map<String, Object> file = json(committed);
+        assertThat(file.get("filesize")).isEqualTo(10);
+        assertThat(perform(get("/api/file/" + file.get("id"))).getContentAsString()).isEqualTo("abcdefghij");
+        assertThat(perform(get(uploads).header("authorization", token)).getStatus()).isEqualTo(404);
+    }
+}
@@ -0,0 +1,59 @@
+package com.example.demo.services;
+
+import com.example.demo.ApiTests;
+import com.example.demo.models.File;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 回收没有登记的内容时，不删除正在被上传沿用的内容
+ */
+class BlobCollectorTests extends ApiTests {
+    
+    @Autowired
+    BlobCollector blobCollector;
+    
+    @Autowired
+    FileStore fileStore;
+    
+    @Test
+    void reusedBlobIsNotCollectedBeforeItsRowCommits() throws Exception {
+        Path reused = orphan(7);
+        Path orphan = orphan(8);
+        
+        // 上传相同的内容，事务里已经提交到磁盘，但 file_blob 的行还没有提交，回收任务看不到
+        fileStore.commit(fileStore.stage(new ByteArrayInputStream(data(7)), "application/octet-stream"));
+        
+        blobCollector.collectUnregistered(Instant.now().minus(Duration.ofDays(1)));
+        assertThat(reused).exists();
+        assertThat(orphan).doesNotExist();
+        fileStore.delete(reused.getFileName().toString());
+    }
+    
+    /**
+     * 写入一份没有登记、两天前写入的内容，相当于事务失败留下的
+     */
+    private Path orphan(long seed) throws Exception {
+        StagedBlob staged = fileStore.stage(new ByteArrayInputStream(data(seed)), "application/octet-stream");
+        fileStore.commit(staged);
+        Path blob = fileStore.locate(new File().setHash(staged.getHash()));
+        Files.setLastModifiedTime(blob, FileTime.from(Instant.now().minus(Duration.ofDays(2))));
+        return blob;
+    }
+    
+    private static byte[] data(long seed) {
+        byte[] data = new byte[2000];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,96 @@
+package com.example.demo.services;
+
+import cn.hutool.crypto.digest.DigestUtil;
+import com.example.demo.ApiTests;
+import com.example.demo.models.File;
+import com.example.demo.models.User;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * 提交等正在写入的分块写完，提交期间不再接受新的分块，也不能放弃。提交失败后会话保留，可以再次提交
+ */
+class ChunkedUploadServiceTests extends ApiTests {
+    
+    @Autowired
+    ChunkedUploadService chunkedUploadService;
+    
+    @Test
+    void commitWaitsForChunkBeingWritten() throws Exception {
+        User user = createUser("chunks", "pw");
+        UploadSession session = chunkedUploadService.create(user.getId(), "c.bin", "application/octet-stream", 8);
+        assertThat(chunkedUploadService.writeChunk(session, 0, stream("abcd"))).isTrue();
+        assertThat(chunkedUploadService.writeChunk(session, 4, stream("efgh"))).isTrue();
+        
+        // 重传第一块，写了一半停住
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch resume = new CountDownLatch(1);
+        InputStream blocked = new InputStream() {
+            @Override
+            public int read() {
+                started.countDown();
+                try {
+                    resume.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return -1;
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Boolean> write = executor.submit(() -> chunkedUploadService.writeChunk(session, 0,
+                    new SequenceInputStream(stream("wx"), new SequenceInputStream(blocked, stream("yz")))));
+            assertThat(started.await(30, TimeUnit.SECONDS)).isTrue();
+            
+            Future<File> commit = executor.submit(() -> chunkedUploadService.commit(session));
+            assertThatThrownBy(() -> commit.get(200, TimeUnit.MILLISECONDS)).isInstanceOf(TimeoutException.class);
+            assertThatThrownBy(() -> chunkedUploadService.writeChunk(session, 4, stream("efgh")))
+                    .isInstanceOf(IllegalStateException.class);
+            assertThat(chunkedUploadService.abort(session)).isFalse();
+            
+            resume.countDown();
+            assertThat(write.get(30, TimeUnit.SECONDS)).isTrue();
+            File file = commit.get(30, TimeUnit.SECONDS);
+            assertThat(file.getHash()).isEqualTo(DigestUtil.sha256Hex("wxyzefgh"));
+        } finally {
+            resume.countDown();
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test
+    void failedCommitKeepsTheChunksForARetry() throws Exception {
+        User user = createUser("retry", "pw");
+        // 没有文件名，写 File 记录时失败，这时内容已经算好哈希
+        UploadSession session = chunkedUploadService.create(user.getId(), null, "application/octet-stream", 4);
+        assertThat(chunkedUploadService.writeChunk(session, 0, stream("ijkl"))).isTrue();
+        assertThatThrownBy(() -> chunkedUploadService.commit(session)).isInstanceOf(RuntimeException.class);
+        
+        assertThat(session.getPath()).exists();
+        assertThat(chunkedUploadService.get(session.getId(), user.getId())).isSameAs(session);
+        assertThatThrownBy(() -> chunkedUploadService.commit(session)).isInstanceOf(RuntimeException.class)
+                .isNotInstanceOf(NoSuchFileException.class);
+        assertThat(chunkedUploadService.abort(session)).isTrue();
+        assertThat(session.getPath()).doesNotExist();
+    }
+    
+    private InputStream stream(String content) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+}
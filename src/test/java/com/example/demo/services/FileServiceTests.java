@@ -0,0 +1,113 @@
+package com.example.demo.services;
+
+import com.example.demo.ApiTests;
+import com.example.demo.models.File;
+import com.example.demo.models.FileBlobRepository;
+import com.example.demo.models.FileTypeStat;
+import com.example.demo.models.FileTypeStatRepository;
+import com.example.demo.models.User;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.OptimisticLockingFailureException;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * 同时删除相同的文件时，只有一个请求释放引用计数、占用和类型统计。删除后类型统计的最大文件随之更新
+ */
+class FileServiceTests extends ApiTests {
+    
+    @Autowired
+    FileService fileService;
+    
+    @Autowired
+    FileBlobRepository fileBlobRepository;
+    
+    @Autowired
+    FileTypeStatRepository fileTypeStatRepository;
+    
+    @Autowired
+    UsageService usageService;
+    
+    @Test
+    void concurrentBulkDeletesReleaseSharedBlobOnce() throws Exception {
+        User user = createUser("double", "pw");
+        String filetype = "test/double" + System.nanoTime();
+        byte[] data = new byte[1000];
+        new Random(4).nextBytes(data);
+        // 三个文件去重后共用一份内容，删除前两个之后第三个仍然引用它
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            files.add(fileService.upload(new ByteArrayInputStream(data), "d" + i, filetype, user.getId()));
+        }
+        String hash = files.get(0).getHash();
+        assertThat(fileBlobRepository.findById(hash).orElseThrow().getRefCount()).isEqualTo(3);
+        
+        List<File> deleted = files.subList(0, 2);
+        CyclicBarrier barrier = new CyclicBarrier(2);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        List<Future<Boolean>> results = new ArrayList<>();
+        try {
+            for (int i = 0; i < 2; i++) {
+                results.add(executor.submit(() -> {
+                    barrier.await();
+                    try {
+                        fileService.deleteAll(deleted);
+                        return true;
+                    } catch (RuntimeException e) {
+                        return false;
+                    }
+                }));
+            }
+            assertThat(results.get(0).get(30, TimeUnit.SECONDS) ^ results.get(1).get(30, TimeUnit.SECONDS))
+                    .isTrue();
+        } finally {
+            executor.shutdownNow();
+        }
+        
+        assertThat(fileBlobRepository.findById(hash).orElseThrow().getRefCount()).isEqualTo(1);
+        assertThat(usageService.get(user.getId()).getFileCount()).isEqualTo(1);
+        assertThat(usageService.get(user.getId()).getTotalBytes()).isEqualTo(data.length);
+        FileTypeStat stat = fileTypeStatRepository.findById(filetype).orElseThrow();
+        assertThat(stat.getFileCount()).isEqualTo(1);
+        assertThat(stat.getTotalBytes()).isEqualTo(data.length);
+        
+        // 用过期的列表再删一次，同样回滚
+        assertThatThrownBy(() -> fileService.deleteAll(deleted))
+                .isInstanceOf(OptimisticLockingFailureException.class);
+        assertThat(fileBlobRepository.findById(hash).orElseThrow().getRefCount()).isEqualTo(1);
+    }
+    
+    @Test
+    void deletesRecomputeLargestAndDropEmptyTypes() throws Exception {
+        User user = createUser("types", "pw");
+        String filetype = "test/types" + System.nanoTime();
+        Random random = new Random(6);
+        List<File> files = new ArrayList<>();
+        for (int size : new int[]{10, 30, 20}) {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+            files.add(fileService.upload(new ByteArrayInputStream(data), "t" + size, filetype, user.getId()));
+        }
+        assertThat(fileTypeStatRepository.findById(filetype).orElseThrow().getLargest()).isEqualTo(30);
+        
+        fileService.delete(files.get(1));
+        FileTypeStat stat = fileTypeStatRepository.findById(filetype).orElseThrow();
+        assertThat(stat.getFileCount()).isEqualTo(2);
+        assertThat(stat.getLargest()).isEqualTo(20);
+        
+        fileService.deleteAll(List.of(files.get(0), files.get(2)));
+        assertThat(fileTypeStatRepository.findById(filetype)).isEmpty();
+    }
+}
@@ -0,0 +1,97 @@
+package com.example.demo.services;
+
+import com.example.demo.ApiTests;
+import com.example.demo.models.User;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.crypto.bcrypt.BCrypt;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+
+/**
+ * BCrypt 线程池满时返回 503，登录后按新的工作因子重新计算哈希，期间修改过的密码不被覆盖
+ */
+class PasswordServiceTests extends ApiTests {
+    
+    @Autowired
+    PasswordService passwordService;
+    
+    @Test
+    void saturatedPoolAnswers503() throws Exception {
+        User user = createUser("busy", "pw");
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) ReflectionTestUtils.getField(passwordService, "executor");
+        CountDownLatch release = new CountDownLatch(1);
+        Runnable blocker = () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        try {
+            // 先占满所有线程，再填满队列
+            for (int i = 0; i < executor.getMaximumPoolSize(); i++) {
+                executor.execute(blocker);
+            }
+            while (executor.getActiveCount() < executor.getMaximumPoolSize()) {
+                Thread.sleep(10);
+            }
+            while (executor.getQueue().remainingCapacity() > 0) {
+                executor.execute(blocker);
+            }
+            
+            MockHttpServletResponse response = login(user.getUsername(), "pw");
+            assertThat(response.getStatus()).isEqualTo(503);
+            assertThat(response.getHeader("Retry-After")).isEqualTo("1");
+            assertThat(json(response)).containsKey("error");
+        } finally {
+            release.countDown();
+        }
+        while (executor.getActiveCount() > 0 || !executor.getQueue().isEmpty()) {
+            Thread.sleep(10);
+        }
+        assertThat(login(user.getUsername(), "pw").getStatus()).isEqualTo(200);
+    }
+    
+    @Test
+    void loginRehashesWithTheConfiguredStrength() throws Exception {
+        User user = userRepository.save(new User().setUsername("rehash" + System.nanoTime())
+                .setPasswordHash(BCrypt.hashpw("pw", BCrypt.gensalt(5))));
+        assertThat(passwordService.needsRehash(user.getPasswordHash())).isTrue();
+        
+        assertThat(login(user.getUsername(), "pw").getStatus()).isEqualTo(200);
+        long deadline = System.currentTimeMillis() + 10000;
+        String hash = user.getPasswordHash();
+        while (hash.startsWith("$2a$05$") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+            hash = userRepository.findById(user.getId()).orElseThrow().getPasswordHash();
+        }
+        assertThat(hash).startsWith("$2a$04$");
+        assertThat(BCrypt.checkpw("pw", hash)).isTrue();
+    }
+    
+    @Test
+    void rehashDoesNotOverwriteAChangedPassword() {
+        User user = createUser("raced", "pw");
+        String changed = BCrypt.hashpw("pw2", BCrypt.gensalt(4));
+        userRepository.save(user.setPasswordHash(changed));
+        
+        // 登录时校验的是旧哈希，写回时它已经被修改密码替换
+        String stale = BCrypt.hashpw("pw", BCrypt.gensalt(4));
+        assertThat(userRepository.updatePasswordHash(user.getId(), stale, BCrypt.hashpw("pw", BCrypt.gensalt(4))))
+                .isZero();
+        assertThat(userRepository.findById(user.getId()).orElseThrow().getPasswordHash()).isEqualTo(changed);
+    }
+    
+    private MockHttpServletResponse login(String username, String password) throws Exception {
+        return perform(post("/api/login").contentType(MediaType.APPLICATION_JSON)
+                .content("{\"username\":\"" + username + "\",\"password\":\"" + password + "\"}"));
+    }
+}
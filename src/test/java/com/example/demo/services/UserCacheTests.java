@@ -0,0 +1,56 @@
+package com.example.demo.services;
+
+import com.example.demo.ApiTests;
+import com.example.demo.models.User;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+
+/**
+ * 用户的二级缓存和 findByUsername 的查询缓存在写入后失效
+ */
+class UserCacheTests extends ApiTests {
+    
+    @Autowired
+    UserService userService;
+    
+    @Autowired
+    EntityManagerFactory entityManagerFactory;
+    
+    @Test
+    void batchInsertInvalidatesCachedLookups() {
+        String username = "cached" + System.nanoTime();
+        // 空结果也进查询缓存，批量插入提交后必须失效
+        assertThat(userRepository.findByUsername(username)).isNull();
+        assertThat(userRepository.findByUsername(username)).isNull();
+        
+        List<User> users = new ArrayList<>();
+        users.add(new User().setUsername(username).setPasswordHash("x"));
+        userService.createUsers(users);
+        
+        User found = userRepository.findByUsername(username);
+        assertThat(found).isNotNull();
+        assertThat(found.getId()).isEqualTo(users.get(0).getId());
+    }
+    
+    @Test
+    void updateReplacesCachedEntity() throws Exception {
+        User user = createUser("cache", "pw");
+        assertThat(userRepository.findById(user.getId())).isPresent();
+        assertThat(entityManagerFactory.getCache().contains(User.class, user.getId())).isTrue();
+        
+        String body = "{\"id\":" + user.getId() + ",\"username\":\"" + user.getUsername() + "\",\"nickname\":\"changed\"}";
+        assertThat(perform(put("/api/user/" + user.getId()).header("authorization", bearer(user))
+                .contentType(MediaType.APPLICATION_JSON).content(body)).getStatus()).isEqualTo(200);
+        
+        assertThat(userRepository.findById(user.getId()).orElseThrow().getNickname()).isEqualTo("changed");
+        assertThat(userRepository.findByUsername(user.getUsername()).getNickname()).isEqualTo("changed");
+    }
+}
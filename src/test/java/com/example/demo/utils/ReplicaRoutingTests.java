@@ -0,0 +1,198 @@
+package com.example.demo.utils;
+
+import com.example.demo.ApiTests;
+import com.example.demo.models.User;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+
+/**
+ * 配置一个主库和一个副本，两者是不同的 H2 内存库：只读事务从副本读取，
+ * 同一个请求中先有只读事务、后有写入时，写入仍然落到主库上。导出固定在一个副本上，每页一个短事务。
+ * 令牌相关的查询读主库，副本读到的实体不进二级缓存
+ */
+@SpringBootTest(properties = {
+        "spring.datasource.url=" + ReplicaRoutingTests.PRIMARY,
+        "datasource.replica.urls=" + ReplicaRoutingTests.REPLICA,
+        "datasource.sticky-window=0",
+        "export.jobs.dir=target/test-routing-exports"})
+class ReplicaRoutingTests extends ApiTests {
+    
+    static final String PRIMARY = "jdbc:h2:mem:routing_primary;MODE=MySQL;DATABASE_TO_LOWER=TRUE;" +
+            "DB_CLOSE_DELAY=-1;DB_CLOSE_ON_EXIT=FALSE";
+    
+    static final String REPLICA = "jdbc:h2:mem:routing_replica;MODE=MySQL;DATABASE_TO_LOWER=TRUE;" +
+            "DB_CLOSE_DELAY=-1;DB_CLOSE_ON_EXIT=FALSE";
+    
+    @Autowired
+    @Qualifier("primaryDataSource")
+    DataSource primaryDataSource;
+    
+    @Autowired
+    EntityManagerFactory entityManagerFactory;
+    
+    @Autowired
+    PlatformTransactionManager transactionManager;
+    
+    /**
+     * 副本的连接池是只读的，建表和放测试数据直接连副本库
+     */
+    @BeforeEach
+    void copySchemaToReplica() throws SQLException {
+        try (Connection replica = DriverManager.getConnection(REPLICA, "sa", "");
+             Statement target = replica.createStatement()) {
+            ResultSet tables = replica.getMetaData().getTables(null, null, "user", null);
+            if (tables.next()) {
+                return;
+            }
+            List<String> script = new ArrayList<>();
+            try (Connection primary = primaryDataSource.getConnection();
+                 Statement source = primary.createStatement();
+                 ResultSet rows = source.executeQuery("script nodata")) {
+                while (rows.next()) {
+                    script.add(rows.getString(1));
+                }
+            }
+            for (String sql : script) {
+                if (!sql.startsWith("CREATE USER")) {
+                    target.execute(sql);
+                }
+            }
+        }
+    }
+    
+    @Test
+    void readOnlyQueriesGoToTheReplica() throws Exception {
+        String username = "replicaonly" + System.nanoTime();
+        new JdbcTemplate(replica()).update("insert into user (id, username, password_hash, token_generation) " +
+                "values (?, ?, 'x', 0)", Integer.MAX_VALUE - 1, username);
+        
+        MockHttpServletResponse response = perform(get("/api/user").param("username", username));
+        assertThat(response.getStatus()).isEqualTo(200);
+        assertThat(jsonList(response)).extracting(user -> user.get("username")).containsExactly(username);
+        assertThat(userRepository.findByUsername(username)).isNull();
+        
+        // 导出的每一页也从副本读取
+        MockHttpServletResponse export = perform(get("/api/user/export").param("format", "csv"));
+        assertThat(export.getContentAsString(StandardCharsets.UTF_8)).contains(username);
+    }
+    
+    @Test
+    void writesAfterAReadOnlyTransactionInTheSameRequestGoToThePrimary() throws Exception {
+        String token = bearer(createUser("routing", "pw"));
+        
+        // 上传前先在只读事务中检查配额，随后在后台线程的读写事务中写入
+        MockHttpServletResponse uploaded = perform(multipart("/api/file")
+                .file(new MockMultipartFile("file", "r.txt", "text/plain", "routing".getBytes()))
+                .header("authorization", token));
+        assertThat(uploaded.getStatus()).isEqualTo(201);
+        Object id = json(uploaded).get("id");
+        assertThat(new JdbcTemplate(primaryDataSource).queryForObject("select count(*) from file where id = ?",
+                Integer.class, id)).isEqualTo(1);
+        assertThat(new JdbcTemplate(replica()).queryForObject("select count(*) from file where id = ?",
+                Integer.class, id)).isEqualTo(0);
+    }
+    
+    @Test
+    void tokenLookupsReadThePrimary() throws Exception {
+        // 用户只在主库上，副本里没有，从副本读到的用户不存在
+        User user = createUser("tokens", "pw");
+        MockHttpServletResponse login = perform(post("/api/login").contentType(MediaType.APPLICATION_JSON)
+                .content("{\"username\":\"" + user.getUsername() + "\",\"password\":\"pw\"}"));
+        assertThat(login.getStatus()).isEqualTo(200);
+        entityManagerFactory.getCache().evictAll();
+        
+        MockHttpServletResponse refreshed = perform(post("/api/login/refresh").contentType(MediaType.APPLICATION_JSON)
+                .content("{\"refreshToken\":\"" + json(login).get("refreshToken") + "\"}"));
+        assertThat(refreshed.getStatus()).isEqualTo(200);
+        
+        MockHttpServletResponse changed = perform(put("/api/user/password").header("authorization", bearer(user))
+                .contentType(MediaType.APPLICATION_JSON).content("{\"password\":\"pw2\"}"));
+        assertThat(changed.getStatus()).isEqualTo(200);
+        assertThat(perform(get("/api/user/one").header("authorization", "Bearer " + json(changed).get("token")))
+                .getStatus()).isEqualTo(200);
+    }
+    
+    @Test
+    void replicaReadsDoNotPopulateTheSecondLevelCache() {
+        User user = createUser("stale", "pw");
+        // 副本上的这一行还是修改之前的
+        new JdbcTemplate(replica()).update("insert into user (id, username, nickname, password_hash, " +
+                "token_generation) values (?, ?, 'stale', 'x', 0)", user.getId(), user.getUsername());
+        entityManagerFactory.getCache().evictAll();
+        
+        TransactionTemplate readOnly = new TransactionTemplate(transactionManager);
+        readOnly.setReadOnly(true);
+        User stale = readOnly.execute(status -> userRepository.findById(user.getId()).orElseThrow());
+        assertThat(stale.getNickname()).isEqualTo("stale");
+        assertThat(entityManagerFactory.getCache().contains(User.class, user.getId())).isFalse();
+        assertThat(userRepository.findById(user.getId()).orElseThrow().getNickname()).isNull();
+    }
+    
+    @Test
+    void pinnedThreadReadsEveryPageFromOneReplicaInShortTransactions() {
+        List<DataSource> replicas = List.of(new DriverManagerDataSource(REPLICA, "sa", ""),
+                new DriverManagerDataSource(PRIMARY, "sa", ""));
+        ReplicaRoutingDataSource routing = new ReplicaRoutingDataSource(new DriverManagerDataSource(PRIMARY, "sa", ""),
+                replicas, 30000, 0, new SimpleMeterRegistry());
+        TransactionTemplate readOnly = new TransactionTemplate(
+                new DataSourceTransactionManager(new LazyConnectionDataSourceProxy(routing)));
+        readOnly.setReadOnly(true);
+        JdbcTemplate jdbc = new JdbcTemplate(((DataSourceTransactionManager) readOnly.getTransactionManager())
+                .getDataSource());
+        
+        // 不固定时轮流使用两个副本
+        Set<String> rotating = new HashSet<>();
+        for (int i = 0; i < 4; i++) {
+            rotating.add(readOnly.execute(status -> jdbc.queryForObject("select database()", String.class)));
+        }
+        assertThat(rotating).hasSize(2);
+        
+        // 固定后每一页都是单独的事务，但都在同一个副本上
+        Set<String> pinned = new HashSet<>();
+        try (ReplicaRoutingDataSource.Pin pin = ReplicaRoutingDataSource.pin()) {
+            for (int i = 0; i < 4; i++) {
+                pinned.add(readOnly.execute(status -> {
+                    assertThat(status.isNewTransaction()).isTrue();
+                    return jdbc.queryForObject("select database()", String.class);
+                }));
+            }
+        }
+        assertThat(pinned).hasSize(1);
+    }
+    
+    private static DataSource replica() {
+        return new DriverManagerDataSource(REPLICA, "sa", "");
+    }
+}